@@ -2,13 +2,15 @@ package com.lrony.mediabrowsedemo;
 
 import android.app.Application;
 
-import com.lrony.mediabrowsedemo.utils.SharedPreferencesUtil;
+import com.lrony.mediabrowsedemo.utils.PlayStatsStore;
+import com.lrony.mediabrowsedemo.utils.PlaybackStateStore;
 
 public class App extends Application {
 
     @Override
     public void onCreate() {
         super.onCreate();
-        SharedPreferencesUtil.getInstance().initialize(this);
+        PlaybackStateStore.getInstance().initialize(this);
+        PlayStatsStore.getInstance().initialize(this);
     }
 }
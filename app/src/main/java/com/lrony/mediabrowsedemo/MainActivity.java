@@ -15,11 +15,14 @@ import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
+import android.os.Parcelable;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
 import android.support.v7.app.AppCompatActivity;
 import android.support.v7.widget.LinearLayoutManager;
 import android.support.v7.widget.RecyclerView;
 import android.util.Log;
+import android.view.Choreographer;
 import android.view.KeyEvent;
 import android.view.View;
 import android.widget.ImageView;
@@ -31,8 +34,9 @@ import android.widget.Toast;
 import com.lrony.mediabrowsedemo.utils.MediaIDHelper;
 import com.lrony.mediabrowsedemo.utils.PermissionReq;
 
-import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Stack;
 
 @SuppressLint("NewApi")
@@ -42,8 +46,8 @@ public class MainActivity extends AppCompatActivity implements MainInterface,
 
     private static final String TAG = "MainActivity";
 
-    private static final int MSG_UPDATE_AUDIO_PROGRESS = 0;
     private static final int MSG_PLAY_BACK_PLAY_PAUSE = 1;
+    private static final int PROGRESS_MAX = 1000;
 
     private MainModel mModel;
 
@@ -56,12 +60,35 @@ public class MainActivity extends AppCompatActivity implements MainInterface,
     private TextView mTvTitle;
     private ImageView mImgPlayPause;
 
-    private List<MediaBrowser.MediaItem> mMediaItems = new ArrayList<>();
-
     private Stack<String> mStack = new Stack<>();
+    // Items and scroll state of the levels on the stack, which stay subscribed so that the
+    // service sends their items again when they change
+    private Map<String, List<MediaBrowser.MediaItem>> mLevelItems = new HashMap<>();
+    private Map<String, Parcelable> mLevelScrollStates = new HashMap<>();
+    // Level the list shows
+    private String mShownLevel;
 
     private MainHandler mMainHandler = new MainHandler();
 
+    // Last state and duration received from the session, the progress is extrapolated from
+    // them instead of being queried
+    private PlaybackState mPlaybackState;
+    private long mDuration;
+    private boolean mResumed;
+    private boolean mProgressScheduled;
+
+    private final Choreographer.FrameCallback mProgressCallback =
+            new Choreographer.FrameCallback() {
+                @Override
+                public void doFrame(long frameTimeNanos) {
+                    mProgressScheduled = false;
+                    long delay = updateProgressBar();
+                    if (delay >= 0) {
+                        scheduleProgressUpdate(delay);
+                    }
+                }
+            };
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -81,8 +108,7 @@ public class MainActivity extends AppCompatActivity implements MainInterface,
                     @Override
                     public void onGranted() {
                         Log.d(TAG, "onGranted");
-                        mStack.push(MediaIDHelper.MEDIA_ID_ROOT);
-                        mModel.requestData(MediaIDHelper.MEDIA_ID_ROOT);
+                        pushLevel(MediaIDHelper.MEDIA_ID_ROOT);
                     }
 
                     @Override
@@ -95,7 +121,7 @@ public class MainActivity extends AppCompatActivity implements MainInterface,
 
     private void initView() {
         Log.d(TAG, "initView");
-        mAdapter = new MainAdapter(this, mMediaItems);
+        mAdapter = new MainAdapter(this);
         mListMain = findViewById(R.id.list_main);
         mListMain.setLayoutManager(new LinearLayoutManager(this));
         mListMain.setAdapter(mAdapter);
@@ -103,7 +129,7 @@ public class MainActivity extends AppCompatActivity implements MainInterface,
         mLlPlayback = findViewById(R.id.ll_playback);
 
         mProgressBar = findViewById(R.id.progressBar);
-        mProgressBar.setMax(1000);
+        mProgressBar.setMax(PROGRESS_MAX);
 
         mImgIcon = findViewById(R.id.img_icon);
         mTvTitle = findViewById(R.id.tv_title);
@@ -121,14 +147,16 @@ public class MainActivity extends AppCompatActivity implements MainInterface,
     protected void onResume() {
         super.onResume();
         Log.d(TAG, "onResume");
-        mMainHandler.sendEmptyMessage(MSG_UPDATE_AUDIO_PROGRESS);
+        mResumed = true;
+        startProgressUpdates();
     }
 
     @Override
     protected void onPause() {
         super.onPause();
         Log.d(TAG, "onPause");
-        mMainHandler.removeMessages(MSG_UPDATE_AUDIO_PROGRESS);
+        mResumed = false;
+        stopProgressUpdates();
     }
 
     @Override
@@ -147,9 +175,59 @@ public class MainActivity extends AppCompatActivity implements MainInterface,
     @Override
     public void updateAudioList(String parentId, List<MediaBrowser.MediaItem> list) {
         Log.d(TAG, "updateAudioList parentId: " + parentId + " ,size: " + list.size());
-        mMediaItems.clear();
-        mMediaItems.addAll(list);
-        mAdapter.notifyDataSetChanged();
+        if (!mStack.contains(parentId)) {
+            return;
+        }
+        mLevelItems.put(parentId, list);
+        if (parentId.equals(mStack.peek())) {
+            if (parentId.equals(mShownLevel)) {
+                // The items of the level changed, update the rows that did
+                mAdapter.submitList(list);
+            } else {
+                showLevel(parentId);
+            }
+        }
+    }
+
+    private void pushLevel(String mediaId) {
+        if (mShownLevel != null) {
+            mLevelScrollStates.put(mShownLevel,
+                    mListMain.getLayoutManager().onSaveInstanceState());
+        }
+        boolean subscribed = mStack.contains(mediaId);
+        mStack.push(mediaId);
+        if (!subscribed) {
+            mModel.subscribe(mediaId);
+        } else if (mLevelItems.containsKey(mediaId)) {
+            showLevel(mediaId);
+        }
+    }
+
+    private void popLevel() {
+        String mediaId = mStack.pop();
+        if (!mStack.contains(mediaId)) {
+            mModel.unsubscribe(mediaId);
+            mLevelItems.remove(mediaId);
+            mLevelScrollStates.remove(mediaId);
+        }
+        // Shown at once from the cache, or once loaded
+        if (mLevelItems.containsKey(mStack.peek())) {
+            showLevel(mStack.peek());
+        }
+    }
+
+    /**
+     * Replace the list by the cached items of another level, where it was scrolled to.
+     */
+    private void showLevel(String mediaId) {
+        mShownLevel = mediaId;
+        mAdapter.replaceList(mLevelItems.get(mediaId));
+        Parcelable scrollState = mLevelScrollStates.remove(mediaId);
+        if (scrollState != null) {
+            mListMain.getLayoutManager().onRestoreInstanceState(scrollState);
+        } else {
+            mListMain.scrollToPosition(0);
+        }
     }
 
     @Override
@@ -157,7 +235,12 @@ public class MainActivity extends AppCompatActivity implements MainInterface,
         Log.d(TAG, "onMediaBrowserConnected");
         if (mediaController != null) {
             setMediaController(mediaController);
-            updatePlayPauseButtonImage(mediaController.getPlaybackState());
+            mPlaybackState = mediaController.getPlaybackState();
+            MediaMetadata metadata = mediaController.getMetadata();
+            mDuration = metadata != null
+                    ? metadata.getLong(MediaMetadata.METADATA_KEY_DURATION) : 0;
+            updatePlayPauseButtonImage(mPlaybackState);
+            startProgressUpdates();
         }
     }
 
@@ -170,8 +253,9 @@ public class MainActivity extends AppCompatActivity implements MainInterface,
     @Override
     public void onPlaybackStateChanged(PlaybackState state) {
         Log.d(TAG, "onPlaybackStateChanged");
-        updateProgressBar();
+        mPlaybackState = state;
         updatePlayPauseButtonImage(state);
+        startProgressUpdates();
     }
 
     @SuppressLint("HandlerLeak")
@@ -180,10 +264,6 @@ public class MainActivity extends AppCompatActivity implements MainInterface,
         @Override
         public void handleMessage(Message msg) {
             switch (msg.what) {
-                case MSG_UPDATE_AUDIO_PROGRESS:
-                    long delay = updateProgressBar();
-                    mMainHandler.sendEmptyMessageDelayed(MSG_UPDATE_AUDIO_PROGRESS, delay);
-                    break;
                 case MSG_PLAY_BACK_PLAY_PAUSE:
                     mModel.playPause();
                     break;
@@ -206,29 +286,69 @@ public class MainActivity extends AppCompatActivity implements MainInterface,
         }
     }
 
+    /**
+     * Draw the progress now, and on the following frames while playing and visible.
+     */
+    private void startProgressUpdates() {
+        stopProgressUpdates();
+        long delay = updateProgressBar();
+        if (delay >= 0 && mResumed) {
+            scheduleProgressUpdate(delay);
+        }
+    }
+
+    private void stopProgressUpdates() {
+        if (mProgressScheduled) {
+            Choreographer.getInstance().removeFrameCallback(mProgressCallback);
+            mProgressScheduled = false;
+        }
+    }
+
+    private void scheduleProgressUpdate(long delay) {
+        if (!mProgressScheduled && mResumed) {
+            mProgressScheduled = true;
+            Choreographer.getInstance().postFrameCallbackDelayed(mProgressCallback, delay);
+        }
+    }
+
+    /**
+     * @return the playback position now, extrapolated from the last state received.
+     */
+    private long getPosition() {
+        PlaybackState state = mPlaybackState;
+        if (state == null) {
+            return 0;
+        }
+        long position = state.getPosition();
+        if (state.getState() == PlaybackState.STATE_PLAYING) {
+            long elapsed = SystemClock.elapsedRealtime() - state.getLastPositionUpdateTime();
+            position += (long) (elapsed * state.getPlaybackSpeed());
+        }
+        return mDuration > 0 ? Math.min(position, mDuration) : position;
+    }
+
+    /**
+     * @return the time until the progress moves by one step, -1 if it does not move.
+     */
     private long updateProgressBar() {
-        long duration = mModel.getDuration();
-        long pos = mModel.getPosition();
+        long duration = mDuration;
+        long pos = getPosition();
         if (duration <= 0) {
-            return 1000;
+            return -1;
         }
         if (pos >= 0) {
-            int progress = (int) (1000 * pos / duration);
+            int progress = (int) (PROGRESS_MAX * pos / duration);
             mProgressBar.setProgress(progress);
         } else {
-            mProgressBar.setProgress(1000);
-        }
-        // calculate the number of milliseconds until the next full second, so
-        // the counter can be updated at just the right time
-        long remaining = 1000 - (pos % 1000);
-        long smoothrefreshtime = duration / 320;
-        if (smoothrefreshtime > remaining) {
-            return remaining;
+            mProgressBar.setProgress(PROGRESS_MAX);
         }
-        if (smoothrefreshtime < 20) {
-            return 20;
+        if (mPlaybackState == null || mPlaybackState.getState() != PlaybackState.STATE_PLAYING
+                || mPlaybackState.getPlaybackSpeed() <= 0 || pos < 0) {
+            return -1;
         }
-        return smoothrefreshtime;
+        // Until the position reaches the next step of the bar, drawn on the frame after
+        long step = Math.max(1, duration / PROGRESS_MAX);
+        return (long) ((step - pos % step) / mPlaybackState.getPlaybackSpeed());
     }
 
     @Override
@@ -238,6 +358,8 @@ public class MainActivity extends AppCompatActivity implements MainInterface,
             Log.d(TAG, "onMetadataChanged metadata is null !!!");
             return;
         }
+        mDuration = metadata.getLong(MediaMetadata.METADATA_KEY_DURATION);
+        startProgressUpdates();
         String audioTitle = metadata.getString(MediaMetadata.METADATA_KEY_TITLE);
         Bitmap albumArt = metadata.getBitmap(MediaMetadata.METADATA_KEY_ALBUM_ART);
         mTvTitle.setText(audioTitle);
@@ -248,8 +370,7 @@ public class MainActivity extends AppCompatActivity implements MainInterface,
     public boolean onKeyDown(int keyCode, KeyEvent event) {
         if (keyCode == KeyEvent.KEYCODE_BACK) {
             if (mStack.size() > 1) {
-                mStack.pop();
-                mModel.requestData(mStack.peek());
+                popLevel();
                 return true;
             }
 
@@ -260,11 +381,9 @@ public class MainActivity extends AppCompatActivity implements MainInterface,
     @Override
     public void onItemClick(View view, int pos) {
         Log.d(TAG, "onItemClick pos: " + pos);
-        MediaBrowser.MediaItem mediaItem = mMediaItems.get(pos);
+        MediaBrowser.MediaItem mediaItem = mAdapter.getItem(pos);
         if (mediaItem.isBrowsable()) {
-            String mediaId = mediaItem.getMediaId();
-            mStack.push(mediaId);
-            mModel.requestData(mediaId);
+            pushLevel(mediaItem.getMediaId());
         } else {
             mModel.playFromMediaId(mediaItem.getMediaId(), null);
         }
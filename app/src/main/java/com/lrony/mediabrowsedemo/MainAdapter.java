@@ -2,67 +2,209 @@ package com.lrony.mediabrowsedemo;
 
 import android.annotation.SuppressLint;
 import android.content.Context;
+import android.media.MediaDescription;
 import android.media.browse.MediaBrowser;
 import android.support.annotation.NonNull;
+import android.support.v7.recyclerview.extensions.AsyncListDiffer;
+import android.support.v7.util.DiffUtil;
+import android.support.v7.widget.LinearLayoutManager;
 import android.support.v7.widget.RecyclerView;
+import android.text.TextUtils;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.ImageView;
 import android.widget.TextView;
 
+import com.lrony.mediabrowsedemo.utils.ThumbnailLoader;
+
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 
 /**
  * Created by Lrony on 19-2-22.
+ * <p>
+ * New lists are diffed against the current one on a background thread, by media id then
+ * content, so that only the rows that changed are rebound. Row art is loaded by a
+ * {@link ThumbnailLoader}, and prefetched for the rows about to scroll in.
  */
 @SuppressLint("NewApi")
 public class MainAdapter extends RecyclerView.Adapter<MainAdapter.ViewHolder> {
 
     private static final String TAG = "MainAdapter";
 
+    // Rows ahead of the scroll whose art is prefetched
+    private static final int PREFETCH_DISTANCE = 6;
+
+    private static final DiffUtil.ItemCallback<MediaBrowser.MediaItem> DIFF_CALLBACK =
+            new DiffUtil.ItemCallback<MediaBrowser.MediaItem>() {
+                @Override
+                public boolean areItemsTheSame(@NonNull MediaBrowser.MediaItem oldItem,
+                                               @NonNull MediaBrowser.MediaItem newItem) {
+                    return TextUtils.equals(oldItem.getMediaId(), newItem.getMediaId());
+                }
+
+                @Override
+                public boolean areContentsTheSame(@NonNull MediaBrowser.MediaItem oldItem,
+                                                  @NonNull MediaBrowser.MediaItem newItem) {
+                    MediaDescription oldDescription = oldItem.getDescription();
+                    MediaDescription newDescription = newItem.getDescription();
+                    return oldItem.getFlags() == newItem.getFlags()
+                            && TextUtils.equals(oldDescription.getTitle(),
+                            newDescription.getTitle())
+                            && TextUtils.equals(oldDescription.getSubtitle(),
+                            newDescription.getSubtitle())
+                            && Objects.equals(oldDescription.getIconUri(),
+                            newDescription.getIconUri());
+                }
+            };
+
     private Context mContext;
-    private List<MediaBrowser.MediaItem> mMediaItems;
+    private final AsyncListDiffer<MediaBrowser.MediaItem> mDiffer =
+            new AsyncListDiffer<>(this, DIFF_CALLBACK);
+    // Stable id of each media id seen, so rows keep their views across lists
+    private final Map<String, Long> mItemIds = new HashMap<>();
+    private final ThumbnailLoader mThumbnailLoader;
 
     private OnItemClickListener mClickListener;
 
-    MainAdapter(Context context, List<MediaBrowser.MediaItem> mediaItems) {
+    // Shared by all the rows
+    private final View.OnClickListener mItemClickListener = new View.OnClickListener() {
+        @Override
+        public void onClick(View view) {
+            ViewHolder viewHolder = (ViewHolder) view.getTag();
+            int position = viewHolder.getAdapterPosition();
+            if (mClickListener != null && position != RecyclerView.NO_POSITION) {
+                mClickListener.onItemClick(view, position);
+            }
+        }
+    };
+
+    private final RecyclerView.OnScrollListener mScrollListener =
+            new RecyclerView.OnScrollListener() {
+                private int mDirection = 1;
+
+                @Override
+                public void onScrolled(@NonNull RecyclerView recyclerView, int dx, int dy) {
+                    if (dy != 0) {
+                        mDirection = dy > 0 ? 1 : -1;
+                    }
+                    // Rows fly by during a fling, wait for it to settle
+                    if (recyclerView.getScrollState() != RecyclerView.SCROLL_STATE_SETTLING) {
+                        prefetch(recyclerView, mDirection);
+                    }
+                }
+
+                @Override
+                public void onScrollStateChanged(@NonNull RecyclerView recyclerView,
+                                                 int newState) {
+                    if (newState == RecyclerView.SCROLL_STATE_IDLE) {
+                        prefetch(recyclerView, mDirection);
+                    }
+                }
+            };
+
+    MainAdapter(Context context) {
         mContext = context;
-        mMediaItems = mediaItems;
+        mThumbnailLoader = new ThumbnailLoader(context,
+                context.getResources().getDimensionPixelSize(R.dimen.item_icon_size));
+        setHasStableIds(true);
+    }
+
+    /**
+     * Show a new list, the rows are updated once it has been diffed with the current one.
+     */
+    void submitList(List<MediaBrowser.MediaItem> mediaItems) {
+        mDiffer.submitList(mediaItems);
+    }
+
+    /**
+     * Show a list unrelated to the current one, e.g. another level, at once and without
+     * diffing.
+     */
+    void replaceList(List<MediaBrowser.MediaItem> mediaItems) {
+        // Both run synchronously: the differ has nothing to diff against after null
+        mDiffer.submitList(null);
+        mDiffer.submitList(mediaItems);
+    }
+
+    MediaBrowser.MediaItem getItem(int position) {
+        return mDiffer.getCurrentList().get(position);
     }
 
     @NonNull
     @Override
     public ViewHolder onCreateViewHolder(@NonNull ViewGroup viewGroup, int i) {
         View view = LayoutInflater.from(mContext).inflate(R.layout.item_media, viewGroup, false);
-        return new ViewHolder(view);
+        ViewHolder viewHolder = new ViewHolder(view);
+        view.setTag(viewHolder);
+        view.setOnClickListener(mItemClickListener);
+        return viewHolder;
     }
 
     @Override
-    public void onBindViewHolder(@NonNull ViewHolder viewHolder, @SuppressLint("RecyclerView") final int i) {
-        MediaBrowser.MediaItem mediaItem = mMediaItems.get(i);
+    public void onBindViewHolder(@NonNull ViewHolder viewHolder, int i) {
+        MediaBrowser.MediaItem mediaItem = getItem(i);
         viewHolder.ivTitle.setText(mediaItem.getDescription().getTitle());
-        if (mediaItem.isBrowsable()) {
-            viewHolder.imgIcon.setImageResource(R.drawable.ic_folder);
-        } else {
-            viewHolder.imgIcon.setImageResource(R.drawable.ic_music);
-        }
+        mThumbnailLoader.load(viewHolder.imgIcon, mediaItem.getDescription(),
+                mediaItem.isBrowsable() ? R.drawable.ic_folder : R.drawable.ic_music);
+    }
 
-        // ============================================= Listener
+    @Override
+    public void onViewRecycled(@NonNull ViewHolder viewHolder) {
+        mThumbnailLoader.cancel(viewHolder.imgIcon);
+    }
 
-        if (mClickListener != null) {
-            viewHolder.itemView.setOnClickListener(new View.OnClickListener() {
-                @Override
-                public void onClick(View view) {
-                    mClickListener.onItemClick(view, i);
-                }
-            });
+    @Override
+    public void onAttachedToRecyclerView(@NonNull RecyclerView recyclerView) {
+        recyclerView.addOnScrollListener(mScrollListener);
+    }
+
+    @Override
+    public void onDetachedFromRecyclerView(@NonNull RecyclerView recyclerView) {
+        recyclerView.removeOnScrollListener(mScrollListener);
+    }
+
+    /**
+     * Prefetch the art of the rows next to the visible ones in the scroll direction.
+     */
+    private void prefetch(RecyclerView recyclerView, int direction) {
+        if (!(recyclerView.getLayoutManager() instanceof LinearLayoutManager)) {
+            return;
+        }
+        LinearLayoutManager layoutManager =
+                (LinearLayoutManager) recyclerView.getLayoutManager();
+        int edge = direction > 0 ? layoutManager.findLastVisibleItemPosition()
+                : layoutManager.findFirstVisibleItemPosition();
+        if (edge == RecyclerView.NO_POSITION) {
+            return;
+        }
+        List<MediaBrowser.MediaItem> mediaItems = mDiffer.getCurrentList();
+        for (int i = 1; i <= PREFETCH_DISTANCE; i++) {
+            int position = edge + i * direction;
+            if (position < 0 || position >= mediaItems.size()) {
+                break;
+            }
+            mThumbnailLoader.prefetch(mediaItems.get(position).getDescription());
+        }
+    }
+
+    @Override
+    public long getItemId(int position) {
+        String mediaId = getItem(position).getMediaId();
+        Long id = mItemIds.get(mediaId);
+        if (id == null) {
+            id = (long) mItemIds.size();
+            mItemIds.put(mediaId, id);
         }
+        return id;
     }
 
     @Override
     public int getItemCount() {
-        return mMediaItems == null ? 0 : mMediaItems.size();
+        return mDiffer.getCurrentList().size();
     }
 
     class ViewHolder extends RecyclerView.ViewHolder {
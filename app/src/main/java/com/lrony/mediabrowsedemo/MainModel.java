@@ -10,7 +10,6 @@ import android.media.session.PlaybackState;
 import android.os.Bundle;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
-import android.text.TextUtils;
 import android.util.Log;
 
 import com.lrony.mediabrowsedemo.utils.MediaPlaybackService;
@@ -34,8 +33,6 @@ class MainModel {
     private MediaSubscriptionCallback mSubscriptionCallback;
     private MediaControllerCallback mMediaControllerCallback;
 
-    private String mMediaId;
-
     MainModel(Context context, MainInterface view) {
         mContext = context;
         mView = view;
@@ -69,13 +66,18 @@ class MainModel {
         }
     }
 
-    void requestData(String mediaId) {
-        Log.d(TAG, "requestData mediaId: " + mediaId);
-        if (!TextUtils.isEmpty(mMediaId)) {
-            mMediaBrowser.unsubscribe(mMediaId);
-        }
+    /**
+     * Subscribe to the children of a media id, the view gets them again whenever they change
+     * until {@link #unsubscribe} is called.
+     */
+    void subscribe(String mediaId) {
+        Log.d(TAG, "subscribe mediaId: " + mediaId);
         mMediaBrowser.subscribe(mediaId, mSubscriptionCallback);
-        mMediaId = mediaId;
+    }
+
+    void unsubscribe(String mediaId) {
+        Log.d(TAG, "unsubscribe mediaId: " + mediaId);
+        mMediaBrowser.unsubscribe(mediaId);
     }
 
     void playFromMediaId(String mediaId, Bundle extras) {
@@ -86,29 +88,6 @@ class MainModel {
         mMediaController.getTransportControls().playFromMediaId(mediaId, extras);
     }
 
-    long getPosition() {
-        if (mMediaController == null) {
-            return 0;
-        }
-        PlaybackState playbackState = mMediaController.getPlaybackState();
-        if (playbackState == null) {
-            return 0;
-        }
-        return playbackState.getPosition();
-    }
-
-    long getDuration() {
-        if (mMediaController == null) {
-            return 0;
-        }
-        MediaMetadata mediaMetadata = mMediaController.getMetadata();
-        if (mediaMetadata == null) {
-            Log.d(TAG, "getDuration mediaMetadata is null");
-            return 0;
-        }
-        return mediaMetadata.getLong(MediaMetadata.METADATA_KEY_DURATION);
-    }
-
     void playPause() {
         if (mMediaController == null) {
             return;
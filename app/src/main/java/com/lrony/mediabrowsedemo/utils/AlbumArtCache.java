@@ -17,15 +17,42 @@
 package com.lrony.mediabrowsedemo.utils;
 
 import android.annotation.SuppressLint;
+import android.content.Context;
 import android.graphics.Bitmap;
 import android.os.AsyncTask;
+import android.os.Process;
 import android.util.Log;
 import android.util.LruCache;
 
+import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Implements a basic cache of album arts, with async loading support.
+ * <p>
+ * Simultaneous requests of the same art share a single load, and loads run on a few
+ * background threads of their own, so a slow decode does not hold back the other arts nor
+ * the AsyncTasks of the app. Requests are made and answered on the main thread.
+ * <p>
+ * Behind the memory cache, a {@link DiskArtCache} keeps the scaled arts across restarts: a
+ * memory miss is read from it before the original is fetched and decoded again.
+ * <p>
+ * Evicted bitmaps go to the {@link BitmapPool} to be decoded into again, unless they are
+ * still retained: a bitmap kept beyond the {@link FetchListener} callback, e.g. in the
+ * metadata of a track, must be retained, and released once dropped.
  */
 public final class AlbumArtCache {
 
@@ -42,10 +69,48 @@ public final class AlbumArtCache {
     private static final int MAX_ART_WIDTH_ICON = 128; // pixels
     private static final int MAX_ART_HEIGHT_ICON = 128; // pixels
 
+    private static final String DISK_CACHE_DIR = "album_art";
+
     private static final int BIG_BITMAP_INDEX = 0;
     private static final int ICON_BITMAP_INDEX = 1;
 
+    // Loads running at once, more only compete for the network and the memory of the decode
+    private static final int MAX_LOADS = 2;
+    private static final int KEEP_ALIVE_SECONDS = 30;
+
+    private static final Executor LOAD_EXECUTOR;
+
+    static {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(MAX_LOADS, MAX_LOADS,
+                KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    private final AtomicInteger mCount = new AtomicInteger(1);
+
+                    @Override
+                    public Thread newThread(final Runnable r) {
+                        return new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                r.run();
+                            }
+                        }, "AlbumArtLoader #" + mCount.getAndIncrement());
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+        LOAD_EXECUTOR = executor;
+    }
+
     private final LruCache<String, Bitmap[]> mCache;
+    // Loads in flight by art url, main thread only
+    private final Map<String, Loader> mLoaders = new HashMap<>();
+    private volatile Context mContext;
+    private volatile DiskArtCache mDiskCache;
+    // Times each bitmap of the cache is retained, guarded by itself
+    private final Map<Bitmap, Integer> mRetained = new IdentityHashMap<>();
+    // Bitmaps evicted while retained, pooled once released
+    private final Set<Bitmap> mEvicted =
+            Collections.newSetFromMap(new IdentityHashMap<Bitmap, Boolean>());
 
     private static final AlbumArtCache sInstance = new AlbumArtCache();
 
@@ -61,12 +126,33 @@ public final class AlbumArtCache {
         mCache = new LruCache<String, Bitmap[]>(maxSize) {
             @Override
             protected int sizeOf(String key, Bitmap[] value) {
-                return value[BIG_BITMAP_INDEX].getByteCount()
-                        + value[ICON_BITMAP_INDEX].getByteCount();
+                Bitmap big = value[BIG_BITMAP_INDEX];
+                Bitmap icon = value[ICON_BITMAP_INDEX];
+                // The big image already was icon sized, and is the icon too
+                return icon == big
+                        ? big.getByteCount() : big.getByteCount() + icon.getByteCount();
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, String key, Bitmap[] oldValue,
+                                        Bitmap[] newValue) {
+                if (oldValue != newValue) {
+                    recycle(oldValue);
+                }
             }
         };
     }
 
+    /**
+     * Enable the disk cache, in the cache dir of the app, and loading local arts.
+     */
+    void initialize(Context context) {
+        mContext = context.getApplicationContext();
+        if (mDiskCache == null) {
+            mDiskCache = new DiskArtCache(new File(context.getCacheDir(), DISK_CACHE_DIR));
+        }
+    }
+
     public Bitmap getBigImage(String artUrl) {
         Bitmap[] result = mCache.get(artUrl);
         return result == null ? null : result[BIG_BITMAP_INDEX];
@@ -77,55 +163,229 @@ public final class AlbumArtCache {
         return result == null ? null : result[ICON_BITMAP_INDEX];
     }
 
-    @SuppressLint("StaticFieldLeak")
+    /**
+     * Get the big image of an art from the cache and retain it.
+     */
+    Bitmap retainBigImage(String artUrl) {
+        synchronized (mRetained) {
+            Bitmap[] result = mCache.get(artUrl);
+            if (result == null) {
+                return null;
+            }
+            retain(result[BIG_BITMAP_INDEX]);
+            return result[BIG_BITMAP_INDEX];
+        }
+    }
+
+    /**
+     * Keep a bitmap of the cache from being reused once evicted, until it is released.
+     */
+    void retain(Bitmap bitmap) {
+        synchronized (mRetained) {
+            Integer count = mRetained.get(bitmap);
+            mRetained.put(bitmap, count == null ? 1 : count + 1);
+        }
+    }
+
+    /**
+     * Release a bitmap retained with {@link #retain} or {@link #retainBigImage}, does nothing
+     * for other bitmaps.
+     */
+    void release(Bitmap bitmap) {
+        synchronized (mRetained) {
+            Integer count = mRetained.get(bitmap);
+            if (count == null) {
+                return;
+            }
+            if (count > 1) {
+                mRetained.put(bitmap, count - 1);
+                return;
+            }
+            mRetained.remove(bitmap);
+            if (mEvicted.remove(bitmap)) {
+                BitmapPool.getInstance().put(bitmap);
+            }
+        }
+    }
+
+    private void retain(Bitmap[] bitmaps) {
+        synchronized (mRetained) {
+            retain(bitmaps[BIG_BITMAP_INDEX]);
+            retain(bitmaps[ICON_BITMAP_INDEX]);
+        }
+    }
+
+    private void release(Bitmap[] bitmaps) {
+        synchronized (mRetained) {
+            release(bitmaps[BIG_BITMAP_INDEX]);
+            release(bitmaps[ICON_BITMAP_INDEX]);
+        }
+    }
+
+    private Bitmap[] retainEntry(String artUrl) {
+        synchronized (mRetained) {
+            Bitmap[] result = mCache.get(artUrl);
+            if (result != null) {
+                retain(result);
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Give the bitmaps of an entry removed from the cache to the pool, or have them pooled
+     * once released.
+     */
+    private void recycle(Bitmap[] bitmaps) {
+        synchronized (mRetained) {
+            for (int i = 0; i < bitmaps.length; i++) {
+                Bitmap bitmap = bitmaps[i];
+                if (i == ICON_BITMAP_INDEX && bitmap == bitmaps[BIG_BITMAP_INDEX]) {
+                    // The big image already was icon sized, and is the icon too
+                    continue;
+                }
+                if (mRetained.containsKey(bitmap)) {
+                    mEvicted.add(bitmap);
+                } else {
+                    BitmapPool.getInstance().put(bitmap);
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the art from the cache, or load it. A request of an art already being loaded joins
+     * that load instead of starting another one.
+     */
     void fetch(final String artUrl, final FetchListener listener) {
-        // WARNING: for the sake of simplicity, simultaneous multi-thread fetch requests
-        // are not handled properly: they may cause redundant costly operations, like HTTP
-        // requests and bitmap rescales. For production-level apps, we recommend you use
-        // a proper image loading library, like Glide.
-        Bitmap[] bitmap = mCache.get(artUrl);
+        // Retained while the listener runs, so that a load evicting it meanwhile does not reuse
+        // it
+        Bitmap[] bitmap = retainEntry(artUrl);
         if (bitmap != null) {
             Log.d(TAG, "getOrFetch: album art is in cache, using it" + artUrl);
             listener.onFetched(artUrl, bitmap[BIG_BITMAP_INDEX], bitmap[ICON_BITMAP_INDEX]);
+            release(bitmap);
+            return;
+        }
+        Loader loader = mLoaders.get(artUrl);
+        if (loader != null) {
+            Log.d(TAG, "getOrFetch: joining the load of " + artUrl);
+            if (!loader.mListeners.contains(listener)) {
+                loader.mListeners.add(listener);
+            }
             return;
         }
         Log.d(TAG, "getOrFetch: starting asynctask to fetch " + artUrl);
+        loader = new Loader(artUrl);
+        loader.mListeners.add(listener);
+        mLoaders.put(artUrl, loader);
+        loader.executeOnExecutor(LOAD_EXECUTOR);
+    }
 
-        new AsyncTask<Void, Void, Bitmap[]>() {
-            @Override
-            protected Bitmap[] doInBackground(Void[] objects) {
-                Bitmap[] bitmaps;
-                try {
-                    Bitmap bitmap = BitmapHelper.fetchAndRescaleBitmap(
-                            artUrl, MAX_ART_WIDTH, MAX_ART_HEIGHT);
-                    Bitmap icon = BitmapHelper.scaleBitmap(
-                            bitmap, MAX_ART_WIDTH_ICON, MAX_ART_HEIGHT_ICON);
-                    bitmaps = new Bitmap[]{bitmap, icon};
-                    mCache.put(artUrl, bitmaps);
-                } catch (IOException e) {
+    /**
+     * Withdraw a request made with {@link #fetch}. The load is cancelled if nothing else
+     * waits for it.
+     */
+    void cancel(String artUrl, FetchListener listener) {
+        Loader loader = mLoaders.get(artUrl);
+        if (loader == null || !loader.mListeners.remove(listener)) {
+            return;
+        }
+        if (loader.mListeners.isEmpty()) {
+            Log.d(TAG, "cancel: nothing waits for " + artUrl + " anymore");
+            mLoaders.remove(artUrl);
+            loader.cancel(false);
+        }
+    }
+
+    @SuppressLint("StaticFieldLeak")
+    private class Loader extends AsyncTask<Void, Void, Bitmap[]> {
+
+        private final String mArtUrl;
+        private final List<FetchListener> mListeners = new ArrayList<>(1);
+
+        Loader(String artUrl) {
+            mArtUrl = artUrl;
+        }
+
+        @Override
+        protected Bitmap[] doInBackground(Void[] objects) {
+            DiskArtCache diskCache = mDiskCache;
+            Bitmap[] bitmaps = diskCache != null ? diskCache.get(mArtUrl) : null;
+            if (bitmaps != null) {
+                Log.d(TAG, "doInBackground: album art is in the disk cache " + mArtUrl);
+                // Until the listeners have been called
+                retain(bitmaps);
+                mCache.put(mArtUrl, bitmaps);
+                return bitmaps;
+            }
+            if (isCancelled()) {
+                // Do not tie up a load thread with a decode nothing waits for
+                return null;
+            }
+            try {
+                Bitmap bitmap = BitmapHelper.decodeBitmap(
+                        mContext, mArtUrl, MAX_ART_WIDTH, MAX_ART_HEIGHT);
+                if (isCancelled()) {
+                    BitmapPool.getInstance().put(bitmap);
                     return null;
                 }
-                Log.d(TAG,
-                        "doInBackground: putting bitmap in cache. cache size=" + mCache.size());
-                return bitmaps;
+                Bitmap icon = BitmapHelper.scaleBitmap(
+                        bitmap, MAX_ART_WIDTH_ICON, MAX_ART_HEIGHT_ICON);
+                bitmaps = new Bitmap[]{bitmap, icon};
+                // Until the listeners have been called
+                retain(bitmaps);
+                mCache.put(mArtUrl, bitmaps);
+                if (diskCache != null) {
+                    diskCache.put(mArtUrl, bitmap, icon);
+                }
+            } catch (IOException e) {
+                return null;
             }
+            Log.d(TAG,
+                    "doInBackground: putting bitmap in cache. cache size=" + mCache.size());
+            return bitmaps;
+        }
 
-            @Override
-            protected void onPostExecute(Bitmap[] bitmaps) {
-                if (bitmaps == null) {
-                    listener.onError(artUrl, new IllegalArgumentException("got null bitmaps"));
+        @Override
+        protected void onPostExecute(Bitmap[] bitmaps) {
+            if (mLoaders.get(mArtUrl) == this) {
+                mLoaders.remove(mArtUrl);
+            }
+            for (FetchListener listener : mListeners) {
+                if (!listener.isWanted(mArtUrl)) {
+                    Log.d(TAG, "onPostExecute: the art is not wanted anymore " + mArtUrl);
+                } else if (bitmaps == null) {
+                    listener.onError(mArtUrl, new IllegalArgumentException("got null bitmaps"));
                 } else {
                     listener.onFetched(
-                            artUrl, bitmaps[BIG_BITMAP_INDEX], bitmaps[ICON_BITMAP_INDEX]);
+                            mArtUrl, bitmaps[BIG_BITMAP_INDEX], bitmaps[ICON_BITMAP_INDEX]);
                 }
             }
+            if (bitmaps != null) {
+                release(bitmaps);
+            }
+        }
+
+        @Override
+        protected void onCancelled(Bitmap[] bitmaps) {
+            if (bitmaps != null) {
+                release(bitmaps);
+            }
         }
-                .execute();
     }
 
     public static abstract class FetchListener {
         public abstract void onFetched(String artUrl, Bitmap bigImage, Bitmap iconImage);
 
+        /**
+         * @return whether the art is still wanted when it is loaded, false if e.g. it was for a
+         * track that is not playing anymore.
+         */
+        boolean isWanted(String artUrl) {
+            return true;
+        }
+
         void onError(String artUrl, Exception e) {
             Log.d(TAG, e + "AlbumArtFetchListener: error while downloading " + artUrl);
         }
@@ -15,22 +15,37 @@
  */
 package com.lrony.mediabrowsedemo.utils;
 
+import android.content.ContentResolver;
+import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.net.Uri;
+import android.os.SystemClock;
 import android.util.Log;
 
-import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
 
+/**
+ * Art decoding: the bounds of the image are read first, then it is decoded with the largest
+ * power of two sample size that keeps it at least as big as the requested box, and scaled the
+ * rest of the way by the decoder itself. The full size image is never allocated.
+ * <p>
+ * Decodes go into a bitmap of the {@link BitmapPool} when it has one big enough, and produce
+ * mutable bitmaps so that they can go back to the pool once released.
+ */
 class BitmapHelper {
 
     private static final String TAG = "BitmapHelper";
 
-    // Max read limit that we allow our input stream to mark/reset.
-    private static final int MAX_READ_LIMIT_PER_IMG = 1024 * 1024;
+    // Upper bound of an art downloaded to memory, anything bigger is not an album art.
+    private static final int MAX_DOWNLOAD_SIZE = 8 * 1024 * 1024;
+
+    private static final String SCHEME_HTTP = "http";
+    private static final String SCHEME_HTTPS = "https";
 
     static Bitmap scaleBitmap(Bitmap src, int maxWidth, int maxHeight) {
         double scaleFactor = Math.min(
@@ -39,47 +54,227 @@ class BitmapHelper {
                 (int) (src.getHeight() * scaleFactor), false);
     }
 
-    private static Bitmap scaleBitmap(int scaleFactor, InputStream is) {
-        // Get the dimensions of the bitmap
-        BitmapFactory.Options bmOptions = new BitmapFactory.Options();
+    /**
+     * @return the largest power of two sample size that keeps an image of the given size at
+     * least as big as its fit in the requested box, 1 if it already fits.
+     */
+    static int calculateInSampleSize(int width, int height, int reqWidth, int reqHeight) {
+        int sampleSize = 1;
+        if (width <= 0 || height <= 0 || reqWidth <= 0 || reqHeight <= 0
+                || (width <= reqWidth && height <= reqHeight)) {
+            return sampleSize;
+        }
+        int fitWidth = getFitWidth(width, height, reqWidth, reqHeight);
+        int fitHeight = getFitHeight(width, height, reqWidth, reqHeight);
+        while (width / (sampleSize * 2) >= fitWidth && height / (sampleSize * 2) >= fitHeight) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
 
-        // Decode the image file into a Bitmap sized to fill the View
-        bmOptions.inJustDecodeBounds = false;
-        bmOptions.inSampleSize = scaleFactor;
+    /**
+     * @return the width of an image of the given size scaled to fit the box, keeping its
+     * aspect ratio.
+     */
+    static int getFitWidth(int width, int height, int reqWidth, int reqHeight) {
+        double scale = Math.min((double) reqWidth / width, (double) reqHeight / height);
+        return (int) Math.max(1, Math.min(Integer.MAX_VALUE, Math.round(width * scale)));
+    }
 
-        return BitmapFactory.decodeStream(is, null, bmOptions);
+    static int getFitHeight(int width, int height, int reqWidth, int reqHeight) {
+        double scale = Math.min((double) reqWidth / width, (double) reqHeight / height);
+        return (int) Math.max(1, Math.min(Integer.MAX_VALUE, Math.round(height * scale)));
     }
 
-    private static int findScaleFactor(int targetW, int targetH, InputStream is) {
-        // Get the dimensions of the bitmap
-        BitmapFactory.Options bmOptions = new BitmapFactory.Options();
-        bmOptions.inJustDecodeBounds = true;
-        BitmapFactory.decodeStream(is, null, bmOptions);
-        int actualW = bmOptions.outWidth;
-        int actualH = bmOptions.outHeight;
+    /**
+     * @return the inDensity scaling the image sampled by {@link #calculateInSampleSize} down
+     * to the fit size, with {@link #getFitWidth} as inTargetDensity, or 0 if the sampled image
+     * already fits.
+     */
+    static int getScaleDensity(int width, int height, int reqWidth, int reqHeight) {
+        int sampledWidth = width / calculateInSampleSize(width, height, reqWidth, reqHeight);
+        return sampledWidth > getFitWidth(width, height, reqWidth, reqHeight) ? sampledWidth : 0;
+    }
+
+    /**
+     * Decode an image held in a byte range at its own size.
+     *
+     * @return the bitmap, or null if the data is not an image.
+     */
+    static Bitmap decodeBitmap(byte[] data, int offset, int length) {
+        return decodeBitmap(data, offset, length, Integer.MAX_VALUE, Integer.MAX_VALUE);
+    }
 
-        // Determine how much to scale down the image
-        return Math.min(actualW / targetW, actualH / targetH);
+    /**
+     * Decode an image held in a byte range, e.g. the picture embedded in a track, no bigger
+     * than the box.
+     *
+     * @return the bitmap, or null if the data is not an image.
+     */
+    static Bitmap decodeBitmap(byte[] data, int offset, int length, int maxWidth,
+                               int maxHeight) {
+        long start = SystemClock.elapsedRealtime();
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(data, offset, length, options);
+        if (!prepareDecode(options, maxWidth, maxHeight)) {
+            return null;
+        }
+        Bitmap bitmap;
+        try {
+            bitmap = BitmapFactory.decodeByteArray(data, offset, length, options);
+        } catch (IllegalArgumentException e) {
+            // The bitmap of the pool does not suit this image
+            releaseInBitmap(options);
+            bitmap = BitmapFactory.decodeByteArray(data, offset, length, options);
+        }
+        onDecoded(options, bitmap, start);
+        return bitmap;
     }
 
-    @SuppressWarnings("SameParameterValue")
-    static Bitmap fetchAndRescaleBitmap(String uri, int width, int height)
+    /**
+     * Decode an image from a content, file, android.resource or http(s) uri, or a path, no
+     * bigger than the box.
+     *
+     * @param context to open local uris, may be null for remote ones.
+     */
+    static Bitmap decodeBitmap(Context context, String uri, int maxWidth, int maxHeight)
             throws IOException {
-        URL url = new URL(uri);
-        BufferedInputStream is = null;
+        Uri parsed = Uri.parse(uri);
+        String scheme = parsed.getScheme();
+        if (SCHEME_HTTP.equalsIgnoreCase(scheme) || SCHEME_HTTPS.equalsIgnoreCase(scheme)) {
+            byte[] data = download(uri);
+            Bitmap bitmap = decodeBitmap(data, 0, data.length, maxWidth, maxHeight);
+            if (bitmap == null) {
+                throw new IOException("cannot decode " + uri);
+            }
+            return bitmap;
+        }
+        if (scheme == null) {
+            parsed = Uri.parse(ContentResolver.SCHEME_FILE + "://" + uri);
+        }
+        if (context == null) {
+            throw new IOException("no context to open " + uri);
+        }
+        ContentResolver resolver = context.getContentResolver();
+        long start = SystemClock.elapsedRealtime();
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        // Local files are opened twice rather than buffered to be read again
+        InputStream in = resolver.openInputStream(parsed);
         try {
-            HttpURLConnection urlConnection = (HttpURLConnection) url.openConnection();
-            is = new BufferedInputStream(urlConnection.getInputStream());
-            is.mark(MAX_READ_LIMIT_PER_IMG);
-            int scaleFactor = findScaleFactor(width, height, is);
-            Log.d(TAG, "Scaling bitmap " + uri + " by factor " + scaleFactor + " to support " +
-                    width + "x" + height + "requested dimension");
-            is.reset();
-            return scaleBitmap(scaleFactor, is);
+            BitmapFactory.decodeStream(in, null, options);
+        } finally {
+            in.close();
+        }
+        if (!prepareDecode(options, maxWidth, maxHeight)) {
+            throw new IOException("cannot decode " + uri);
+        }
+        Bitmap bitmap;
+        try {
+            bitmap = decodeStream(resolver, parsed, options);
+        } catch (IllegalArgumentException e) {
+            // The bitmap of the pool does not suit this image
+            releaseInBitmap(options);
+            bitmap = decodeStream(resolver, parsed, options);
+        }
+        onDecoded(options, bitmap, start);
+        if (bitmap == null) {
+            throw new IOException("cannot decode " + uri);
+        }
+        return bitmap;
+    }
+
+    private static Bitmap decodeStream(ContentResolver resolver, Uri uri,
+                                       BitmapFactory.Options options) throws IOException {
+        InputStream in = resolver.openInputStream(uri);
+        try {
+            return BitmapFactory.decodeStream(in, null, options);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Turn options holding the bounds of an image into options decoding it to fit the box.
+     *
+     * @return false if the bounds could not be read.
+     */
+    private static boolean prepareDecode(BitmapFactory.Options options, int maxWidth,
+                                         int maxHeight) {
+        int width = options.outWidth;
+        int height = options.outHeight;
+        if (width <= 0 || height <= 0) {
+            return false;
+        }
+        int sampleSize = calculateInSampleSize(width, height, maxWidth, maxHeight);
+        int density = getScaleDensity(width, height, maxWidth, maxHeight);
+        int sampledWidth = width / sampleSize;
+        int sampledHeight = height / sampleSize;
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = sampleSize;
+        if (density > 0) {
+            // The decoder scales by inTargetDensity / inDensity while decoding
+            options.inScaled = true;
+            options.inDensity = density;
+            options.inTargetDensity = getFitWidth(width, height, maxWidth, maxHeight);
+            sampledWidth = options.inTargetDensity;
+            sampledHeight = getFitHeight(width, height, maxWidth, maxHeight);
+        }
+        // ARGB_8888, with a pixel of margin for the rounding of the decoder
+        long byteCount = 4L * (sampledWidth + 1) * (sampledHeight + 1);
+        options.inMutable = true;
+        options.inBitmap = byteCount <= Integer.MAX_VALUE
+                ? BitmapPool.getInstance().get((int) byteCount) : null;
+        return true;
+    }
+
+    private static void releaseInBitmap(BitmapFactory.Options options) {
+        BitmapPool.getInstance().put(options.inBitmap);
+        options.inBitmap = null;
+    }
+
+    private static void onDecoded(BitmapFactory.Options options, Bitmap bitmap, long start) {
+        if (options.inBitmap != null) {
+            if (bitmap == options.inBitmap) {
+                BitmapPool.getInstance().onRecycled(bitmap);
+            } else {
+                releaseInBitmap(options);
+            }
+        }
+        if (bitmap != null) {
+            Log.d(TAG, "decodeBitmap: " + options.outWidth + "x" + options.outHeight
+                    + " sampled by " + options.inSampleSize + " to " + bitmap.getWidth() + "x"
+                    + bitmap.getHeight() + ", " + bitmap.getByteCount() + " bytes in "
+                    + (SystemClock.elapsedRealtime() - start) + "ms"
+                    + (bitmap == options.inBitmap ? " into a pooled bitmap" : ""));
+        }
+    }
+
+    private static byte[] download(String uri) throws IOException {
+        HttpURLConnection urlConnection = (HttpURLConnection) new URL(uri).openConnection();
+        InputStream in = null;
+        try {
+            int length = urlConnection.getContentLength();
+            if (length > MAX_DOWNLOAD_SIZE) {
+                throw new IOException("too big " + length + " " + uri);
+            }
+            in = urlConnection.getInputStream();
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(length > 0 ? length : 65536);
+            byte[] buffer = new byte[16 * 1024];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                bytes.write(buffer, 0, read);
+                if (bytes.size() > MAX_DOWNLOAD_SIZE) {
+                    throw new IOException("too big " + uri);
+                }
+            }
+            return bytes.toByteArray();
         } finally {
-            if (is != null) {
-                is.close();
+            if (in != null) {
+                in.close();
             }
+            urlConnection.disconnect();
         }
     }
 }
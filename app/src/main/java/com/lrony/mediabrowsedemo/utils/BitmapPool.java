@@ -0,0 +1,139 @@
+package com.lrony.mediabrowsedemo.utils;
+
+import android.graphics.Bitmap;
+import android.util.Log;
+import android.util.SparseArray;
+
+import java.util.ArrayDeque;
+import java.util.Locale;
+
+/**
+ * Bitmaps nothing refers to anymore, kept to be decoded into with
+ * {@link android.graphics.BitmapFactory.Options#inBitmap} instead of allocating new ones.
+ * <p>
+ * Bitmaps are bucketed by the power of two above their allocation size, and a request is
+ * served from its own bucket or the next one, so a small art does not pin a big bitmap. Once
+ * the pool holds MAX_SIZE bytes the bitmaps of the biggest bucket are dropped first. Hits,
+ * misses and the bytes decoded into reused bitmaps are counted to check the effect.
+ */
+class BitmapPool {
+
+    private static final String TAG = "BitmapPool";
+
+    private static final int MAX_SIZE = 4 * 1024 * 1024; // 4 MB
+
+    private static final BitmapPool sInstance = new BitmapPool();
+
+    // Bitmaps by the log2 of the power of two above their allocation size, guarded by this
+    private final SparseArray<ArrayDeque<Bitmap>> mBuckets = new SparseArray<>();
+    private long mSize;
+
+    private int mHitCount;
+    private int mMissCount;
+    private int mPutCount;
+    private long mBytesRecycled;
+
+    static BitmapPool getInstance() {
+        return sInstance;
+    }
+
+    private BitmapPool() {
+    }
+
+    /**
+     * Give a bitmap to the pool. The caller must not use it anymore.
+     */
+    synchronized void put(Bitmap bitmap) {
+        if (bitmap == null || !bitmap.isMutable() || bitmap.isRecycled()) {
+            return;
+        }
+        int byteCount = bitmap.getAllocationByteCount();
+        if (byteCount > MAX_SIZE / 2) {
+            return;
+        }
+        int bucket = getBucket(byteCount);
+        ArrayDeque<Bitmap> bitmaps = mBuckets.get(bucket);
+        if (bitmaps == null) {
+            bitmaps = new ArrayDeque<>();
+            mBuckets.put(bucket, bitmaps);
+        }
+        bitmaps.addLast(bitmap);
+        mSize += byteCount;
+        mPutCount++;
+        trimToSize();
+    }
+
+    /**
+     * @return a bitmap of at least byteCount bytes to decode into, taken out of the pool, or
+     * null if there is none.
+     */
+    synchronized Bitmap get(int byteCount) {
+        int bucket = getBucket(byteCount);
+        for (int i = bucket; i <= bucket + 1; i++) {
+            ArrayDeque<Bitmap> bitmaps = mBuckets.get(i);
+            if (bitmaps == null) {
+                continue;
+            }
+            for (Bitmap bitmap : bitmaps) {
+                if (bitmap.getAllocationByteCount() >= byteCount) {
+                    bitmaps.remove(bitmap);
+                    mSize -= bitmap.getAllocationByteCount();
+                    mHitCount++;
+                    return bitmap;
+                }
+            }
+        }
+        mMissCount++;
+        return null;
+    }
+
+    /**
+     * Count a successful decode into a bitmap of the pool.
+     */
+    synchronized void onRecycled(Bitmap bitmap) {
+        mBytesRecycled += bitmap.getByteCount();
+    }
+
+    synchronized int getHitCount() {
+        return mHitCount;
+    }
+
+    synchronized int getMissCount() {
+        return mMissCount;
+    }
+
+    synchronized float getHitRate() {
+        int requests = mHitCount + mMissCount;
+        return requests == 0 ? 0 : (float) mHitCount / requests;
+    }
+
+    synchronized long getBytesRecycled() {
+        return mBytesRecycled;
+    }
+
+    synchronized long getSize() {
+        return mSize;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.US,
+                "BitmapPool[size=%d, puts=%d, hits=%d, misses=%d, hitRate=%.2f, recycled=%d]",
+                mSize, mPutCount, mHitCount, mMissCount, getHitRate(), mBytesRecycled);
+    }
+
+    private void trimToSize() {
+        for (int i = mBuckets.size() - 1; i >= 0 && mSize > MAX_SIZE; i--) {
+            ArrayDeque<Bitmap> bitmaps = mBuckets.valueAt(i);
+            while (mSize > MAX_SIZE && !bitmaps.isEmpty()) {
+                Bitmap bitmap = bitmaps.removeFirst();
+                mSize -= bitmap.getAllocationByteCount();
+                Log.d(TAG, "trimToSize: dropping " + bitmap.getAllocationByteCount() + " bytes");
+            }
+        }
+    }
+
+    private static int getBucket(int byteCount) {
+        return 32 - Integer.numberOfLeadingZeros(Math.max(1, byteCount) - 1);
+    }
+}
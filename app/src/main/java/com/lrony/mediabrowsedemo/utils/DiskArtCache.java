@@ -0,0 +1,398 @@
+package com.lrony.mediabrowsedemo.utils;
+
+import android.graphics.Bitmap;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Disk tier of the {@link AlbumArtCache}: the big and icon variants of an art, already scaled
+ * and compressed, in one file per art.
+ * <p>
+ * Entries are kept in LRU order by a binary journal of put, read and remove records, replayed
+ * when the cache is first used, and the least recently used entries are deleted once the files
+ * exceed MAX_SIZE. An entry is written to a temporary file and renamed before its put record is
+ * appended, so a crash leaves at worst an orphan file, deleted on the next open, or a truncated
+ * last record. Replay stops at a truncated or invalid record and the journal is then rewritten
+ * from the entries read so far, so no later record is appended after partial bytes. The journal
+ * is also rewritten once it holds mostly stale records.
+ * <p>
+ * Thread safe: files are read and encoded outside of the lock, an entry evicted meanwhile is
+ * simply a miss.
+ */
+class DiskArtCache {
+
+    private static final String TAG = "DiskArtCache";
+
+    private static final String JOURNAL_FILE_NAME = "journal";
+    private static final String ENTRY_SUFFIX = ".art";
+    private static final String TMP_SUFFIX = ".tmp";
+    private static final int JOURNAL_MAGIC = 0x41524a4e; // "ARJN"
+    private static final int ENTRY_MAGIC = 0x41525445; // "ARTE"
+    private static final int VERSION = 1;
+
+    private static final byte OP_PUT = 1;
+    private static final byte OP_READ = 2;
+    private static final byte OP_REMOVE = 3;
+
+    private static final long MAX_SIZE = 32 * 1024 * 1024; // 32 MB
+    // Upper bound of a sane entry, anything bigger means the file is corrupt.
+    private static final int MAX_ENTRY_SIZE = 4 * 1024 * 1024;
+    // Stale records tolerated in the journal before it is rewritten.
+    private static final int MAX_REDUNDANT_RECORDS = 2000;
+    private static final int JPEG_QUALITY = 85;
+
+    private final File mDir;
+    private final File mJournalFile;
+
+    // Size of the entry files by key, in access order, guarded by this.
+    private final LinkedHashMap<Long, Integer> mEntries = new LinkedHashMap<>(64, 0.75f, true);
+    private long mSize;
+    private boolean mOpened;
+    private DataOutputStream mJournal;
+    private int mJournalRecords;
+
+    DiskArtCache(File dir) {
+        mDir = dir;
+        mJournalFile = new File(dir, JOURNAL_FILE_NAME);
+    }
+
+    /**
+     * @return the big and icon variants of an art, or null if it is not in the cache.
+     */
+    Bitmap[] get(String artUrl) {
+        long key = getKey(artUrl);
+        synchronized (this) {
+            open();
+            if (mEntries.get(key) == null) {
+                return null;
+            }
+            appendRecord(OP_READ, key, 0);
+        }
+        File file = getEntryFile(key);
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != ENTRY_MAGIC || in.readInt() != VERSION
+                    || !artUrl.equals(in.readUTF())) {
+                // Hash collision or an older format, the caller will overwrite it.
+                return null;
+            }
+            Bitmap big = readBitmap(in);
+            Bitmap icon = readBitmap(in);
+            if (big == null || icon == null) {
+                throw new IOException("undecodable art");
+            }
+            return new Bitmap[]{big, icon};
+        } catch (IOException e) {
+            Log.d(TAG, "get: unreadable " + file + " " + e);
+            remove(key);
+            return null;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    void put(String artUrl, Bitmap big, Bitmap icon) {
+        long key = getKey(artUrl);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(ENTRY_MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(artUrl);
+            writeBitmap(out, big);
+            writeBitmap(out, icon);
+        } catch (IOException e) {
+            // Cannot happen when writing to memory
+            throw new IllegalStateException(e);
+        }
+
+        File tmpFile = new File(mDir, Long.toHexString(key) + TMP_SUFFIX);
+        FileOutputStream out = null;
+        try {
+            if (!mDir.isDirectory() && !mDir.mkdirs()) {
+                throw new IOException("cannot create " + mDir);
+            }
+            out = new FileOutputStream(tmpFile);
+            bytes.writeTo(out);
+        } catch (IOException e) {
+            Log.w(TAG, "put: failed to write " + tmpFile, e);
+            closeQuietly(out);
+            tmpFile.delete();
+            return;
+        } finally {
+            closeQuietly(out);
+        }
+
+        synchronized (this) {
+            open();
+            if (!tmpFile.renameTo(getEntryFile(key))) {
+                Log.w(TAG, "put: failed to rename " + tmpFile);
+                tmpFile.delete();
+                return;
+            }
+            Integer previous = mEntries.put(key, bytes.size());
+            if (previous != null) {
+                mSize -= previous;
+            }
+            mSize += bytes.size();
+            appendRecord(OP_PUT, key, bytes.size());
+            trimToSize();
+        }
+    }
+
+    private synchronized void remove(long key) {
+        Integer size = mEntries.remove(key);
+        if (size != null) {
+            mSize -= size;
+            getEntryFile(key).delete();
+            appendRecord(OP_REMOVE, key, 0);
+        }
+    }
+
+    private void trimToSize() {
+        Iterator<Map.Entry<Long, Integer>> it = mEntries.entrySet().iterator();
+        while (mSize > MAX_SIZE && it.hasNext()) {
+            Map.Entry<Long, Integer> eldest = it.next();
+            it.remove();
+            mSize -= eldest.getValue();
+            getEntryFile(eldest.getKey()).delete();
+            appendRecord(OP_REMOVE, eldest.getKey(), 0);
+        }
+    }
+
+    /**
+     * Replay the journal and delete the files it does not know of, once.
+     */
+    private void open() {
+        if (mOpened) {
+            return;
+        }
+        mOpened = true;
+        int records = readJournal();
+        mJournalRecords = Math.max(0, records);
+
+        File[] files = mDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                if (!name.equals(JOURNAL_FILE_NAME) && !isKnownEntry(name)) {
+                    Log.d(TAG, "open: deleting orphan " + file);
+                    file.delete();
+                }
+            }
+        }
+        Iterator<Map.Entry<Long, Integer>> it = mEntries.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Long, Integer> entry = it.next();
+            if (!getEntryFile(entry.getKey()).isFile()) {
+                it.remove();
+                mSize -= entry.getValue();
+            }
+        }
+        trimToSize();
+        if (records < 0 || mJournalRecords - mEntries.size() > MAX_REDUNDANT_RECORDS) {
+            rewriteJournal();
+        } else {
+            openJournal();
+        }
+        Log.d(TAG, "open: " + mEntries.size() + " arts, " + mSize + " bytes");
+    }
+
+    /**
+     * @return the number of records read, -1 if the journal is missing, unreadable, or ends
+     * with a truncated or invalid record, in which case it must be rewritten.
+     */
+    private int readJournal() {
+        if (!mJournalFile.isFile()) {
+            return -1;
+        }
+        DataInputStream in = null;
+        int count = 0;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mJournalFile)));
+            if (in.readInt() != JOURNAL_MAGIC || in.readInt() != VERSION) {
+                Log.d(TAG, "readJournal: unknown format " + mJournalFile);
+                return -1;
+            }
+            int op;
+            // A clean end of the journal is on a record boundary
+            while ((op = in.read()) >= 0) {
+                long key = in.readLong();
+                int size = in.readInt();
+                Integer previous;
+                switch (op) {
+                    case OP_PUT:
+                        if (size <= 0 || size > MAX_ENTRY_SIZE) {
+                            Log.d(TAG, "readJournal: invalid size " + size + " after " + count);
+                            return -1;
+                        }
+                        previous = mEntries.put(key, size);
+                        mSize += size - (previous != null ? previous : 0);
+                        break;
+                    case OP_READ:
+                        mEntries.get(key);
+                        break;
+                    case OP_REMOVE:
+                        previous = mEntries.remove(key);
+                        mSize -= previous != null ? previous : 0;
+                        break;
+                    default:
+                        Log.d(TAG, "readJournal: invalid record " + op + " after " + count);
+                        return -1;
+                }
+                count++;
+            }
+        } catch (EOFException e) {
+            // The process died while appending the last record
+            Log.d(TAG, "readJournal: truncated record after " + count);
+            return -1;
+        } catch (IOException e) {
+            Log.d(TAG, "readJournal: unreadable " + mJournalFile + " " + e);
+            return -1;
+        } finally {
+            closeQuietly(in);
+        }
+        return count;
+    }
+
+    /**
+     * Write a journal of the entries alone, in LRU order, and replace the current one.
+     */
+    private void rewriteJournal() {
+        closeQuietly(mJournal);
+        mJournal = null;
+        File tmpFile = new File(mDir, JOURNAL_FILE_NAME + TMP_SUFFIX);
+        DataOutputStream out = null;
+        try {
+            if (!mDir.isDirectory() && !mDir.mkdirs()) {
+                throw new IOException("cannot create " + mDir);
+            }
+            out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(tmpFile)));
+            out.writeInt(JOURNAL_MAGIC);
+            out.writeInt(VERSION);
+            for (Map.Entry<Long, Integer> entry : mEntries.entrySet()) {
+                out.writeByte(OP_PUT);
+                out.writeLong(entry.getKey());
+                out.writeInt(entry.getValue());
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "rewriteJournal: failed to write " + tmpFile, e);
+            return;
+        } finally {
+            closeQuietly(out);
+        }
+        if (!tmpFile.renameTo(mJournalFile)) {
+            Log.w(TAG, "rewriteJournal: failed to rename " + tmpFile);
+            return;
+        }
+        mJournalRecords = mEntries.size();
+        openJournal();
+    }
+
+    private void openJournal() {
+        try {
+            mJournal = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(mJournalFile, true)));
+        } catch (IOException e) {
+            Log.w(TAG, "openJournal: failed to open " + mJournalFile, e);
+        }
+    }
+
+    private void appendRecord(byte op, long key, int size) {
+        if (mJournalRecords - mEntries.size() >= MAX_REDUNDANT_RECORDS) {
+            // The entries already include this record
+            rewriteJournal();
+            return;
+        }
+        if (mJournal == null) {
+            // Without a journal the entries are lost on the next open, and deleted as orphans
+            return;
+        }
+        try {
+            mJournal.writeByte(op);
+            mJournal.writeLong(key);
+            mJournal.writeInt(size);
+            mJournal.flush();
+            mJournalRecords++;
+        } catch (IOException e) {
+            Log.w(TAG, "appendRecord: failed to write " + mJournalFile, e);
+            closeQuietly(mJournal);
+            mJournal = null;
+        }
+    }
+
+    private boolean isKnownEntry(String fileName) {
+        if (!fileName.endsWith(ENTRY_SUFFIX)) {
+            return false;
+        }
+        try {
+            long key = Long.parseLong(
+                    fileName.substring(0, fileName.length() - ENTRY_SUFFIX.length()), 16);
+            return mEntries.containsKey(key);
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    private File getEntryFile(long key) {
+        return new File(mDir, Long.toHexString(key) + ENTRY_SUFFIX);
+    }
+
+    /**
+     * @return a 64-bit FNV-1a hash of the url, the url itself is kept in the entry to tell
+     * collisions apart.
+     */
+    static long getKey(String artUrl) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < artUrl.length(); i++) {
+            hash ^= artUrl.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    private static void writeBitmap(DataOutputStream out, Bitmap bitmap) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        // Art is opaque but for the odd PNG, which would lose its transparency in a JPEG
+        bitmap.compress(bitmap.hasAlpha() ? Bitmap.CompressFormat.PNG
+                : Bitmap.CompressFormat.JPEG, JPEG_QUALITY, bytes);
+        out.writeInt(bytes.size());
+        bytes.writeTo(out);
+    }
+
+    private static Bitmap readBitmap(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length <= 0 || length > MAX_ENTRY_SIZE) {
+            throw new IOException("invalid length " + length);
+        }
+        byte[] data = new byte[length];
+        in.readFully(data);
+        return BitmapHelper.decodeBitmap(data, 0, length);
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+}
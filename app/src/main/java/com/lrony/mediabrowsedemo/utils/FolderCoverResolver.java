@@ -0,0 +1,82 @@
+package com.lrony.mediabrowsedemo.utils;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Finds the cover image ripping tools leave next to the tracks of an album, e.g. cover.jpg or
+ * Folder.jpg.
+ * <p>
+ * The folder of each track is listed once and its cover remembered, so the tracks of an
+ * album cost one lookup each. A resolver lives for one scan: covers added later are found by
+ * the next one.
+ */
+class FolderCoverResolver {
+
+    // By preference, matched case-insensitively
+    private static final String[] COVER_NAMES = {"cover", "folder", "front", "album", "albumart"};
+    private static final String[] COVER_EXTENSIONS = {".jpg", ".jpeg", ".png", ".webp"};
+
+    // Folder path --> cover path, null if the folder has none
+    private final Map<String, String> mCoverByFolder = new HashMap<>();
+    private int mListCount;
+
+    /**
+     * @return the path of the cover image in the folder, or null if there is none.
+     */
+    String getCover(String folderPath) {
+        if (mCoverByFolder.containsKey(folderPath)) {
+            return mCoverByFolder.get(folderPath);
+        }
+        String cover = findCover(folderPath);
+        mCoverByFolder.put(folderPath, cover);
+        return cover;
+    }
+
+    /**
+     * @return the number of folders listed so far.
+     */
+    int getListCount() {
+        return mListCount;
+    }
+
+    private String findCover(String folderPath) {
+        mListCount++;
+        String[] names = new File(folderPath).list();
+        if (names == null) {
+            return null;
+        }
+        String best = null;
+        int bestRank = Integer.MAX_VALUE;
+        for (String name : names) {
+            int rank = getRank(name);
+            if (rank < bestRank) {
+                best = name;
+                bestRank = rank;
+            }
+        }
+        return best != null ? folderPath + File.separator + best : null;
+    }
+
+    /**
+     * @return the preference of a file name as a cover, lower is better, MAX_VALUE if it is
+     * not one.
+     */
+    private static int getRank(String fileName) {
+        String name = fileName.toLowerCase(Locale.ROOT);
+        for (int i = 0; i < COVER_NAMES.length; i++) {
+            if (!name.startsWith(COVER_NAMES[i])) {
+                continue;
+            }
+            for (int j = 0; j < COVER_EXTENSIONS.length; j++) {
+                if (name.length() == COVER_NAMES[i].length() + COVER_EXTENSIONS[j].length()
+                        && name.endsWith(COVER_EXTENSIONS[j])) {
+                    return i * COVER_EXTENSIONS.length + j;
+                }
+            }
+        }
+        return Integer.MAX_VALUE;
+    }
+}
@@ -0,0 +1,186 @@
+package com.lrony.mediabrowsedemo.utils;
+
+/**
+ * The next-item half of gapless playback. A second player prepares the item set with
+ * {@link #setNextItem} while the current one plays, and is chained to the current one so it
+ * takes over without a gap when the current one completes. After the swap, the finished player
+ * is kept to prepare the item after that, so two players serve the whole queue.
+ * <p>
+ * The players are driven through a {@link Host}, MediaPlayer in the app. The current player is
+ * owned by the caller and passed in; it counts as prepared only when it is passed as
+ * preparedCurrent.
+ */
+class GaplessChain<P> {
+
+    interface Host<P> {
+        P createPlayer();
+
+        /**
+         * @return the source to prepare for a media id, or null if it is not known yet.
+         */
+        String getSource(String mediaId);
+
+        /**
+         * Reset the player and start preparing the source, onPrepared follows.
+         *
+         * @return false if the source could not be opened.
+         */
+        boolean prepareAsync(P player, String source);
+
+        /**
+         * Make next start when player completes, or nothing if next is null.
+         */
+        void setNextPlayer(P player, P next);
+
+        void reset(P player);
+
+        void release(P player);
+    }
+
+    private final Host<P> mHost;
+    private P mNextPlayer;
+    private String mNextMediaId;
+    private boolean mPreparing;
+    private boolean mPrepared;
+    private boolean mChained;
+
+    GaplessChain(Host<P> host) {
+        mHost = host;
+    }
+
+    /**
+     * Set the item to play after the current one, or null if playback should stop when the
+     * current one completes. The item is prepared as soon as the current one is prepared.
+     */
+    void setNextItem(String mediaId, P preparedCurrent) {
+        if (mediaId != null && mediaId.equals(mNextMediaId)) {
+            return;
+        }
+        release(preparedCurrent, false);
+        mNextMediaId = mediaId;
+        onCurrentPrepared(preparedCurrent);
+    }
+
+    String getNextMediaId() {
+        return mNextMediaId;
+    }
+
+    /**
+     * @return whether the next item is prepared and is the given one.
+     */
+    boolean isPrepared(String mediaId) {
+        return mPrepared && mediaId != null && mediaId.equals(mNextMediaId);
+    }
+
+    /**
+     * @return whether the next player takes over when the current one completes.
+     */
+    boolean isChained() {
+        return mChained;
+    }
+
+    /**
+     * Prepare the next item now that the current one is prepared, or chain it if it already is.
+     */
+    void onCurrentPrepared(P preparedCurrent) {
+        if (preparedCurrent == null || mNextMediaId == null) {
+            return;
+        }
+        if (mPrepared) {
+            chain(preparedCurrent);
+            return;
+        }
+        if (mPreparing) {
+            return;
+        }
+        String source = mHost.getSource(mNextMediaId);
+        if (source == null) {
+            // Not known until the catalog is loaded, played the regular way on completion.
+            return;
+        }
+        if (mNextPlayer == null) {
+            mNextPlayer = mHost.createPlayer();
+        }
+        mPreparing = mHost.prepareAsync(mNextPlayer, source);
+        if (!mPreparing) {
+            // Not fatal, the next item will be played the regular way on completion.
+            release(preparedCurrent, false);
+        }
+    }
+
+    /**
+     * @return whether the prepared player is the next one, which is then chained to the current
+     * one if that one is prepared.
+     */
+    boolean onPrepared(P player, P preparedCurrent) {
+        if (player != mNextPlayer || mNextPlayer == null) {
+            return false;
+        }
+        mPreparing = false;
+        mPrepared = true;
+        if (preparedCurrent != null) {
+            chain(preparedCurrent);
+        }
+        return true;
+    }
+
+    /**
+     * @return whether the failed player is the next one. Only the next item is dropped then,
+     * it will be played the regular way on completion.
+     */
+    boolean onError(P player, P current) {
+        if (player != mNextPlayer || mNextPlayer == null) {
+            return false;
+        }
+        release(current, false);
+        return true;
+    }
+
+    /**
+     * Make the prepared next player the current one, either because the current one completed
+     * and the chained next one took over, or because the next item was requested. The previous
+     * player is reset and kept to prepare the following item.
+     *
+     * @return the new current player.
+     */
+    P swap(P current) {
+        P next = mNextPlayer;
+        mNextPlayer = current;
+        mHost.reset(current);
+        mNextMediaId = null;
+        mPreparing = false;
+        mPrepared = false;
+        mChained = false;
+        return next;
+    }
+
+    /**
+     * Stop preparing the next item and detach it from the current player.
+     *
+     * @param releasePlayer whether the next player should also be released, or kept around
+     *                      for the next preparation.
+     */
+    void release(P current, boolean releasePlayer) {
+        if (mChained && current != null) {
+            mHost.setNextPlayer(current, null);
+        }
+        mChained = false;
+        mPreparing = false;
+        mPrepared = false;
+        mNextMediaId = null;
+        if (mNextPlayer != null) {
+            mHost.reset(mNextPlayer);
+            if (releasePlayer) {
+                mHost.release(mNextPlayer);
+                mNextPlayer = null;
+            }
+        }
+    }
+
+    private void chain(P preparedCurrent) {
+        if (!mChained) {
+            mHost.setNextPlayer(preparedCurrent, mNextPlayer);
+            mChained = true;
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package com.lrony.mediabrowsedemo.utils;
+
+import java.util.Arrays;
+
+/**
+ * Map from long keys to int values with open addressing over primitive arrays, so neither
+ * lookups nor insertions box or allocate per entry.
+ */
+class LongIntHashMap {
+
+    private static final float LOAD_FACTOR = 0.5f;
+
+    private final int mMissingValue;
+    private long[] mKeys;
+    private int[] mValues;
+    private boolean[] mUsed;
+    private int mSize;
+
+    /**
+     * @param expectedSize number of entries the map can hold without growing.
+     * @param missingValue value returned by {@link #get} for absent keys.
+     */
+    LongIntHashMap(int expectedSize, int missingValue) {
+        mMissingValue = missingValue;
+        allocate(capacityFor(expectedSize));
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    int get(long key) {
+        int mask = mKeys.length - 1;
+        for (int slot = hash(key) & mask; mUsed[slot]; slot = (slot + 1) & mask) {
+            if (mKeys[slot] == key) {
+                return mValues[slot];
+            }
+        }
+        return mMissingValue;
+    }
+
+    /**
+     * Associate value with key, replacing the previous value if any.
+     */
+    void put(long key, int value) {
+        int slot = findSlot(key);
+        if (!mUsed[slot]) {
+            if (mSize + 1 > mKeys.length * LOAD_FACTOR) {
+                grow();
+                slot = findSlot(key);
+            }
+            mUsed[slot] = true;
+            mKeys[slot] = key;
+            mSize++;
+        }
+        mValues[slot] = value;
+    }
+
+    /**
+     * Associate value with key, unless key is already present.
+     */
+    void putIfAbsent(long key, int value) {
+        if (!mUsed[findSlot(key)]) {
+            put(key, value);
+        }
+    }
+
+    /**
+     * Remove key if present. The entries probed after it are shifted back into the hole, so
+     * lookups never have to skip deleted slots.
+     */
+    void remove(long key) {
+        int mask = mKeys.length - 1;
+        int hole = findSlot(key);
+        if (!mUsed[hole]) {
+            return;
+        }
+        mUsed[hole] = false;
+        mSize--;
+        for (int slot = (hole + 1) & mask; mUsed[slot]; slot = (slot + 1) & mask) {
+            int home = hash(mKeys[slot]) & mask;
+            // The hole is on the probe path of this entry, from its home slot to here
+            if (((slot - home) & mask) >= ((slot - hole) & mask)) {
+                mKeys[hole] = mKeys[slot];
+                mValues[hole] = mValues[slot];
+                mUsed[hole] = true;
+                mUsed[slot] = false;
+                hole = slot;
+            }
+        }
+    }
+
+    void clear() {
+        Arrays.fill(mUsed, false);
+        mSize = 0;
+    }
+
+    private int findSlot(long key) {
+        int mask = mKeys.length - 1;
+        int slot = hash(key) & mask;
+        while (mUsed[slot] && mKeys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void grow() {
+        long[] keys = mKeys;
+        int[] values = mValues;
+        boolean[] used = mUsed;
+        allocate(keys.length * 2);
+        for (int i = 0; i < keys.length; i++) {
+            if (used[i]) {
+                int slot = findSlot(keys[i]);
+                mUsed[slot] = true;
+                mKeys[slot] = keys[i];
+                mValues[slot] = values[i];
+            }
+        }
+    }
+
+    private void allocate(int capacity) {
+        mKeys = new long[capacity];
+        mValues = new int[capacity];
+        mUsed = new boolean[capacity];
+    }
+
+    private static int capacityFor(int expectedSize) {
+        int capacity = 16;
+        while (capacity * LOAD_FACTOR < expectedSize) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+
+    private static int hash(long key) {
+        // Spread the bits of sequential ids (MediaStore _ID) over the table.
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
@@ -15,7 +15,9 @@ public class MediaIDHelper {
     public static final String MEDIA_ID_MUSICS_BY_ALBUM = "__BY_ALBUM__";
     public static final String MEDIA_ID_MUSICS_BY_SONG = "__BY_SONG__";
     public static final String MEDIA_ID_MUSICS_BY_FOLDER = "__BY_FOLDER__";
+    public static final String MEDIA_ID_MUSICS_BY_PLAYLIST = "__BY_PLAYLIST__";
     public static final String MEDIA_ID_MUSICS_BY_SEARCH = "__BY_SEARCH__";
+    public static final String MEDIA_ID_MUSICS_BY_SMART = "__SMART__";
 
     private static final char CATEGORY_SEPARATOR = 31;
     private static final char LEAF_SEPARATOR = 30;
@@ -33,16 +33,26 @@ import android.media.session.MediaController;
 import android.media.session.MediaSession;
 import android.media.session.PlaybackState;
 import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+import android.os.SystemClock;
 import android.support.annotation.RequiresApi;
 import android.util.Log;
 
 import com.lrony.mediabrowsedemo.MainActivity;
 import com.lrony.mediabrowsedemo.R;
 
+import java.util.Objects;
+
 /**
  * Keeps track of a notification and updates it automatically for a given
  * MediaSession. Maintaining a visible notification (usually) guarantees that the music service
  * won't be killed during playback.
+ * <p>
+ * Session callbacks only schedule an update: callbacks within UPDATE_DELAY of each other, e.g.
+ * while seeking or buffering, are coalesced into a single one, and the notification is only
+ * posted again if something it shows changed.
  */
 @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
 public class MediaNotificationManager extends BroadcastReceiver {
@@ -52,6 +62,12 @@ public class MediaNotificationManager extends BroadcastReceiver {
     private static final int NOTIFICATION_ID = 412;
     private static final int REQUEST_CODE = 100;
 
+    private static final int MSG_UPDATE_NOTIFICATION = 0;
+    // Session callbacks closer together than this are coalesced into one update.
+    private static final int UPDATE_DELAY = 100;
+    // Changes of the chronometer base smaller than this are not visible.
+    private static final int WHEN_TOLERANCE = 1000;
+
     public static final String ACTION_PAUSE = "com.android.music.pause";
     public static final String ACTION_PLAY = "com.android.music.play";
     public static final String ACTION_PREV = "com.android.music.prev";
@@ -71,6 +87,29 @@ public class MediaNotificationManager extends BroadcastReceiver {
     private PendingIntent mPlayIntent;
     private PendingIntent mPreviousIntent;
     private PendingIntent mNextIntent;
+    private PendingIntent mContentIntent;
+
+    // Placeholder art, decoded once
+    private Bitmap mDefaultArt;
+    // Art being fetched from the AlbumArtCache, so it is not requested again on each update
+    private String mFetchingArtUrl;
+
+    // What the posted notification shows, to skip updates that would not change it.
+    private CharSequence mShownTitle;
+    private CharSequence mShownSubtitle;
+    private Bitmap mShownArt;
+    private boolean mShownPlaying;
+    private long mShownActions;
+    private long mShownWhen;
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper()) {
+        @Override
+        public void handleMessage(Message msg) {
+            if (msg.what == MSG_UPDATE_NOTIFICATION) {
+                updateNotification();
+            }
+        }
+    };
 
     private int mNotificationColor;
 
@@ -95,6 +134,7 @@ public class MediaNotificationManager extends BroadcastReceiver {
                 new Intent(ACTION_PREV).setPackage(pkg), PendingIntent.FLAG_CANCEL_CURRENT);
         mNextIntent = PendingIntent.getBroadcast(mService, REQUEST_CODE,
                 new Intent(ACTION_NEXT).setPackage(pkg), PendingIntent.FLAG_CANCEL_CURRENT);
+        mContentIntent = createContentIntent();
 
         // Cancel all notifications to handle the case where the Service was killed and
         // restarted by the system.
@@ -112,7 +152,7 @@ public class MediaNotificationManager extends BroadcastReceiver {
             mPlaybackState = mController.getPlaybackState();
 
             // The notification must be updated after setting started to true
-            Notification notification = createNotification();
+            Notification notification = createNotification(true);
             if (notification != null) {
                 mController.registerCallback(mCb);
                 IntentFilter filter = new IntentFilter();
@@ -135,6 +175,10 @@ public class MediaNotificationManager extends BroadcastReceiver {
     public void stopNotification() {
         if (mStarted) {
             mStarted = false;
+            mHandler.removeMessages(MSG_UPDATE_NOTIFICATION);
+            cancelArtFetch();
+            AlbumArtCache.getInstance().release(mShownArt);
+            mShownArt = null;
             mController.unregisterCallback(mCb);
             try {
                 mNotificationManager.cancel(NOTIFICATION_ID);
@@ -205,10 +249,7 @@ public class MediaNotificationManager extends BroadcastReceiver {
                     || state.getState() == PlaybackState.STATE_NONE)) {
                 stopNotification();
             } else {
-                Notification notification = createNotification();
-                if (notification != null) {
-                    mNotificationManager.notify(NOTIFICATION_ID, notification);
-                }
+                scheduleUpdate();
             }
         }
 
@@ -216,10 +257,7 @@ public class MediaNotificationManager extends BroadcastReceiver {
         public void onMetadataChanged(MediaMetadata metadata) {
             mMetadata = metadata;
             Log.d(TAG, "Received new metadata " + metadata);
-            Notification notification = createNotification();
-            if (notification != null) {
-                mNotificationManager.notify(NOTIFICATION_ID, notification);
-            }
+            scheduleUpdate();
         }
 
         @Override
@@ -230,13 +268,57 @@ public class MediaNotificationManager extends BroadcastReceiver {
         }
     };
 
+    private void scheduleUpdate() {
+        if (!mHandler.hasMessages(MSG_UPDATE_NOTIFICATION)) {
+            mHandler.sendEmptyMessageDelayed(MSG_UPDATE_NOTIFICATION, UPDATE_DELAY);
+        }
+    }
+
+    private void updateNotification() {
+        if (!mStarted) {
+            return;
+        }
+        Notification notification = createNotification(false);
+        if (notification != null) {
+            mNotificationManager.notify(NOTIFICATION_ID, notification);
+        }
+    }
+
+    /**
+     * @param force whether to create the notification even if it would show the same as the
+     *              one posted last.
+     * @return the notification, or null if there is nothing to show or nothing changed.
+     */
     @TargetApi(Build.VERSION_CODES.O)
-    private Notification createNotification() {
+    private Notification createNotification(boolean force) {
         Log.d(TAG, "updateNotificationMetadata. mMetadata=" + mMetadata);
         if (mMetadata == null || mPlaybackState == null) {
             return null;
         }
 
+        MediaDescription description = mMetadata.getDescription();
+        // The art shown is retained until it is replaced
+        Bitmap art = getArt(description);
+        AlbumArtCache.getInstance().release(mShownArt);
+        boolean playing = mPlaybackState.getState() == PlaybackState.STATE_PLAYING;
+        long actions = mPlaybackState.getActions()
+                & (PlaybackState.ACTION_SKIP_TO_PREVIOUS | PlaybackState.ACTION_SKIP_TO_NEXT);
+        long when = playing && mPlaybackState.getPosition() >= 0
+                ? System.currentTimeMillis() - getCurrentPosition(mPlaybackState) : 0;
+        if (!force && Objects.equals(description.getTitle(), mShownTitle)
+                && Objects.equals(description.getSubtitle(), mShownSubtitle)
+                && art == mShownArt && playing == mShownPlaying && actions == mShownActions
+                && Math.abs(when - mShownWhen) < WHEN_TOLERANCE) {
+            Log.d(TAG, "createNotification: nothing visible changed");
+            return null;
+        }
+        mShownTitle = description.getTitle();
+        mShownSubtitle = description.getSubtitle();
+        mShownArt = art;
+        mShownPlaying = playing;
+        mShownActions = actions;
+        mShownWhen = when;
+
         Notification.Builder notificationBuilder = new Notification.Builder(mService, "music");
         int playPauseButtonPosition = 0;
 
@@ -260,24 +342,6 @@ public class MediaNotificationManager extends BroadcastReceiver {
                     mService.getString(R.string.usb_audio_skip_next), mNextIntent);
         }
 
-        MediaDescription description = mMetadata.getDescription();
-
-        String fetchArtUrl = null;
-        Bitmap art = null;
-        if (description.getIconUri() != null) {
-            // This sample assumes the iconUri will be a valid URL formatted String, but
-            // it can actually be any valid Android Uri formatted String.
-            // async fetch the album art icon
-            String artUrl = description.getIconUri().toString();
-            art = AlbumArtCache.getInstance().getBigImage(artUrl);
-            if (art == null) {
-                fetchArtUrl = artUrl;
-                // use a placeholder art while the remote art is being downloaded
-                art = BitmapFactory.decodeResource(
-                        mService.getResources(), R.drawable.ic_default_art);
-            }
-        }
-
         notificationBuilder
                 .setStyle(new Notification.MediaStyle()
                         .setShowActionsInCompactView(
@@ -288,19 +352,52 @@ public class MediaNotificationManager extends BroadcastReceiver {
                 .setSmallIcon(R.drawable.ic_notification)
                 .setVisibility(Notification.VISIBILITY_PRIVATE)
                 .setUsesChronometer(true)
-                .setContentIntent(createContentIntent())
+                .setContentIntent(mContentIntent)
                 .setContentTitle(description.getTitle())
                 .setContentText(description.getSubtitle())
                 .setLargeIcon(art);
 
-        setNotificationPlaybackState(notificationBuilder);
-        if (fetchArtUrl != null) {
-            fetchBitmapFromURLAsync(fetchArtUrl, notificationBuilder);
-        }
+        setNotificationPlaybackState(notificationBuilder, when);
 
         return notificationBuilder.build();
     }
 
+    /**
+     * @return the art of the track from the AlbumArtCache, retained, or a placeholder while
+     * it is being fetched, null if the track has no art.
+     */
+    private Bitmap getArt(MediaDescription description) {
+        if (description.getIconUri() == null) {
+            return null;
+        }
+        // This sample assumes the iconUri will be a valid URL formatted String, but
+        // it can actually be any valid Android Uri formatted String.
+        String artUrl = description.getIconUri().toString();
+        Bitmap art = AlbumArtCache.getInstance().retainBigImage(artUrl);
+        if (art != null) {
+            return art;
+        }
+        if (!artUrl.equals(mFetchingArtUrl)) {
+            cancelArtFetch();
+            mFetchingArtUrl = artUrl;
+            AlbumArtCache.getInstance().fetch(artUrl, mArtListener);
+        }
+        // use a placeholder art while the remote art is being downloaded
+        if (mDefaultArt == null) {
+            mDefaultArt = BitmapFactory.decodeResource(
+                    mService.getResources(), R.drawable.ic_default_art);
+        }
+        return mDefaultArt;
+    }
+
+    /**
+     * @return the playback position now, extrapolated from the last position update.
+     */
+    private static long getCurrentPosition(PlaybackState state) {
+        long elapsed = SystemClock.elapsedRealtime() - state.getLastPositionUpdateTime();
+        return state.getPosition() + (long) (elapsed * state.getPlaybackSpeed());
+    }
+
     private void addPlayPauseAction(Notification.Builder builder) {
         Log.d(TAG, "updatePlayPauseAction");
         String label;
@@ -318,18 +415,17 @@ public class MediaNotificationManager extends BroadcastReceiver {
         builder.addAction(new Notification.Action(icon, label, intent));
     }
 
-    private void setNotificationPlaybackState(Notification.Builder builder) {
+    private void setNotificationPlaybackState(Notification.Builder builder, long when) {
         Log.d(TAG, "updateNotificationPlaybackState. mPlaybackState=" + mPlaybackState);
         if (mPlaybackState == null || !mStarted) {
             Log.d(TAG, "updateNotificationPlaybackState. cancelling notification!");
             mService.stopForeground(true);
             return;
         }
-        if (mPlaybackState.getState() == PlaybackState.STATE_PLAYING
-                && mPlaybackState.getPosition() >= 0) {
+        if (when != 0) {
             Log.d(TAG, "updateNotificationPlaybackState. updating playback position to " +
-                    (System.currentTimeMillis() - mPlaybackState.getPosition()) / 1000 + " seconds");
-            builder.setWhen(System.currentTimeMillis() - mPlaybackState.getPosition())
+                    (System.currentTimeMillis() - when) / 1000 + " seconds");
+            builder.setWhen(when)
                     .setShowWhen(true)
                     .setUsesChronometer(true);
         } else {
@@ -341,19 +437,41 @@ public class MediaNotificationManager extends BroadcastReceiver {
         builder.setOngoing(mPlaybackState.getState() == PlaybackState.STATE_PLAYING);
     }
 
-    private void fetchBitmapFromURLAsync(
-            final String bitmapUrl, final Notification.Builder builder) {
-        AlbumArtCache.getInstance().fetch(bitmapUrl, new AlbumArtCache.FetchListener() {
-            @Override
-            public void onFetched(String artUrl, Bitmap bitmap, Bitmap icon) {
-                if (mMetadata != null && mMetadata.getDescription() != null
-                        && artUrl.equals(mMetadata.getDescription().getIconUri().toString())) {
-                    // If the media is still the same, update the notification:
-                    Log.d(TAG, "fetchBitmapFromURLAsync: set bitmap to " + artUrl);
-                    builder.setLargeIcon(bitmap);
-                    mNotificationManager.notify(NOTIFICATION_ID, builder.build());
-                }
-            }
-        });
+    private void cancelArtFetch() {
+        if (mFetchingArtUrl != null) {
+            AlbumArtCache.getInstance().cancel(mFetchingArtUrl, mArtListener);
+            mFetchingArtUrl = null;
+        }
+    }
+
+    private void onArtFetchDone(String artUrl) {
+        // Fetched again by getArt if the cache evicts it while the track is still shown
+        if (artUrl.equals(mFetchingArtUrl)) {
+            mFetchingArtUrl = null;
+        }
     }
+
+    private final AlbumArtCache.FetchListener mArtListener = new AlbumArtCache.FetchListener() {
+        @Override
+        public void onFetched(String artUrl, Bitmap bitmap, Bitmap icon) {
+            // Update the notification, the art is in the cache now:
+            Log.d(TAG, "onFetched: set bitmap to " + artUrl);
+            onArtFetchDone(artUrl);
+            scheduleUpdate();
+        }
+
+        @Override
+        void onError(String artUrl, Exception e) {
+            super.onError(artUrl, e);
+            onArtFetchDone(artUrl);
+        }
+
+        @Override
+        boolean isWanted(String artUrl) {
+            // If the media is still the same
+            return mStarted && mMetadata != null
+                    && mMetadata.getDescription().getIconUri() != null
+                    && artUrl.equals(mMetadata.getDescription().getIconUri().toString());
+        }
+    };
 }
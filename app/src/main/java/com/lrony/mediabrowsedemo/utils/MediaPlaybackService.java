@@ -10,6 +10,7 @@ import android.media.MediaMetadata;
 import android.media.browse.MediaBrowser;
 import android.media.session.MediaSession;
 import android.media.session.PlaybackState;
+import android.net.Uri;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
@@ -21,14 +22,24 @@ import android.util.Log;
 import com.lrony.mediabrowsedemo.MainActivity;
 import com.lrony.mediabrowsedemo.R;
 
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 
 import static com.lrony.mediabrowsedemo.utils.MediaIDHelper.MEDIA_ID_MUSICS_BY_ALBUM;
 import static com.lrony.mediabrowsedemo.utils.MediaIDHelper.MEDIA_ID_MUSICS_BY_ARTIST;
 import static com.lrony.mediabrowsedemo.utils.MediaIDHelper.MEDIA_ID_MUSICS_BY_FOLDER;
+import static com.lrony.mediabrowsedemo.utils.MediaIDHelper.MEDIA_ID_MUSICS_BY_PLAYLIST;
+import static com.lrony.mediabrowsedemo.utils.MediaIDHelper.MEDIA_ID_MUSICS_BY_SEARCH;
+import static com.lrony.mediabrowsedemo.utils.MediaIDHelper.MEDIA_ID_MUSICS_BY_SMART;
 import static com.lrony.mediabrowsedemo.utils.MediaIDHelper.MEDIA_ID_MUSICS_BY_SONG;
 import static com.lrony.mediabrowsedemo.utils.MediaIDHelper.MEDIA_ID_ROOT;
 
@@ -45,7 +56,23 @@ public class MediaPlaybackService extends MediaBrowserService implements Playbac
     private static final int STOP_DELAY = 30000;
 
     private static final int MSG_CODE_SAVE_MUSIC_DATE = 0;
+    private static final int MSG_CODE_PLAY_SKIP_TARGET = 1;
     private static final int MUSIC_DATE_SAVE_TIME = 1000;
+    // Skips closer together than this are coalesced, only the first and the last target get
+    // prepared. The first skip is not delayed, only the last target of a burst waits this long.
+    private static final int SKIP_COALESCE_WINDOW = 300;
+
+    // Max number of tracks returned by onSearch, the rest is reachable through a "more" item.
+    private static final int MAX_SEARCH_RESULTS = 50;
+
+    // Number of tracks persisted on each side of the current one for fast resume.
+    private static final int QUEUE_SNAPSHOT_RADIUS = 10;
+
+    // Number of queue items published to the session on each side of the current one. The
+    // window is published again once the current item gets within QUEUE_WINDOW_MARGIN of
+    // one of its edges.
+    private static final int QUEUE_WINDOW_RADIUS = 25;
+    private static final int QUEUE_WINDOW_MARGIN = 5;
 
     public static final String ACTION_CMD = "com.android.music.ACTION_CMD";
     public static final String ACTION_PLAY_HISTORY = "com.android.music.ACTION_PLAY_HISTORY";
@@ -53,21 +80,55 @@ public class MediaPlaybackService extends MediaBrowserService implements Playbac
     public static final String CMD_PAUSE = "CMD_PAUSE";
     public static final String CMD_REPEAT = "CMD_PAUSE";
     public static final String REPEAT_MODE = "REPEAT_MODE";
+    public static final String CMD_SHUFFLE = "CMD_SHUFFLE";
+    public static final String SHUFFLE_MODE = "SHUFFLE_MODE";
+    // Queue edits. Tracks are given as media IDs in EXTRA_MEDIA_IDS, queue items by the
+    // queue id in EXTRA_QUEUE_ID, the target of a move by its position in EXTRA_QUEUE_POSITION.
+    public static final String CMD_QUEUE_PLAY_NEXT = "CMD_QUEUE_PLAY_NEXT";
+    public static final String CMD_QUEUE_ADD = "CMD_QUEUE_ADD";
+    public static final String CMD_QUEUE_REMOVE = "CMD_QUEUE_REMOVE";
+    public static final String CMD_QUEUE_MOVE = "CMD_QUEUE_MOVE";
+    public static final String EXTRA_MEDIA_IDS = "EXTRA_MEDIA_IDS";
+    public static final String EXTRA_QUEUE_ID = "EXTRA_QUEUE_ID";
+    public static final String EXTRA_QUEUE_POSITION = "EXTRA_QUEUE_POSITION";
+    // Custom action answered with an EVENT_LATENCY_STATS session event
+    public static final String CMD_GET_LATENCY_STATS = "CMD_GET_LATENCY_STATS";
+    public static final String EVENT_LATENCY_STATS = "EVENT_LATENCY_STATS";
+    // Custom action answered with an EVENT_SECTION_INDEX session event, holding the sections
+    // of the list browsed at EXTRA_PARENT_ID as read by SectionIndex#fromBundle
+    public static final String CMD_GET_SECTION_INDEX = "CMD_GET_SECTION_INDEX";
+    public static final String EVENT_SECTION_INDEX = "EVENT_SECTION_INDEX";
+    public static final String EXTRA_PARENT_ID = "EXTRA_PARENT_ID";
 
     public enum RepeatMode {REPEAT_NONE, REPEAT_ALL, REPEAT_CURRENT}
 
+    public enum ShuffleMode {SHUFFLE_NONE, SHUFFLE_ALL}
+
     // Music catalog manager
     private MusicProvider mMusicProvider;
     private MediaSession mSession;
     // "Now playing" queue:
-    private List<MediaSession.QueueItem> mPlayingQueue = null;
+    private PlayQueue mPlayingQueue = null;
     private int mCurrentIndexOnQueue = -1;
+    // Part of the playing queue published to the session, from inclusive, to exclusive.
+    private int mQueueWindowFrom;
+    private int mQueueWindowTo;
     // Indicates whether the service was started.
     private boolean mServiceStarted;
     private DelayedStopHandler mDelayedStopHandler = new DelayedStopHandler(this);
     private Playback mPlayback;
     // Default mode is repeat none
     private RepeatMode mRepeatMode = RepeatMode.REPEAT_NONE;
+    // Default mode is shuffle none
+    private ShuffleMode mShuffleMode = ShuffleMode.SHUFFLE_NONE;
+    // Play order of the queue when shuffling, null otherwise
+    private ShuffleOrder mShuffleOrder;
+    // Shuffle order persisted for the history queue, until that queue is rebuilt.
+    private ShuffleOrder mSavedShuffleOrder;
+    // Shuffle order last handed to the store and its change count, so the history is only
+    // copied and written again when it changed. -1 before the first save.
+    private ShuffleOrder mPersistedShuffleOrder;
+    private int mPersistedShuffleChangeCount = -1;
     // Extra information for this session
     private Bundle mExtras;
 
@@ -75,6 +136,51 @@ public class MediaPlaybackService extends MediaBrowserService implements Playbac
 
     private MediaPlaybackHandler mMediaPlaybackHandler;
 
+    // Runs catalog searches off the main thread
+    private ExecutorService mSearchExecutor;
+
+    private final SkipCoalescer mSkipCoalescer = new SkipCoalescer(SKIP_COALESCE_WINDOW,
+            new SkipCoalescer.Callback() {
+                @Override
+                public void play() {
+                    handlePlayRequest();
+                }
+
+                @Override
+                public void preview() {
+                    Log.d(TAG, "handleSkipRequest: coalescing skip to index "
+                            + mCurrentIndexOnQueue);
+                    // Whatever is still being prepared is stale now.
+                    mPlayback.cancelPreparing();
+                    updateMetadata();
+                    updatePlaybackState(null);
+                }
+
+                @Override
+                public void schedule(long delayMs) {
+                    mMediaPlaybackHandler.removeMessages(MSG_CODE_PLAY_SKIP_TARGET);
+                    mMediaPlaybackHandler.sendEmptyMessageDelayed(MSG_CODE_PLAY_SKIP_TARGET,
+                            delayMs);
+                }
+            });
+
+    private final PlaybackLatencyStats mLatencyStats = new PlaybackLatencyStats();
+
+    // Whether the playing queue was restored from the persisted snapshot and still has to be
+    // reconciled with the catalog.
+    private boolean mQueueFromSnapshot;
+
+    // Resumes playHistory once the persisted state is loaded.
+    private final Runnable mPlayHistoryWhenLoaded = new Runnable() {
+        @Override
+        public void run() {
+            playHistory();
+        }
+    };
+
+    // Track whose play was last recorded in the play statistics, -1 once it completed.
+    private long mStatsTrackId = -1;
+
     public MediaPlaybackService() {
     }
 
@@ -83,8 +189,9 @@ public class MediaPlaybackService extends MediaBrowserService implements Playbac
         Log.d(TAG, "onCreate()");
         super.onCreate();
         Log.d(TAG, "Create MusicProvider");
-        mPlayingQueue = new ArrayList<>();
+        mPlayingQueue = new PlayQueue(new long[0]);
         mMusicProvider = new MusicProvider(this);
+        AlbumArtCache.getInstance().initialize(this);
 
         Log.d(TAG, "Create MediaSession");
         // Start a new MediaSession
@@ -92,6 +199,7 @@ public class MediaPlaybackService extends MediaBrowserService implements Playbac
         // Set extra information
         mExtras = new Bundle();
         mExtras.putInt(REPEAT_MODE, mRepeatMode.ordinal());
+        mExtras.putInt(SHUFFLE_MODE, mShuffleMode.ordinal());
         mSession.setExtras(mExtras);
         // Enable callbacks from MediaButtons and TransportControls
         mSession.setFlags(MediaSession.FLAG_HANDLES_MEDIA_BUTTONS
@@ -121,6 +229,8 @@ public class MediaPlaybackService extends MediaBrowserService implements Playbac
         mMediaNotificationManager = new MediaNotificationManager(this);
 
         mMediaPlaybackHandler = new MediaPlaybackHandler();
+
+        mSearchExecutor = Executors.newSingleThreadExecutor();
     }
 
     @Override
@@ -153,6 +263,11 @@ public class MediaPlaybackService extends MediaBrowserService implements Playbac
         mSession.release();
 
         mMediaPlaybackHandler.removeCallbacksAndMessages(null);
+        PlaybackStateStore.getInstance().removeWhenLoaded(mPlayHistoryWhenLoaded);
+
+        mSearchExecutor.shutdownNow();
+        mMusicProvider.release();
+        Log.d(TAG, "onDestroy: " + BitmapPool.getInstance());
     }
 
     @Override
@@ -165,24 +280,43 @@ public class MediaPlaybackService extends MediaBrowserService implements Playbac
     }
 
     @Override
-    public void onLoadChildren(final String parentMediaId, final Result<List<MediaBrowser.MediaItem>> result) {
-        Log.d(TAG, "OnLoadChildren: parentMediaId=" + parentMediaId);
+    public void onLoadChildren(String parentMediaId, Result<List<MediaBrowser.MediaItem>> result) {
+        onLoadChildren(parentMediaId, result, null);
+    }
+
+    /**
+     * With EXTRA_PAGE and EXTRA_PAGE_SIZE in the options only the items of that page are sent,
+     * and for the sorted dimensions only those are built.
+     */
+    @Override
+    public void onLoadChildren(final String parentMediaId,
+                               final Result<List<MediaBrowser.MediaItem>> result,
+                               final Bundle options) {
+        Log.d(TAG, "OnLoadChildren: parentMediaId=" + parentMediaId + ", options=" + options);
         //  Browsing not allowed
         if (parentMediaId == null) {
             result.sendResult(null);
             return;
         }
 
+        if (parentMediaId.startsWith(MEDIA_ID_MUSICS_BY_SEARCH)) {
+            // The full result list behind the "more results" item of onSearch
+            String query = MediaIDHelper.getHierarchy(parentMediaId)[1];
+            Log.d(TAG, "OnLoadChildren.SONGS_BY_SEARCH  query=" + query);
+            result.detach();
+            loadSearchResult(query, Integer.MAX_VALUE, options, result);
+            return;
+        }
+
         if (!mMusicProvider.isInitialized()) {
             // Use result.detach to allow calling result.sendResult from another thread:
             result.detach();
-
-            mMusicProvider.retrieveMediaAsync(new MusicProvider.MusicProviderCallback() {
+            retrieveMediaAsync(new MusicProvider.MusicProviderCallback() {
                 @Override
                 public void onMusicCatalogReady(boolean success) {
                     Log.d(TAG, "Received catalog result, success:  " + String.valueOf(success));
                     if (success) {
-                        onLoadChildren(parentMediaId, result);
+                        onLoadChildren(parentMediaId, result, options);
                     } else {
                         result.sendResult(Collections.<MediaBrowser.MediaItem>emptyList());
                     }
@@ -192,6 +326,8 @@ public class MediaPlaybackService extends MediaBrowserService implements Playbac
         } else {
             // If our music catalog is already loaded/cached, load them into result immediately
             List<MediaBrowser.MediaItem> mediaItems = new ArrayList<>();
+            // Whether the source list was paged before building the items
+            boolean paged = false;
 
             switch (parentMediaId) {
                 case MEDIA_ID_ROOT:
@@ -216,10 +352,20 @@ public class MediaPlaybackService extends MediaBrowserService implements Playbac
                             .setTitle(getString(R.string.media_list_title_folders))
                             .build(),
                             MediaBrowser.MediaItem.FLAG_BROWSABLE));
+                    mediaItems.add(new MediaBrowser.MediaItem(new MediaDescription.Builder()
+                            .setMediaId(MEDIA_ID_MUSICS_BY_PLAYLIST)
+                            .setTitle(getString(R.string.media_list_title_playlists))
+                            .build(),
+                            MediaBrowser.MediaItem.FLAG_BROWSABLE));
+                    mediaItems.add(new MediaBrowser.MediaItem(new MediaDescription.Builder()
+                            .setMediaId(MEDIA_ID_MUSICS_BY_SMART)
+                            .setTitle(getString(R.string.media_list_title_smart_playlists))
+                            .build(),
+                            MediaBrowser.MediaItem.FLAG_BROWSABLE));
                     break;
                 case MEDIA_ID_MUSICS_BY_ARTIST:
                     Log.d(TAG, "OnLoadChildren.ARTIST");
-                    for (String artist : mMusicProvider.getArtists()) {
+                    for (String artist : getPage(mMusicProvider.getArtists(), options)) {
                         MediaBrowser.MediaItem item = new MediaBrowser.MediaItem(
                                 new MediaDescription.Builder()
                                         .setMediaId(MediaIDHelper.createBrowseCategoryMediaID(
@@ -229,20 +375,24 @@ public class MediaPlaybackService extends MediaBrowserService implements Playbac
                                 MediaBrowser.MediaItem.FLAG_BROWSABLE);
                         mediaItems.add(item);
                     }
+                    paged = true;
                     break;
                 case MEDIA_ID_MUSICS_BY_ALBUM:
                     Log.d(TAG, "OnLoadChildren.ALBUM");
-                    loadAlbum(mMusicProvider.getAlbums(), mediaItems);
+                    loadAlbum(getPage(mMusicProvider.getAlbums(), options), mediaItems);
+                    paged = true;
                     break;
                 case MEDIA_ID_MUSICS_BY_SONG:
                     Log.d(TAG, "OnLoadChildren.SONG");
                     String hierarchyAwareMediaID = MediaIDHelper.createBrowseCategoryMediaID(
                             parentMediaId, MEDIA_ID_MUSICS_BY_SONG);
-                    loadSong(mMusicProvider.getMusicList(), mediaItems, hierarchyAwareMediaID);
+                    loadSong(getPage(mMusicProvider.getMusicList(), options), mediaItems,
+                            hierarchyAwareMediaID);
+                    paged = true;
                     break;
                 case MEDIA_ID_MUSICS_BY_FOLDER:
                     Log.d(TAG, "OnLoadChildren.FOLDER");
-                    for (String folder : mMusicProvider.getFolders()) {
+                    for (String folder : getPage(mMusicProvider.getFolders(), options)) {
                         MediaBrowser.MediaItem item = new MediaBrowser.MediaItem(
                                 new MediaDescription.Builder()
                                         .setMediaId(MediaIDHelper.createBrowseCategoryMediaID(
@@ -252,6 +402,29 @@ public class MediaPlaybackService extends MediaBrowserService implements Playbac
                                 MediaBrowser.MediaItem.FLAG_BROWSABLE);
                         mediaItems.add(item);
                     }
+                    paged = true;
+                    break;
+                case MEDIA_ID_MUSICS_BY_PLAYLIST:
+                    Log.d(TAG, "OnLoadChildren.PLAYLIST");
+                    for (String playlist : mMusicProvider.getPlaylists()) {
+                        MediaBrowser.MediaItem item = new MediaBrowser.MediaItem(
+                                new MediaDescription.Builder()
+                                        .setMediaId(MediaIDHelper.createBrowseCategoryMediaID(
+                                                MEDIA_ID_MUSICS_BY_PLAYLIST, playlist))
+                                        .setTitle(playlist)
+                                        .build(),
+                                MediaBrowser.MediaItem.FLAG_BROWSABLE);
+                        mediaItems.add(item);
+                    }
+                    break;
+                case MEDIA_ID_MUSICS_BY_SMART:
+                    Log.d(TAG, "OnLoadChildren.SMART");
+                    addSmartPlaylist(mediaItems, SmartPlaylists.RECENTLY_ADDED,
+                            R.string.smart_playlist_recently_added);
+                    addSmartPlaylist(mediaItems, SmartPlaylists.MOST_PLAYED,
+                            R.string.smart_playlist_most_played);
+                    addSmartPlaylist(mediaItems, SmartPlaylists.NOT_PLAYED,
+                            R.string.smart_playlist_not_played);
                     break;
                 default:
                     if (parentMediaId.startsWith(MEDIA_ID_MUSICS_BY_ARTIST)) {
@@ -266,18 +439,178 @@ public class MediaPlaybackService extends MediaBrowserService implements Playbac
                         String folder = MediaIDHelper.getHierarchy(parentMediaId)[1];
                         Log.d(TAG, "OnLoadChildren.SONGS_BY_FOLDER  folder=" + folder);
                         loadSong(mMusicProvider.getMusicsByFolder(folder), mediaItems, parentMediaId);
+                    } else if (parentMediaId.startsWith(MEDIA_ID_MUSICS_BY_PLAYLIST)) {
+                        String playlist = MediaIDHelper.getHierarchy(parentMediaId)[1];
+                        Log.d(TAG, "OnLoadChildren.SONGS_BY_PLAYLIST  playlist=" + playlist);
+                        loadSong(mMusicProvider.getMusicsByPlaylist(playlist), mediaItems,
+                                parentMediaId);
+                    } else if (parentMediaId.startsWith(MEDIA_ID_MUSICS_BY_SMART)) {
+                        String name = MediaIDHelper.getHierarchy(parentMediaId)[1];
+                        Log.d(TAG, "OnLoadChildren.SONGS_BY_SMART  name=" + name);
+                        loadSong(mMusicProvider.getMusicsBySmartPlaylist(name), mediaItems,
+                                parentMediaId);
                     } else {
                         Log.w(TAG, "Skipping unmatched parentMediaId: " + parentMediaId);
                     }
                     break;
             }
+            if (!paged) {
+                mediaItems = getPage(mediaItems, options);
+            }
             Log.d(TAG,
                     "OnLoadChildren sending " + mediaItems.size() + " results for "
                             + parentMediaId);
             result.sendResult(mediaItems);
+            mLatencyStats.finish(PlaybackLatencyStats.CATALOG_LOAD);
         }
     }
 
+    @Override
+    public void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        super.dump(fd, writer, args);
+        mLatencyStats.dump(writer);
+    }
+
+    PlaybackLatencyStats getLatencyStats() {
+        return mLatencyStats;
+    }
+
+    /**
+     * Load the catalog, timing the cold load from the first request for it to the first result
+     * sent to a browser, or to the catalog being ready if no browser is waiting for it.
+     */
+    private void retrieveMediaAsync(final MusicProvider.MusicProviderCallback callback) {
+        if (!mMusicProvider.isInitialized()) {
+            mLatencyStats.start(PlaybackLatencyStats.CATALOG_LOAD);
+        }
+        mMusicProvider.retrieveMediaAsync(new MusicProvider.MusicProviderCallback() {
+            @Override
+            public void onMusicCatalogReady(boolean success) {
+                callback.onMusicCatalogReady(success);
+                if (success) {
+                    mLatencyStats.finish(PlaybackLatencyStats.CATALOG_LOAD);
+                } else {
+                    mLatencyStats.cancel(PlaybackLatencyStats.CATALOG_LOAD);
+                }
+            }
+        });
+    }
+
+    @Override
+    public void onSearch(String query, Bundle extras, Result<List<MediaBrowser.MediaItem>> result) {
+        Log.d(TAG, "onSearch: query=" + query + " extras=" + extras);
+        if (TextUtils.isEmpty(query)) {
+            result.sendResult(Collections.<MediaBrowser.MediaItem>emptyList());
+            return;
+        }
+        // Use result.detach to allow calling result.sendResult from another thread:
+        result.detach();
+        loadSearchResult(query, MAX_SEARCH_RESULTS, null, result);
+    }
+
+    /**
+     * Search the catalog on the search worker and send at most maxResults tracks. When there
+     * are more matches, a browsable item leading to the full result list is appended.
+     * The options may ask for a page of the results. The result must already be detached.
+     */
+    private void loadSearchResult(final String query, final int maxResults, final Bundle options,
+                                  final Result<List<MediaBrowser.MediaItem>> result) {
+        if (!mMusicProvider.isInitialized()) {
+            retrieveMediaAsync(new MusicProvider.MusicProviderCallback() {
+                @Override
+                public void onMusicCatalogReady(boolean success) {
+                    Log.d(TAG, "loadSearchResult: received catalog result, success: " + success);
+                    if (success) {
+                        loadSearchResult(query, maxResults, options, result);
+                    } else {
+                        result.sendResult(Collections.<MediaBrowser.MediaItem>emptyList());
+                    }
+                }
+            });
+            return;
+        }
+
+        try {
+            mSearchExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    List<MediaMetadata> tracks = mMusicProvider.searchMusic(query);
+                    int count = Math.min(tracks.size(), maxResults);
+                    List<MediaBrowser.MediaItem> mediaItems = new ArrayList<>(count + 1);
+                    String parentId = MediaIDHelper.createBrowseCategoryMediaID(
+                            MEDIA_ID_MUSICS_BY_SEARCH, query);
+                    loadSong(getPage(tracks.subList(0, count), options), mediaItems, parentId);
+                    if (tracks.size() > count) {
+                        mediaItems.add(new MediaBrowser.MediaItem(new MediaDescription.Builder()
+                                .setMediaId(parentId)
+                                .setTitle(getString(R.string.usb_audio_search_more_results,
+                                        tracks.size() - count))
+                                .build(),
+                                MediaBrowser.MediaItem.FLAG_BROWSABLE));
+                    }
+                    Log.d(TAG, "loadSearchResult: sending " + count + " of " + tracks.size()
+                            + " results for " + query);
+                    result.sendResult(mediaItems);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // The service is being destroyed, nothing to search with anymore
+            Log.d(TAG, "loadSearchResult: search rejected for " + query);
+            result.sendResult(null);
+        }
+    }
+
+    /**
+     * @return the items of the page asked with EXTRA_PAGE and EXTRA_PAGE_SIZE, or all of them
+     * when the options ask for no page.
+     */
+    private static <T> List<T> getPage(List<T> items, Bundle options) {
+        if (options == null) {
+            return items;
+        }
+        int page = options.getInt(MediaBrowser.EXTRA_PAGE, -1);
+        int pageSize = options.getInt(MediaBrowser.EXTRA_PAGE_SIZE, -1);
+        if (page < 0 || pageSize < 1) {
+            return items;
+        }
+        long from = (long) page * pageSize;
+        if (from >= items.size()) {
+            return Collections.emptyList();
+        }
+        return items.subList((int) from, (int) Math.min(items.size(), from + pageSize));
+    }
+
+    /**
+     * Send the sections of a browsable list, empty for the lists that are not sorted by title.
+     */
+    private void sendSectionIndex(final String parentMediaId) {
+        if (!mMusicProvider.isInitialized()) {
+            retrieveMediaAsync(new MusicProvider.MusicProviderCallback() {
+                @Override
+                public void onMusicCatalogReady(boolean success) {
+                    if (success) {
+                        sendSectionIndex(parentMediaId);
+                    }
+                }
+            });
+            return;
+        }
+        SectionIndex sections = SectionIndex.EMPTY;
+        if (MEDIA_ID_MUSICS_BY_ARTIST.equals(parentMediaId)) {
+            sections = mMusicProvider.getArtistSections();
+        } else if (MEDIA_ID_MUSICS_BY_ALBUM.equals(parentMediaId)) {
+            sections = mMusicProvider.getAlbumSections();
+        } else if (MEDIA_ID_MUSICS_BY_SONG.equals(parentMediaId)) {
+            sections = mMusicProvider.getMusicSections();
+        } else if (MEDIA_ID_MUSICS_BY_FOLDER.equals(parentMediaId)) {
+            sections = mMusicProvider.getFolderSections();
+        }
+        Log.d(TAG, "sendSectionIndex: " + parentMediaId + " " + sections);
+        Bundle extras = sections.toBundle();
+        extras.putString(EXTRA_PARENT_ID, parentMediaId);
+        mSession.sendSessionEvent(EVENT_SECTION_INDEX, extras);
+    }
+
     private class MediaPlaybackHandler extends Handler {
 
         @Override
@@ -288,6 +621,11 @@ public class MediaPlaybackService extends MediaBrowserService implements Playbac
                     saveMusicPosition();
                     mMediaPlaybackHandler.sendEmptyMessageDelayed(MSG_CODE_SAVE_MUSIC_DATE, MUSIC_DATE_SAVE_TIME);
                     break;
+                case MSG_CODE_PLAY_SKIP_TARGET:
+                    Log.d(TAG, "skip burst of " + mSkipCoalescer.getBurstCount()
+                            + " settled, playing index " + mCurrentIndexOnQueue);
+                    mSkipCoalescer.onWindowElapsed();
+                    break;
                 default:
                     break;
             }
@@ -297,12 +635,13 @@ public class MediaPlaybackService extends MediaBrowserService implements Playbac
     private void saveMusicPosition() {
         if (mPlayback.isPlaying()) {
             Log.d(TAG, "saveMusicPosition");
-            SharedPreferencesUtil.getInstance().putMusicPosition(mPlayback.getCurrentStreamPosition());
+            PlaybackStateStore.getInstance().setPosition(mPlayback.getCurrentStreamPosition());
         }
     }
 
     private void loadPlayingQueue(List<MediaBrowser.MediaItem> mediaItems, String parentId) {
-        for (MediaSession.QueueItem queueItem : mPlayingQueue) {
+        for (int i = 0; i < mPlayingQueue.size(); i++) {
+            MediaSession.QueueItem queueItem = mPlayingQueue.getQueueItem(i, mMusicProvider);
             MediaBrowser.MediaItem mediaItem =
                     new MediaBrowser.MediaItem(queueItem.getDescription(), MediaBrowser.MediaItem.FLAG_PLAYABLE);
             mediaItems.add(mediaItem);
@@ -323,6 +662,7 @@ public class MediaPlaybackService extends MediaBrowserService implements Playbac
                     .setMediaId(hierarchyAwareMediaID)
                     .setTitle(title)
                     .setSubtitle(artistName)
+                    .setIconUri(getArtUri(metadata))
                     .setExtras(songExtra)
                     .build(),
                     MediaBrowser.MediaItem.FLAG_PLAYABLE);
@@ -330,6 +670,25 @@ public class MediaPlaybackService extends MediaBrowserService implements Playbac
         }
     }
 
+    /**
+     * @return the uri of the art of a track or album without embedded art, e.g. a folder
+     * cover, for browsers to load it themselves.
+     */
+    private static Uri getArtUri(MediaMetadata metadata) {
+        String artUri = metadata.getString(MediaMetadata.METADATA_KEY_ALBUM_ART_URI);
+        return artUri != null ? Uri.parse(artUri) : null;
+    }
+
+    private void addSmartPlaylist(List<MediaBrowser.MediaItem> mediaItems, String name,
+                                  int titleId) {
+        mediaItems.add(new MediaBrowser.MediaItem(new MediaDescription.Builder()
+                .setMediaId(
+                        MediaIDHelper.createBrowseCategoryMediaID(MEDIA_ID_MUSICS_BY_SMART, name))
+                .setTitle(getString(titleId))
+                .build(),
+                MediaBrowser.MediaItem.FLAG_BROWSABLE));
+    }
+
     private void loadAlbum(Iterable<MediaMetadata> albumList, List<MediaBrowser.MediaItem> mediaItems) {
         for (MediaMetadata albumMetadata : albumList) {
             String albumName = albumMetadata.getString(MediaMetadata.METADATA_KEY_ALBUM);
@@ -345,6 +704,7 @@ public class MediaPlaybackService extends MediaBrowserService implements Playbac
                             .setSubtitle(artistName)
                             .setIconBitmap(
                                     albumMetadata.getBitmap(MediaMetadata.METADATA_KEY_ALBUM_ART))
+                            .setIconUri(getArtUri(albumMetadata))
                             .setExtras(albumExtra)
                             .build(),
                     MediaBrowser.MediaItem.FLAG_BROWSABLE);
@@ -359,11 +719,9 @@ public class MediaPlaybackService extends MediaBrowserService implements Playbac
             Log.d(TAG, "play");
 
             if (mPlayingQueue == null || mPlayingQueue.isEmpty()) {
-                mPlayingQueue = QueueHelper.getRandomQueue(mMusicProvider);
-                mSession.setQueue(mPlayingQueue);
-                mSession.setQueueTitle(getString(R.string.usb_audio_random_queue_title));
                 // start playing from the beginning of the queue
-                mCurrentIndexOnQueue = 0;
+                setPlayingQueue(QueueHelper.getRandomQueue(mMusicProvider), 0);
+                mSession.setQueueTitle(getString(R.string.usb_audio_random_queue_title));
             }
 
             if (mPlayingQueue != null && !mPlayingQueue.isEmpty()) {
@@ -374,10 +732,14 @@ public class MediaPlaybackService extends MediaBrowserService implements Playbac
         @Override
         public void onSkipToQueueItem(long queueId) {
             Log.d(TAG, "OnSkipToQueueItem:" + queueId);
+            mLatencyStats.start(PlaybackLatencyStats.SKIP);
 
             if (mPlayingQueue != null && !mPlayingQueue.isEmpty()) {
                 // set the current index on queue from the music Id:
-                mCurrentIndexOnQueue = QueueHelper.getMusicIndexOnQueue(mPlayingQueue, queueId);
+                mCurrentIndexOnQueue = mPlayingQueue.indexOfQueueId(queueId);
+                if (mShuffleOrder != null && mCurrentIndexOnQueue >= 0) {
+                    mShuffleOrder.moveTo(mCurrentIndexOnQueue);
+                }
                 // play the music
                 handlePlayRequest();
             }
@@ -392,6 +754,7 @@ public class MediaPlaybackService extends MediaBrowserService implements Playbac
         @Override
         public void onPlayFromMediaId(String mediaId, Bundle extras) {
             Log.d(TAG, "playFromMediaId mediaId:" + mediaId + "  extras=" + extras);
+            mLatencyStats.start(PlaybackLatencyStats.PLAY_FROM_MEDIA_ID);
             playFromMediaId(mediaId);
         }
 
@@ -410,14 +773,20 @@ public class MediaPlaybackService extends MediaBrowserService implements Playbac
         @Override
         public void onSkipToNext() {
             Log.d(TAG, "skipToNext");
-            mCurrentIndexOnQueue++;
+            mLatencyStats.start(PlaybackLatencyStats.SKIP);
+            if (mShuffleOrder != null) {
+                // Skipping to next when in last song starts the shuffled order over.
+                mCurrentIndexOnQueue = mShuffleOrder.moveToNext(true);
+            } else {
+                mCurrentIndexOnQueue++;
+            }
             if (mPlayingQueue != null && mCurrentIndexOnQueue >= mPlayingQueue.size()) {
                 // This sample's behavior: skipping to next when in last song returns to the
                 // first song.
                 mCurrentIndexOnQueue = 0;
             }
             if (QueueHelper.isIndexPlayable(mCurrentIndexOnQueue, mPlayingQueue)) {
-                handlePlayRequest();
+                handleSkipRequest();
             } else {
                 Log.d(TAG,
                         "skipToNext: cannot skip to next. next Index=" + mCurrentIndexOnQueue
@@ -430,14 +799,20 @@ public class MediaPlaybackService extends MediaBrowserService implements Playbac
         @Override
         public void onSkipToPrevious() {
             Log.d(TAG, "skipToPrevious");
-            mCurrentIndexOnQueue--;
+            mLatencyStats.start(PlaybackLatencyStats.SKIP);
+            if (mShuffleOrder != null) {
+                // Step back through the shuffle history
+                mCurrentIndexOnQueue = mShuffleOrder.moveToPrevious();
+            } else {
+                mCurrentIndexOnQueue--;
+            }
             if (mPlayingQueue != null && mCurrentIndexOnQueue < 0) {
                 // This sample's behavior: skipping to previous when in first song restarts the
                 // first song.
                 mCurrentIndexOnQueue = 0;
             }
             if (QueueHelper.isIndexPlayable(mCurrentIndexOnQueue, mPlayingQueue)) {
-                handlePlayRequest();
+                handleSkipRequest();
             } else {
                 Log.d(TAG,
                         "skipToPrevious: cannot skip to previous. previous Index="
@@ -451,22 +826,21 @@ public class MediaPlaybackService extends MediaBrowserService implements Playbac
         public void onPlayFromSearch(String query, Bundle extras) {
             Log.d(TAG, "playFromSearch  query=" + query);
 
+            PlayQueue queue;
             if (TextUtils.isEmpty(query)) {
                 // A generic search like "Play music" sends an empty query
                 // and it's expected that we start playing something. What will be played depends
                 // on the app: favorite playlist, "I'm feeling lucky", most recent, etc.
-                mPlayingQueue = QueueHelper.getRandomQueue(mMusicProvider);
+                queue = QueueHelper.getRandomQueue(mMusicProvider);
             } else {
-                mPlayingQueue = QueueHelper.getPlayingQueueFromSearch(query, mMusicProvider);
+                queue = QueueHelper.getPlayingQueueFromSearch(query, mMusicProvider);
             }
 
-            Log.d(TAG, "playFromSearch  playqueue.length=" + mPlayingQueue.size());
-            mSession.setQueue(mPlayingQueue);
-
-            if (mPlayingQueue != null && !mPlayingQueue.isEmpty()) {
-                // immediately start playing from the beginning of the search results
-                mCurrentIndexOnQueue = 0;
+            Log.d(TAG, "playFromSearch  playqueue.length=" + queue.size());
+            // immediately start playing from the beginning of the search results
+            setPlayingQueue(queue, 0);
 
+            if (!mPlayingQueue.isEmpty()) {
                 handlePlayRequest();
             } else {
                 // if nothing was found, we need to warn the user and stop playing
@@ -483,10 +857,36 @@ public class MediaPlaybackService extends MediaBrowserService implements Playbac
                     mExtras.putInt(REPEAT_MODE, mRepeatMode.ordinal());
                     mSession.setExtras(mExtras);
                     Log.d(TAG, "modified repeatMode=" + mRepeatMode);
+                    updateNextQueueItem();
+                    break;
+                case CMD_SHUFFLE:
+                    setShuffleMode(ShuffleMode.values()[extras.getInt(SHUFFLE_MODE)]);
+                    Log.d(TAG, "modified shuffleMode=" + mShuffleMode);
+                    updateNextQueueItem();
+                    updatePlaybackState(null);
+                    saveQueueState();
+                    break;
+                case CMD_QUEUE_PLAY_NEXT:
+                case CMD_QUEUE_ADD:
+                    enqueue(getTrackIds(extras.getStringArray(EXTRA_MEDIA_IDS)),
+                            CMD_QUEUE_PLAY_NEXT.equals(action));
+                    break;
+                case CMD_QUEUE_REMOVE:
+                    removeFromQueue(extras.getLong(EXTRA_QUEUE_ID, -1));
+                    break;
+                case CMD_QUEUE_MOVE:
+                    moveInQueue(extras.getLong(EXTRA_QUEUE_ID, -1),
+                            extras.getInt(EXTRA_QUEUE_POSITION, -1));
                     break;
                 case ACTION_PLAY_HISTORY:
                     playHistory();
                     break;
+                case CMD_GET_LATENCY_STATS:
+                    mSession.sendSessionEvent(EVENT_LATENCY_STATS, mLatencyStats.toBundle());
+                    break;
+                case CMD_GET_SECTION_INDEX:
+                    sendSectionIndex(extras.getString(EXTRA_PARENT_ID));
+                    break;
                 default:
                     Log.d(TAG, "Unkown action=" + action);
                     break;
@@ -516,12 +916,362 @@ public class MediaPlaybackService extends MediaBrowserService implements Playbac
 
         if (QueueHelper.isIndexPlayable(mCurrentIndexOnQueue, mPlayingQueue)) {
             updateMetadata();
-            mPlayback.play(mPlayingQueue.get(mCurrentIndexOnQueue));
+            recordPlayStart(mPlayingQueue.getTrackId(mCurrentIndexOnQueue));
+            mPlayback.play(mPlayingQueue.getQueueItem(mCurrentIndexOnQueue, mMusicProvider));
+            updateNextQueueItem();
+            saveQueueState();
+        } else {
+            mLatencyStats.cancel(PlaybackLatencyStats.SKIP);
         }
 
+        // Restart the save loop rather than stacking one more per play request
+        mMediaPlaybackHandler.removeMessages(MSG_CODE_SAVE_MUSIC_DATE);
         mMediaPlaybackHandler.sendEmptyMessage(MSG_CODE_SAVE_MUSIC_DATE);
     }
 
+    /**
+     * Replace the playing queue and publish the part of it around index to the session.
+     */
+    private void setPlayingQueue(PlayQueue queue, int index) {
+        mPlayingQueue = queue;
+        mCurrentIndexOnQueue = index;
+        mQueueFromSnapshot = false;
+        updateShuffleOrder();
+        updateQueueWindow(true);
+    }
+
+    private void setShuffleMode(ShuffleMode shuffleMode) {
+        if (shuffleMode == mShuffleMode) {
+            return;
+        }
+        mShuffleMode = shuffleMode;
+        mExtras.putInt(SHUFFLE_MODE, mShuffleMode.ordinal());
+        mSession.setExtras(mExtras);
+        updateShuffleOrder();
+    }
+
+    /**
+     * Start a new shuffle order over the playing queue from the current item, or drop it when
+     * shuffle is off.
+     */
+    private void updateShuffleOrder() {
+        if (mShuffleMode == ShuffleMode.SHUFFLE_ALL
+                && mPlayingQueue != null && !mPlayingQueue.isEmpty()) {
+            mShuffleOrder = new ShuffleOrder(mPlayingQueue.size());
+            if (mCurrentIndexOnQueue >= 0) {
+                mShuffleOrder.moveTo(mCurrentIndexOnQueue);
+            }
+        } else {
+            mShuffleOrder = null;
+        }
+    }
+
+    /**
+     * Load the shuffle order persisted for the history queue, and turn shuffle on if there
+     * is one.
+     */
+    private void loadSavedShuffleOrder() {
+        PlaybackStateStore store = PlaybackStateStore.getInstance();
+        int[] history = store.getShuffleHistory();
+        if (history.length == 0) {
+            mSavedShuffleOrder = null;
+            return;
+        }
+        mSavedShuffleOrder =
+                ShuffleOrder.restore(store.getShuffleQueueSize(), history, store.getShuffleSlot());
+        setShuffleMode(ShuffleMode.SHUFFLE_ALL);
+    }
+
+    /**
+     * Continue the shuffle order loaded by loadSavedShuffleOrder, if it was saved for the
+     * current queue and item.
+     */
+    private void applySavedShuffleOrder() {
+        ShuffleOrder saved = mSavedShuffleOrder;
+        mSavedShuffleOrder = null;
+        if (saved == null || mShuffleOrder == null || saved.size() != mPlayingQueue.size()) {
+            return;
+        }
+        saved.moveTo(mCurrentIndexOnQueue);
+        Log.d(TAG, "applySavedShuffleOrder: slot " + saved.getCurrentSlot());
+        mShuffleOrder = saved;
+        updateNextQueueItem();
+        saveQueueState();
+    }
+
+    /**
+     * Publish the queue items around the current one to the session, if the current item
+     * got close to the edge of the published window or force is set. Only this window of
+     * the queue is turned into QueueItems; a whole library can be queued.
+     */
+    private void updateQueueWindow(boolean force) {
+        if (mPlayingQueue == null || mPlayingQueue.isEmpty()) {
+            mQueueWindowFrom = mQueueWindowTo = 0;
+            mSession.setQueue(null);
+            return;
+        }
+        int size = mPlayingQueue.size();
+        int index = Math.min(Math.max(mCurrentIndexOnQueue, 0), size - 1);
+        if (!force
+                && (mQueueWindowFrom == 0 || index - mQueueWindowFrom >= QUEUE_WINDOW_MARGIN)
+                && (mQueueWindowTo == size || mQueueWindowTo - index > QUEUE_WINDOW_MARGIN)
+                && index >= mQueueWindowFrom && index < mQueueWindowTo) {
+            return;
+        }
+        mQueueWindowFrom = Math.max(0, index - QUEUE_WINDOW_RADIUS);
+        mQueueWindowTo = Math.min(size, index + QUEUE_WINDOW_RADIUS + 1);
+        Log.d(TAG, "updateQueueWindow: [" + mQueueWindowFrom + ", " + mQueueWindowTo + ") of "
+                + size);
+        mSession.setQueue(mPlayingQueue.getQueueItems(
+                mQueueWindowFrom, mQueueWindowTo, mMusicProvider));
+    }
+
+    /**
+     * @return the track ids of the given media IDs, leaving out the tracks that are unknown.
+     */
+    private long[] getTrackIds(String[] mediaIds) {
+        if (mediaIds == null) {
+            return new long[0];
+        }
+        long[] trackIds = new long[mediaIds.length];
+        int count = 0;
+        for (String mediaId : mediaIds) {
+            String musicId = MediaIDHelper.extractMusicIDFromMediaID(mediaId);
+            if (musicId == null || mMusicProvider.getTrackMetadata(musicId) == null) {
+                Log.d(TAG, "getTrackIds: unknown track " + mediaId);
+                continue;
+            }
+            trackIds[count++] = Long.parseLong(musicId);
+        }
+        return Arrays.copyOf(trackIds, count);
+    }
+
+    /**
+     * Insert tracks after the current item, or at the end of the playing queue. Only the
+     * chunk of the queue holding the insertion point is touched, and the published window
+     * only if the tracks land in it.
+     */
+    private void enqueue(long[] trackIds, boolean playNext) {
+        if (trackIds.length == 0) {
+            return;
+        }
+        if (mPlayingQueue == null || mPlayingQueue.isEmpty()) {
+            setPlayingQueue(
+                    new PlayQueue(trackIds, MEDIA_ID_MUSICS_BY_SONG, MEDIA_ID_MUSICS_BY_SONG), 0);
+            onQueueEdited();
+            return;
+        }
+        int size = mPlayingQueue.size();
+        int index = playNext ? mCurrentIndexOnQueue + 1 : size;
+        Log.d(TAG, "enqueue: " + trackIds.length + " tracks at " + index + " of " + size);
+        mPlayingQueue.insert(index, trackIds);
+        if (mCurrentIndexOnQueue >= index) {
+            mCurrentIndexOnQueue += trackIds.length;
+        }
+        if (mShuffleOrder != null) {
+            mShuffleOrder.insert(index, trackIds.length);
+            if (playNext) {
+                for (int i = index + trackIds.length - 1; i >= index; i--) {
+                    mShuffleOrder.playNext(i);
+                }
+            }
+        }
+        if (index < mQueueWindowFrom) {
+            mQueueWindowFrom += trackIds.length;
+            mQueueWindowTo += trackIds.length;
+            updateQueueWindow(false);
+        } else if (index < mQueueWindowTo || mQueueWindowTo == size) {
+            updateQueueWindow(true);
+        }
+        onQueueEdited();
+    }
+
+    /**
+     * Remove an item from the playing queue. The current item cannot be removed.
+     */
+    private void removeFromQueue(long queueId) {
+        int index = mPlayingQueue != null ? mPlayingQueue.indexOfQueueId(queueId) : -1;
+        if (index < 0 || index == mCurrentIndexOnQueue) {
+            Log.d(TAG, "removeFromQueue: cannot remove " + queueId + " at " + index);
+            return;
+        }
+        Log.d(TAG, "removeFromQueue: " + queueId + " at " + index);
+        mPlayingQueue.remove(index);
+        if (index < mCurrentIndexOnQueue) {
+            mCurrentIndexOnQueue--;
+        }
+        if (mShuffleOrder != null) {
+            mShuffleOrder.remove(index);
+        }
+        if (index < mQueueWindowFrom) {
+            mQueueWindowFrom--;
+            mQueueWindowTo--;
+            updateQueueWindow(false);
+        } else if (index < mQueueWindowTo) {
+            updateQueueWindow(true);
+        }
+        onQueueEdited();
+    }
+
+    /**
+     * Move an item of the playing queue to position to. Moving the current item keeps it
+     * playing.
+     */
+    private void moveInQueue(long queueId, int to) {
+        int from = mPlayingQueue != null ? mPlayingQueue.indexOfQueueId(queueId) : -1;
+        if (from < 0 || to < 0 || to >= mPlayingQueue.size()) {
+            Log.d(TAG, "moveInQueue: cannot move " + queueId + " to " + to);
+            return;
+        }
+        if (from == to) {
+            return;
+        }
+        Log.d(TAG, "moveInQueue: " + queueId + " from " + from + " to " + to);
+        mPlayingQueue.move(from, to);
+        if (mCurrentIndexOnQueue == from) {
+            mCurrentIndexOnQueue = to;
+        } else if (from < mCurrentIndexOnQueue && to >= mCurrentIndexOnQueue) {
+            mCurrentIndexOnQueue--;
+        } else if (from > mCurrentIndexOnQueue && to <= mCurrentIndexOnQueue) {
+            mCurrentIndexOnQueue++;
+        }
+        if (mShuffleOrder != null) {
+            mShuffleOrder.move(from, to);
+        }
+        // Only the items between from and to change position
+        if (Math.max(from, to) >= mQueueWindowFrom && Math.min(from, to) < mQueueWindowTo) {
+            updateQueueWindow(true);
+        }
+        onQueueEdited();
+    }
+
+    private void onQueueEdited() {
+        // The edits would be lost when the snapshot queue is replaced, keep it instead.
+        mQueueFromSnapshot = false;
+        updateNextQueueItem();
+        updatePlaybackState(null);
+        saveQueueState();
+    }
+
+    /**
+     * Index of the item to play after the current one according to the repeat mode,
+     * or -1 if playback should stop after the current item.
+     */
+    private int getNextIndexOnQueue() {
+        if (mPlayingQueue == null || mPlayingQueue.isEmpty()) {
+            return -1;
+        }
+        if (mShuffleOrder != null && mRepeatMode != RepeatMode.REPEAT_CURRENT) {
+            // Repeating all plays the same shuffled order again
+            return mShuffleOrder.peekNext(mRepeatMode == RepeatMode.REPEAT_ALL);
+        }
+        switch (mRepeatMode) {
+            case REPEAT_ALL:
+                // Restart queue when reaching the end
+                return (mCurrentIndexOnQueue + 1) % mPlayingQueue.size();
+            case REPEAT_CURRENT:
+                // Do not change the index
+                return mCurrentIndexOnQueue;
+            case REPEAT_NONE:
+            default:
+                // Stop the queue when reaching the end
+                int next = mCurrentIndexOnQueue + 1;
+                return next < mPlayingQueue.size() ? next : -1;
+        }
+    }
+
+    /**
+     * Move to the item returned by getNextIndexOnQueue.
+     */
+    private void moveToNextIndexOnQueue(int next) {
+        if (mShuffleOrder != null && mRepeatMode != RepeatMode.REPEAT_CURRENT) {
+            mShuffleOrder.moveToNext(mRepeatMode == RepeatMode.REPEAT_ALL);
+        }
+        mCurrentIndexOnQueue = next;
+    }
+
+    /**
+     * Persist the tracks around the current one, so playback can resume from them before the
+     * catalog is loaded next time, and the shuffle order.
+     */
+    private void saveQueueState() {
+        int from = Math.max(0, mCurrentIndexOnQueue - QUEUE_SNAPSHOT_RADIUS);
+        int to = Math.min(mPlayingQueue.size(), mCurrentIndexOnQueue + QUEUE_SNAPSHOT_RADIUS + 1);
+        List<MediaMetadata> tracks = new ArrayList<>(to - from);
+        int index = -1;
+        for (int i = from; i < to; i++) {
+            MediaMetadata track =
+                    mMusicProvider.getTrackMetadata(String.valueOf(mPlayingQueue.getTrackId(i)));
+            if (track == null) {
+                continue;
+            }
+            if (i == mCurrentIndexOnQueue) {
+                index = tracks.size();
+            }
+            tracks.add(track);
+        }
+        PlaybackStateStore store = PlaybackStateStore.getInstance();
+        store.setQueueSnapshot(tracks, index);
+        if (mShuffleOrder == null) {
+            if (mPersistedShuffleOrder != null || mPersistedShuffleChangeCount < 0) {
+                store.setShuffleOrder(0, new int[0], -1);
+            }
+            mPersistedShuffleOrder = null;
+            mPersistedShuffleChangeCount = 0;
+        } else if (mShuffleOrder != mPersistedShuffleOrder
+                || mShuffleOrder.getChangeCount() != mPersistedShuffleChangeCount) {
+            store.setShuffleOrder(mShuffleOrder.size(), mShuffleOrder.getHistory(),
+                    mShuffleOrder.getCurrentSlot());
+            mPersistedShuffleOrder = mShuffleOrder;
+            mPersistedShuffleChangeCount = mShuffleOrder.getChangeCount();
+        } else {
+            store.setShuffleSlot(mShuffleOrder.getCurrentSlot());
+        }
+    }
+
+    /**
+     * Record the start of a track in the play statistics. Resuming the same track is not a new
+     * play; leaving a track before its end for another one is a skip.
+     */
+    private void recordPlayStart(long trackId) {
+        if (trackId == mStatsTrackId) {
+            return;
+        }
+        PlayStatsStore stats = PlayStatsStore.getInstance();
+        if (mStatsTrackId >= 0) {
+            stats.recordSkip(mStatsTrackId, mPlayback.getCurrentStreamPosition());
+        }
+        stats.recordStart(trackId);
+        mStatsTrackId = trackId;
+    }
+
+    private void recordPlayCompletion() {
+        if (mStatsTrackId >= 0) {
+            PlayStatsStore.getInstance().recordCompletion(mStatsTrackId);
+            mStatsTrackId = -1;
+        }
+    }
+
+    /**
+     * Let the playback prepare the item that follows the current one, so it can start
+     * without a gap. Must be called whenever the queue, the current index or the repeat mode
+     * changes.
+     */
+    private void updateNextQueueItem() {
+        int next = getNextIndexOnQueue();
+        mPlayback.setNextQueueItem(QueueHelper.isIndexPlayable(next, mPlayingQueue)
+                ? mPlayingQueue.getQueueItem(next, mMusicProvider) : null);
+    }
+
+    /**
+     * Handle a skip to mCurrentIndexOnQueue. The first skip plays right away; skips following
+     * it within SKIP_COALESCE_WINDOW only publish the new metadata, and the last target of
+     * the burst is prepared once the skips stop coming.
+     */
+    private void handleSkipRequest() {
+        mSkipCoalescer.onSkip(SystemClock.elapsedRealtime());
+    }
+
     /**
      * Handle a request to pause music
      */
@@ -532,6 +1282,10 @@ public class MediaPlaybackService extends MediaBrowserService implements Playbac
         mDelayedStopHandler.removeCallbacksAndMessages(null);
         mDelayedStopHandler.sendEmptyMessageDelayed(0, STOP_DELAY);
         mMediaPlaybackHandler.removeCallbacksAndMessages(null);
+        mSkipCoalescer.cancel();
+        // A pending skip target is dropped, or prepared only to stay paused
+        mLatencyStats.cancel(PlaybackLatencyStats.SKIP);
+        mLatencyStats.cancel(PlaybackLatencyStats.TRACK_GAP);
     }
 
     /**
@@ -541,10 +1295,15 @@ public class MediaPlaybackService extends MediaBrowserService implements Playbac
         Log.d(
                 TAG, "handleStopRequest: mState=" + mPlayback.getState() + " error=" + withError);
         mPlayback.stop(true);
+        mLatencyStats.cancel(PlaybackLatencyStats.PLAY_FROM_MEDIA_ID);
+        mLatencyStats.cancel(PlaybackLatencyStats.SKIP);
+        mLatencyStats.cancel(PlaybackLatencyStats.SEEK);
+        mLatencyStats.cancel(PlaybackLatencyStats.TRACK_GAP);
         // reset the delayed stop handler.
         mDelayedStopHandler.removeCallbacksAndMessages(null);
         mDelayedStopHandler.sendEmptyMessageDelayed(0, STOP_DELAY);
         mMediaPlaybackHandler.removeCallbacksAndMessages(null);
+        mSkipCoalescer.cancel();
 
         updatePlaybackState(withError);
 
@@ -560,17 +1319,20 @@ public class MediaPlaybackService extends MediaBrowserService implements Playbac
             updatePlaybackState(getResources().getString(R.string.usb_audio_error_no_metadata));
             return;
         }
-        MediaSession.QueueItem queueItem = mPlayingQueue.get(mCurrentIndexOnQueue);
-        String musicId =
-                MediaIDHelper.extractMusicIDFromMediaID(queueItem.getDescription().getMediaId());
-        MediaMetadata track = mMusicProvider.getMusicById(Long.parseLong(musicId)).getMetadata();
+        String mediaId = mPlayingQueue.getMediaId(mCurrentIndexOnQueue);
+        String musicId = String.valueOf(mPlayingQueue.getTrackId(mCurrentIndexOnQueue));
+        MediaMetadata track = mMusicProvider.getTrackMetadata(musicId);
+        if (track == null) {
+            Log.d(TAG, "updateMetadata: unknown musicId=" + musicId);
+            updatePlaybackState(getResources().getString(R.string.usb_audio_error_no_metadata));
+            return;
+        }
         final String trackId = track.getString(MediaMetadata.METADATA_KEY_MEDIA_ID);
         if (!musicId.equals(trackId)) {
             IllegalStateException e = new IllegalStateException("track ID should match musicId.");
             Log.d(TAG, "track ID should match musicId." + " musicId=" + musicId +
                     " trackId=" + trackId +
-                    " mediaId from queueItem=" + queueItem.getDescription().getMediaId() +
-                    " title from queueItem=" + queueItem.getDescription().getTitle() +
+                    " mediaId from queue=" + mediaId +
                     " mediaId from track=" + track.getDescription().getMediaId() +
                     " title from track=" + track.getDescription().getTitle() +
                     " source.hashcode from track=" +
@@ -588,8 +1350,16 @@ public class MediaPlaybackService extends MediaBrowserService implements Playbac
             AlbumArtCache.getInstance().fetch(albumUri, new AlbumArtCache.FetchListener() {
                 @Override
                 public void onFetched(String artUrl, Bitmap bitmap, Bitmap icon) {
-                    MediaSession.QueueItem queueItem = mPlayingQueue.get(mCurrentIndexOnQueue);
-                    MediaMetadata track = mMusicProvider.getMusicById(Long.parseLong(trackId)).getMetadata();
+                    // From the resume snapshot until the catalog is loaded, updateMusic then
+                    // leaves the catalog alone
+                    MediaMetadata track = mMusicProvider.getTrackMetadata(trackId);
+                    if (track == null) {
+                        Log.d(TAG, "updateMetadata: art for unknown trackId=" + trackId);
+                        return;
+                    }
+                    // Kept in the metadata of the track for good
+                    AlbumArtCache.getInstance().retain(bitmap);
+                    AlbumArtCache.getInstance().retain(icon);
                     track = new MediaMetadata
                             .Builder(track)
 
@@ -611,9 +1381,9 @@ public class MediaPlaybackService extends MediaBrowserService implements Playbac
                     mMusicProvider.updateMusic(Long.parseLong(trackId), track);
 
                     // If we are still playing the same music
-                    String currentPlayingId = MediaIDHelper.extractMusicIDFromMediaID(
-                            queueItem.getDescription().getMediaId());
-                    if (trackId.equals(currentPlayingId)) {
+                    if (QueueHelper.isIndexPlayable(mCurrentIndexOnQueue, mPlayingQueue)
+                            && trackId.equals(String.valueOf(
+                            mPlayingQueue.getTrackId(mCurrentIndexOnQueue)))) {
                         mSession.setMetadata(track);
                     }
                 }
@@ -649,8 +1419,8 @@ public class MediaPlaybackService extends MediaBrowserService implements Playbac
 
         // Set the activeQueueItemId if the current index is valid.
         if (QueueHelper.isIndexPlayable(mCurrentIndexOnQueue, mPlayingQueue)) {
-            MediaSession.QueueItem item = mPlayingQueue.get(mCurrentIndexOnQueue);
-            stateBuilder.setActiveQueueItemId(item.getQueueId());
+            stateBuilder.setActiveQueueItemId(mPlayingQueue.getQueueId(mCurrentIndexOnQueue));
+            updateQueueWindow(false);
         }
 
         mSession.setPlaybackState(stateBuilder.build());
@@ -669,6 +1439,15 @@ public class MediaPlaybackService extends MediaBrowserService implements Playbac
         if (mPlayback.isPlaying()) {
             actions |= PlaybackState.ACTION_PAUSE;
         }
+        if (mShuffleOrder != null) {
+            if (mShuffleOrder.getCurrentSlot() > 0) {
+                actions |= PlaybackState.ACTION_SKIP_TO_PREVIOUS;
+            }
+            if (mPlayingQueue.size() > 1) {
+                actions |= PlaybackState.ACTION_SKIP_TO_NEXT;
+            }
+            return actions;
+        }
         if (mCurrentIndexOnQueue > 0) {
             actions |= PlaybackState.ACTION_SKIP_TO_PREVIOUS;
         }
@@ -680,15 +1459,9 @@ public class MediaPlaybackService extends MediaBrowserService implements Playbac
 
     private MediaMetadata getCurrentPlayingMusic() {
         if (QueueHelper.isIndexPlayable(mCurrentIndexOnQueue, mPlayingQueue)) {
-            MediaSession.QueueItem item = mPlayingQueue.get(mCurrentIndexOnQueue);
-            if (item != null) {
-                Log.d(TAG,
-                        "getCurrentPlayingMusic for musicId=" + item.getDescription().getMediaId());
-                return mMusicProvider
-                        .getMusicById(Long.parseLong(MediaIDHelper.extractMusicIDFromMediaID(
-                                item.getDescription().getMediaId())))
-                        .getMetadata();
-            }
+            long musicId = mPlayingQueue.getTrackId(mCurrentIndexOnQueue);
+            Log.d(TAG, "getCurrentPlayingMusic for musicId=" + musicId);
+            return mMusicProvider.getTrackMetadata(String.valueOf(musicId));
         }
         return null;
     }
@@ -704,15 +1477,14 @@ public class MediaPlaybackService extends MediaBrowserService implements Playbac
         // the hierarchy in MediaBrowser and the actual unique musicID. This is necessary
         // so we can build the correct playing queue, based on where the track was
         // selected from.
-        mPlayingQueue = QueueHelper.getPlayingQueue(mediaId, mMusicProvider);
-        mSession.setQueue(mPlayingQueue);
+        PlayQueue queue = QueueHelper.getPlayingQueue(mediaId, mMusicProvider);
+        // set the current index on queue from the media Id:
+        setPlayingQueue(queue, queue != null ? queue.indexOfMediaId(mediaId) : -1);
         String queueTitle = getString(R.string.usb_audio_browse_musics_by_genre_subtitle,
                 MediaIDHelper.extractBrowseCategoryValueFromMediaID(mediaId));
         mSession.setQueueTitle(queueTitle);
 
         if (mPlayingQueue != null && !mPlayingQueue.isEmpty()) {
-            // set the current index on queue from the media Id:
-            mCurrentIndexOnQueue = QueueHelper.getMusicIndexOnQueue(mPlayingQueue, mediaId);
             Log.d(TAG, "playHistoryWithoutLoad mCurrentIndexOnQueue: " + mCurrentIndexOnQueue);
 
             if (mCurrentIndexOnQueue < 0) {
@@ -732,9 +1504,30 @@ public class MediaPlaybackService extends MediaBrowserService implements Playbac
             Log.d(TAG, "playHistory isPlaying");
             return;
         }
+        if (!PlaybackStateStore.getInstance().isLoaded()) {
+            Log.d(TAG, "playHistory state not loaded");
+            PlaybackStateStore.getInstance().runWhenLoaded(mPlayHistoryWhenLoaded);
+            return;
+        }
+        if (mSavedShuffleOrder == null) {
+            loadSavedShuffleOrder();
+        }
         if (!mMusicProvider.isInitialized()) {
             Log.d(TAG, "playHistory not initialized");
-            mMusicProvider.retrieveMediaAsync(new MusicProvider.MusicProviderCallback() {
+            if (playHistoryFromSnapshot()) {
+                // Already playing, only the queue needs the catalog.
+                retrieveMediaAsync(new MusicProvider.MusicProviderCallback() {
+                    @Override
+                    public void onMusicCatalogReady(boolean success) {
+                        Log.d(TAG, "onMusicCatalogReady: " + success);
+                        if (success) {
+                            reconcileQueueFromSnapshot();
+                        }
+                    }
+                });
+                return;
+            }
+            retrieveMediaAsync(new MusicProvider.MusicProviderCallback() {
                 @Override
                 public void onMusicCatalogReady(boolean success) {
                     Log.d(TAG, "onMusicCatalogReady: " + success);
@@ -747,15 +1540,75 @@ public class MediaPlaybackService extends MediaBrowserService implements Playbac
         }
     }
 
+    /**
+     * Start playing the persisted track right away, with the persisted queue snapshot as the
+     * playing queue, without waiting for the catalog.
+     *
+     * @return whether playback was started.
+     */
+    private boolean playHistoryFromSnapshot() {
+        PlaybackStateStore store = PlaybackStateStore.getInstance();
+        String mediaId = store.getMediaId();
+        List<MediaMetadata> snapshot = store.getQueueSnapshot();
+        int index = store.getQueueSnapshotIndex();
+        if (TextUtils.isEmpty(mediaId) || index < 0 || index >= snapshot.size()) {
+            Log.d(TAG, "playHistoryFromSnapshot: no snapshot");
+            return false;
+        }
+        String musicId = MediaIDHelper.extractMusicIDFromMediaID(mediaId);
+        MediaMetadata current = snapshot.get(index);
+        if (!current.getString(MediaMetadata.METADATA_KEY_MEDIA_ID).equals(musicId)
+                || !new File(current.getString(MusicProvider.CUSTOM_METADATA_TRACK_SOURCE)).exists()) {
+            // Stale snapshot, or the storage is not mounted yet
+            Log.d(TAG, "playHistoryFromSnapshot: cannot play " + mediaId);
+            return false;
+        }
+        Log.d(TAG, "playHistoryFromSnapshot: " + mediaId + " index " + index);
+        setPlayingQueue(QueueHelper.getPlayingQueueFromSnapshot(snapshot, mediaId), index);
+        mQueueFromSnapshot = true;
+        mSession.setQueueTitle(getString(R.string.usb_audio_browse_musics_by_genre_subtitle,
+                MediaIDHelper.extractBrowseCategoryValueFromMediaID(mediaId)));
+        handlePlayRequest();
+        return true;
+    }
+
+    /**
+     * Replace the queue restored from the snapshot by the full queue, now that the catalog is
+     * loaded. The current track keeps playing.
+     */
+    private void reconcileQueueFromSnapshot() {
+        if (!mQueueFromSnapshot || !QueueHelper.isIndexPlayable(mCurrentIndexOnQueue, mPlayingQueue)) {
+            return;
+        }
+        mQueueFromSnapshot = false;
+        String mediaId = mPlayingQueue.getMediaId(mCurrentIndexOnQueue);
+        PlayQueue queue = QueueHelper.getPlayingQueue(mediaId, mMusicProvider);
+        int index = queue != null ? queue.indexOfMediaId(mediaId) : -1;
+        if (index < 0) {
+            // The track is gone from the catalog, keep the snapshot queue.
+            Log.d(TAG, "reconcileQueueFromSnapshot: " + mediaId + " not found");
+            return;
+        }
+        Log.d(TAG, "reconcileQueueFromSnapshot: index " + mCurrentIndexOnQueue + " -> " + index
+                + " of " + queue.size());
+        setPlayingQueue(queue, index);
+        updateMetadata();
+        updatePlaybackState(null);
+        updateNextQueueItem();
+        saveQueueState();
+        applySavedShuffleOrder();
+    }
+
     private void playHistoryWithoutLoad() {
         Log.d(TAG, "playHistoryWithoutLoad");
-        String mediaId = SharedPreferencesUtil.getInstance().getMediaBrowseId();
+        String mediaId = PlaybackStateStore.getInstance().getMediaId();
         Log.d(TAG, "playHistoryWithoutLoad mediaId: " + mediaId);
         if (TextUtils.isEmpty(mediaId)) {
             Log.d(TAG, "playHistoryWithoutLoad mediaId isEmpty");
             return;
         }
         playFromMediaId(mediaId);
+        applySavedShuffleOrder();
     }
 
     /**
@@ -764,32 +1617,12 @@ public class MediaPlaybackService extends MediaBrowserService implements Playbac
     @Override
     public void onCompletion() {
         Log.d(TAG, "onCompletion");
+        recordPlayCompletion();
         // The media player finished playing the current song, so we go ahead
         // and start the next.
-        if (mPlayingQueue != null && !mPlayingQueue.isEmpty()) {
-            switch (mRepeatMode) {
-                case REPEAT_ALL:
-                    // Increase the index
-                    mCurrentIndexOnQueue++;
-                    // Restart queue when reaching the end
-                    if (mCurrentIndexOnQueue >= mPlayingQueue.size()) {
-                        mCurrentIndexOnQueue = 0;
-                    }
-                    break;
-                case REPEAT_CURRENT:
-                    // Do not change the index
-                    break;
-                case REPEAT_NONE:
-                default:
-                    // Increase the index
-                    mCurrentIndexOnQueue++;
-                    // Stop the queue when reaching the end
-                    if (mCurrentIndexOnQueue >= mPlayingQueue.size()) {
-                        handleStopRequest(null);
-                        return;
-                    }
-                    break;
-            }
+        int next = getNextIndexOnQueue();
+        if (next >= 0) {
+            moveToNextIndexOnQueue(next);
             handlePlayRequest();
         } else {
             // If there is nothing to play, we stop and release the resources:
@@ -797,9 +1630,38 @@ public class MediaPlaybackService extends MediaBrowserService implements Playbac
         }
     }
 
+    @Override
+    public void onNextStarted() {
+        Log.d(TAG, "onNextStarted");
+        // The playback already moved on to the item from updateNextQueueItem, catch up with it.
+        recordPlayCompletion();
+        int next = getNextIndexOnQueue();
+        if (next < 0) {
+            return;
+        }
+        moveToNextIndexOnQueue(next);
+        recordPlayStart(mPlayingQueue.getTrackId(mCurrentIndexOnQueue));
+        updateMetadata();
+        updatePlaybackState(null);
+        updateNextQueueItem();
+        saveQueueState();
+    }
+
     @Override
     public void onPlaybackStatusChanged(int state) {
         Log.d(TAG, "onPlaybackStatusChanged: " + state);
+        if (state == PlaybackState.STATE_PLAYING) {
+            mLatencyStats.finish(PlaybackLatencyStats.PLAY_FROM_MEDIA_ID);
+        } else if (state == PlaybackState.STATE_PAUSED || state == PlaybackState.STATE_STOPPED) {
+            // Playback is going idle, persist where it stopped right away.
+            PlaybackStateStore.getInstance().setPosition(mPlayback.getCurrentStreamPosition());
+            PlaybackStateStore.getInstance().flush();
+            if (mStatsTrackId >= 0) {
+                PlayStatsStore.getInstance().recordPosition(mStatsTrackId,
+                        mPlayback.getCurrentStreamPosition());
+            }
+            PlayStatsStore.getInstance().flush();
+        }
         updatePlaybackState(null);
     }
 
@@ -5,17 +5,20 @@ import android.content.ContentUris;
 import android.content.Context;
 import android.database.Cursor;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.media.MediaMetadata;
 import android.media.MediaMetadataRetriever;
 import android.net.Uri;
 import android.os.AsyncTask;
+import android.os.SystemClock;
 import android.provider.MediaStore;
 import android.util.Log;
 
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
@@ -40,17 +43,35 @@ public class MusicProvider {
     // Content select criteria
     private static final String MUSIC_SELECT_FILTER = MediaStore.Audio.Media.IS_MUSIC + " != 0";
     private static final String MUSIC_SORT_ORDER = MediaStore.Audio.Media.TITLE + " ASC";
+    private static final String PLAYLIST_SELECT_FILTER = MediaStore.Files.FileColumns.DATA
+            + " LIKE '%.m3u' OR " + MediaStore.Files.FileColumns.DATA
+            + " LIKE '%.m3u8' OR " + MediaStore.Files.FileColumns.DATA + " LIKE '%.pls'";
 
     // Categorized caches for music track data:
     private Context mContext;
+    // Size of the default album art, embedded arts are decoded to fit it.
+    private int mArtWidth;
+    private int mArtHeight;
     // Album Name --> list of Metadata
     private ConcurrentMap<String, List<MediaMetadata>> mMusicListByAlbum;
     // Artist Name --> Map of (album name --> album metadata)
     private ConcurrentMap<String, Map<String, MediaMetadata>> mArtistAlbumDb;
     // Folder Name --> list of Metadata
     private ConcurrentMap<String, List<MediaMetadata>> mMusicListByFolder;
+    // Playlist Name --> list of Metadata
+    private ConcurrentMap<String, List<MediaMetadata>> mMusicListByPlaylist;
     private List<MediaMetadata> mMusicList;
+    // Browsable dimensions sorted by title once the scan is done, with their sections
+    private List<String> mArtists = Collections.emptyList();
+    private List<MediaMetadata> mAlbums = Collections.emptyList();
+    private List<String> mFolders = Collections.emptyList();
+    private SectionIndex mArtistSections = SectionIndex.EMPTY;
+    private SectionIndex mAlbumSections = SectionIndex.EMPTY;
+    private SectionIndex mFolderSections = SectionIndex.EMPTY;
+    private SectionIndex mMusicSections = SectionIndex.EMPTY;
     private final ConcurrentMap<Long, Song> mMusicListById;
+    private final MusicSearcher mSearcher;
+    private final SmartPlaylists mSmartPlaylists;
 
     enum State {NON_INITIALIZED, INITIALIZING, INITIALIZED}
 
@@ -61,8 +82,19 @@ public class MusicProvider {
         mMusicListByAlbum = new ConcurrentHashMap<>();
         mArtistAlbumDb = new ConcurrentHashMap<>();
         mMusicListByFolder = new ConcurrentHashMap<>();
+        mMusicListByPlaylist = new ConcurrentHashMap<>();
         mMusicList = new ArrayList<>();
         mMusicListById = new ConcurrentHashMap<>();
+        mSearcher = new MusicSearcher();
+        mSmartPlaylists = new SmartPlaylists(PlayStatsStore.getInstance());
+        PlayStatsStore.getInstance().addListener(mSmartPlaylists);
+    }
+
+    /**
+     * Stop following the play statistics.
+     */
+    public void release() {
+        PlayStatsStore.getInstance().removeListener(mSmartPlaylists);
     }
 
     public boolean isInitialized() {
@@ -70,49 +102,79 @@ public class MusicProvider {
     }
 
     /**
-     * Get an iterator over the list of artists
+     * Get the list of artists, sorted by name
      *
      * @return list of artists
      */
-    public Iterable<String> getArtists() {
+    public List<String> getArtists() {
         if (mCurrentState != State.INITIALIZED) {
             return Collections.emptyList();
         }
-        return mArtistAlbumDb.keySet();
+        return mArtists;
     }
 
     /**
-     * Get an iterator over the list of albums
+     * Get the list of albums, sorted by name
      *
      * @return list of albums
      */
-    public Iterable<MediaMetadata> getAlbums() {
+    public List<MediaMetadata> getAlbums() {
         if (mCurrentState != State.INITIALIZED) {
             return Collections.emptyList();
         }
-        ArrayList<MediaMetadata> albumList = new ArrayList<>();
-        for (Map<String, MediaMetadata> artist_albums : mArtistAlbumDb.values()) {
-            albumList.addAll(artist_albums.values());
-        }
-        return albumList;
+        return mAlbums;
     }
 
     /**
-     * Get an iterator over the list of folders
+     * Get the list of folders, sorted by name
      *
      * @return list of folders
      */
-    public Iterable<String> getFolders() {
+    public List<String> getFolders() {
         if (mCurrentState != State.INITIALIZED) {
             return Collections.emptyList();
         }
-        return mMusicListByFolder.keySet();
+        return mFolders;
     }
 
-    public Iterable<MediaMetadata> getMusicList() {
+    /**
+     * Get an iterator over the list of playlists
+     *
+     * @return list of playlists
+     */
+    public Iterable<String> getPlaylists() {
+        if (mCurrentState != State.INITIALIZED) {
+            return Collections.emptyList();
+        }
+        return mMusicListByPlaylist.keySet();
+    }
+
+    /**
+     * Get the list of tracks, sorted by title
+     */
+    public List<MediaMetadata> getMusicList() {
         return mMusicList;
     }
 
+    /**
+     * Sections of the sorted lists, empty until the catalog is initialized
+     */
+    public SectionIndex getArtistSections() {
+        return mArtistSections;
+    }
+
+    public SectionIndex getAlbumSections() {
+        return mAlbumSections;
+    }
+
+    public SectionIndex getFolderSections() {
+        return mFolderSections;
+    }
+
+    public SectionIndex getMusicSections() {
+        return mMusicSections;
+    }
+
     /**
      * Get albums of a certain artist
      */
@@ -143,6 +205,37 @@ public class MusicProvider {
         return mMusicListByFolder.get(folder);
     }
 
+    /**
+     * Get music tracks of the given playlist
+     */
+    public Iterable<MediaMetadata> getMusicsByPlaylist(String playlist) {
+        if (mCurrentState != State.INITIALIZED || !mMusicListByPlaylist.containsKey(playlist)) {
+            return Collections.emptyList();
+        }
+        return mMusicListByPlaylist.get(playlist);
+    }
+
+    /**
+     * Get music tracks of the given smart playlist
+     */
+    public Iterable<MediaMetadata> getMusicsBySmartPlaylist(String name) {
+        if (mCurrentState != State.INITIALIZED) {
+            return Collections.emptyList();
+        }
+        long[] trackIds = mSmartPlaylists.getTracks(name);
+        if (trackIds == null) {
+            return Collections.emptyList();
+        }
+        List<MediaMetadata> tracks = new ArrayList<>(trackIds.length);
+        for (long trackId : trackIds) {
+            Song song = mMusicListById.get(trackId);
+            if (song != null) {
+                tracks.add(song.getMetadata());
+            }
+        }
+        return tracks;
+    }
+
     /**
      * Return the MediaMetadata for the given musicID.
      *
@@ -152,21 +245,32 @@ public class MusicProvider {
         return mMusicListById.containsKey(musicId) ? mMusicListById.get(musicId) : null;
     }
 
-    public Iterable<MediaMetadata> searchMusic(String titleQuery) {
+    /**
+     * Return the MediaMetadata for the given musicID. Until the catalog is loaded, the tracks
+     * of the persisted queue snapshot are looked up instead, so playback can resume early.
+     *
+     * @param musicId The unique, non-hierarchical music ID.
+     * @return the metadata, or null if the track is unknown.
+     */
+    public MediaMetadata getTrackMetadata(String musicId) {
+        Song song = getMusicById(Long.parseLong(musicId));
+        if (song != null) {
+            return song.getMetadata();
+        }
+        return PlaybackStateStore.getInstance().getSnapshotTrack(musicId);
+    }
+
+    /**
+     * Search the catalog by title, artist and album.
+     *
+     * @param query text to look for.
+     * @return every matching track, best match first.
+     */
+    public List<MediaMetadata> searchMusic(String query) {
         if (mCurrentState != State.INITIALIZED) {
             return Collections.emptyList();
         }
-        ArrayList<MediaMetadata> result = new ArrayList<>();
-        titleQuery = titleQuery.toLowerCase();
-        for (Song song : mMusicListById.values()) {
-            if (song.getMetadata()
-                    .getString(MediaMetadata.METADATA_KEY_TITLE)
-                    .toLowerCase()
-                    .contains(titleQuery)) {
-                result.add(song.getMetadata());
-            }
-        }
-        return result;
+        return mSearcher.search(mMusicList, query);
     }
 
     public interface MusicProviderCallback {
@@ -221,6 +325,8 @@ public class MusicProvider {
             mCurrentState = State.NON_INITIALIZED;
             return false;
         }
+        // Indexed and cached against the previous catalog
+        mSearcher.invalidate();
         if (!cursor.moveToFirst()) {
             Log.d(TAG, "Failed to move cursor to first row (no query result)");
             cursor.close();
@@ -229,30 +335,167 @@ public class MusicProvider {
         int idColumn = cursor.getColumnIndex(MediaStore.Audio.Media._ID);
         int titleColumn = cursor.getColumnIndex(MediaStore.Audio.Media.TITLE);
         int pathColumn = cursor.getColumnIndex(MediaStore.Audio.Media.DATA);
+        int dateAddedColumn = cursor.getColumnIndex(MediaStore.Audio.Media.DATE_ADDED);
+        // Normalized path --> track id, to resolve playlist entries
+        Map<String, Long> trackIdByPath = new HashMap<>(cursor.getCount() * 2);
+        // Hash of the embedded picture --> decoded art, shared by the tracks of an album
+        Map<Long, Bitmap> artByHash = new HashMap<>();
+        FolderCoverResolver coverResolver = new FolderCoverResolver();
         do {
             Log.i(TAG,
                     "Music ID: " + cursor.getString(idColumn)
                             + " Title: " + cursor.getString(titleColumn));
             long thisId = cursor.getLong(idColumn);
             String thisPath = cursor.getString(pathColumn);
-            MediaMetadata metadata = retrievMediaMetadata(thisId, thisPath);
+            MediaMetadata metadata =
+                    retrievMediaMetadata(thisId, thisPath, artByHash, coverResolver);
             Log.i(TAG, "MediaMetadata: " + metadata);
             if (metadata == null) {
                 continue;
             }
-            Song thisSong = new Song(thisId, metadata, null);
-            // Construct per feature database
-            mMusicList.add(metadata);
-            mMusicListById.put(thisId, thisSong);
-            addMusicToAlbumList(metadata);
-            addMusicToArtistList(metadata);
-            addMusicToFolderList(metadata);
+            addMusic(thisId, metadata);
+            mSmartPlaylists.addTrack(thisId, cursor.getLong(dateAddedColumn));
+            trackIdByPath.put(PlaylistParser.normalizePath(thisPath), thisId);
         } while (cursor.moveToNext());
         cursor.close();
+        Log.d(TAG, "retrieveMedia: " + artByHash.size() + " distinct embedded arts, "
+                + coverResolver.getListCount() + " folders listed for covers");
+        retrievePlaylists(trackIdByPath);
+        sortLists();
         return true;
     }
 
-    private synchronized MediaMetadata retrievMediaMetadata(long musicId, String musicPath) {
+    /**
+     * Add a track to the catalog and to the lists of its album, artist and folder.
+     */
+    void addMusic(long musicId, MediaMetadata metadata) {
+        // Construct per feature database
+        mMusicList.add(metadata);
+        mMusicListById.put(musicId, new Song(musicId, metadata, null));
+        addMusicToAlbumList(metadata);
+        addMusicToArtistList(metadata);
+        addMusicToFolderList(metadata);
+    }
+
+    /**
+     * Sort the browsable dimensions by collated title and index their sections, so browsing
+     * serves pages and sections without sorting again.
+     */
+    private void sortLists() {
+        long start = SystemClock.elapsedRealtime();
+        SectionIndex.TitleGetter<String> nameGetter = new SectionIndex.TitleGetter<String>() {
+            @Override
+            public String getTitle(String name) {
+                return name;
+            }
+        };
+        List<String> artists = new ArrayList<>(mArtistAlbumDb.keySet());
+        mArtistSections = SectionIndex.sort(artists, nameGetter);
+        mArtists = artists;
+
+        List<String> folders = new ArrayList<>(mMusicListByFolder.keySet());
+        mFolderSections = SectionIndex.sort(folders, nameGetter);
+        mFolders = folders;
+
+        List<MediaMetadata> albums = new ArrayList<>();
+        for (Map<String, MediaMetadata> artistAlbums : mArtistAlbumDb.values()) {
+            albums.addAll(artistAlbums.values());
+        }
+        mAlbumSections = SectionIndex.sort(albums, new MetadataTitleGetter(
+                MediaMetadata.METADATA_KEY_ALBUM));
+        mAlbums = albums;
+
+        // The media store sorts titles by their bytes, sort again so sections are contiguous
+        mMusicSections = SectionIndex.sort(mMusicList, new MetadataTitleGetter(
+                MediaMetadata.METADATA_KEY_TITLE));
+        Log.d(TAG, "sortLists: " + artists.size() + " artists, " + albums.size() + " albums, "
+                + folders.size() + " folders, " + mMusicList.size() + " tracks in "
+                + (SystemClock.elapsedRealtime() - start) + "ms");
+    }
+
+    private static class MetadataTitleGetter implements SectionIndex.TitleGetter<MediaMetadata> {
+        private final String mKey;
+
+        MetadataTitleGetter(String key) {
+            mKey = key;
+        }
+
+        @Override
+        public String getTitle(MediaMetadata metadata) {
+            return metadata.getString(mKey);
+        }
+    }
+
+    /**
+     * Find the M3U and PLS playlists known to the media store and resolve their entries
+     * against the scanned tracks.
+     */
+    private void retrievePlaylists(Map<String, Long> trackIdByPath) {
+        Cursor cursor = mContext.getContentResolver().query(
+                MediaStore.Files.getContentUri("external"),
+                new String[]{MediaStore.Files.FileColumns.DATA}, PLAYLIST_SELECT_FILTER, null,
+                null);
+        if (cursor == null) {
+            Log.d(TAG, "retrievePlaylists: cursor is null");
+            return;
+        }
+        while (cursor.moveToNext()) {
+            String path = cursor.getString(0);
+            if (path == null || !PlaylistParser.isPlaylist(path)) {
+                continue;
+            }
+            long start = System.nanoTime();
+            long[] trackIds;
+            BufferedReader reader = null;
+            try {
+                reader = PlaylistParser.openReader(path);
+                trackIds = PlaylistParser.parse(reader, path, trackIdByPath);
+            } catch (IOException e) {
+                Log.d(TAG, "retrievePlaylists: cannot read " + path + " " + e);
+                continue;
+            } finally {
+                if (reader != null) {
+                    try {
+                        reader.close();
+                    } catch (IOException e) {
+                        // ignore
+                    }
+                }
+            }
+            List<MediaMetadata> tracks = new ArrayList<>(trackIds.length);
+            for (long trackId : trackIds) {
+                tracks.add(mMusicListById.get(trackId).getMetadata());
+            }
+            addPlaylist(path, tracks);
+            Log.d(TAG, "retrievePlaylists: " + path + " " + tracks.size() + " tracks in "
+                    + (System.nanoTime() - start) / 1000 + "us");
+        }
+        cursor.close();
+    }
+
+    private void addPlaylist(String path, List<MediaMetadata> tracks) {
+        if (tracks.isEmpty()) {
+            return;
+        }
+        String name = new File(path).getName();
+        int dot = name.lastIndexOf('.');
+        if (dot > 0) {
+            name = name.substring(0, dot);
+        }
+        // Playlists with the same name in different folders
+        String uniqueName = name;
+        for (int i = 2; mMusicListByPlaylist.putIfAbsent(uniqueName, tracks) != null; i++) {
+            uniqueName = name + " (" + i + ")";
+        }
+    }
+
+    /**
+     * @param artByHash     embedded arts already decoded during the scan, by hash of the picture.
+     * @param coverResolver cover images of the folders, for tracks without embedded art.
+     */
+    private synchronized MediaMetadata retrievMediaMetadata(long musicId, String musicPath,
+                                                            Map<Long, Bitmap> artByHash,
+                                                            FolderCoverResolver coverResolver) {
         Log.d(TAG, "getting metadata for music: " + musicPath);
         MediaMetadataRetriever retriever = new MediaMetadataRetriever();
         Uri contentUri = ContentUris.withAppendedId(
@@ -281,14 +524,49 @@ public class MusicProvider {
         byte[] albumArtData = retriever.getEmbeddedPicture();
         Bitmap bitmap;
         if (albumArtData != null) {
-            bitmap = BitmapFactory.decodeByteArray(albumArtData, 0, albumArtData.length);
-            bitmap = MusicUtils.resizeBitmap(bitmap, MusicUtils.getDefaultAlbumArt(mContext));
-            metadataBuilder.putBitmap(MediaMetadata.METADATA_KEY_ALBUM_ART, bitmap);
+            // The tracks of an album usually embed the same picture, decode it once
+            long hash = hashArt(albumArtData);
+            bitmap = artByHash.get(hash);
+            if (bitmap == null) {
+                if (mArtWidth == 0) {
+                    Bitmap defaultArt = MusicUtils.getDefaultAlbumArt(mContext);
+                    mArtWidth = defaultArt.getWidth();
+                    mArtHeight = defaultArt.getHeight();
+                }
+                bitmap = BitmapHelper.decodeBitmap(
+                        albumArtData, 0, albumArtData.length, mArtWidth, mArtHeight);
+                if (bitmap != null) {
+                    artByHash.put(hash, bitmap);
+                }
+            }
+            if (bitmap != null) {
+                metadataBuilder.putBitmap(MediaMetadata.METADATA_KEY_ALBUM_ART, bitmap);
+            }
+        } else {
+            // Loaded by the AlbumArtCache when the track plays
+            String folder = getFolderPath(musicPath);
+            String cover = folder != null ? coverResolver.getCover(folder) : null;
+            if (cover != null) {
+                metadataBuilder.putString(MediaMetadata.METADATA_KEY_ALBUM_ART_URI,
+                        Uri.fromFile(new File(cover)).toString());
+            }
         }
         retriever.release();
         return metadataBuilder.build();
     }
 
+    /**
+     * @return a 64-bit FNV-1a hash of an embedded picture, salted with its length.
+     */
+    private static long hashArt(byte[] data) {
+        long hash = 0xcbf29ce484222325L ^ data.length;
+        for (byte b : data) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
     private void addMusicToAlbumList(MediaMetadata metadata) {
         String thisAlbum = metadata.getString(MediaMetadata.METADATA_KEY_ALBUM);
         if (thisAlbum == null) {
@@ -332,17 +610,27 @@ public class MusicProvider {
         if (thisAlbumArt != null) {
             builder.putBitmap(MediaMetadata.METADATA_KEY_ALBUM_ART, thisAlbumArt);
         }
+        String thisAlbumArtUri = metadata.getString(MediaMetadata.METADATA_KEY_ALBUM_ART_URI);
+        if (thisAlbumArtUri != null && !albumsMap.containsKey(thisAlbum)) {
+            builder.putString(MediaMetadata.METADATA_KEY_ALBUM_ART_URI, thisAlbumArtUri);
+        }
         builder.putLong(MediaMetadata.METADATA_KEY_NUM_TRACKS, count + 1);
         albumsMap.put(thisAlbum, builder.build());
     }
 
+    /**
+     * @return the folder of a track, or null if the path has none.
+     */
+    private static String getFolderPath(String musicPath) {
+        int fileNameStart = musicPath.lastIndexOf(File.separator);
+        return fileNameStart > 0 ? musicPath.substring(0, fileNameStart) : null;
+    }
+
     private void addMusicToFolderList(MediaMetadata metadata) {
         @SuppressLint("WrongConstant")
-        String thisFolder = metadata.getString(CUSTOM_METADATA_TRACK_SOURCE);
-        int fileNameStart = thisFolder.lastIndexOf(File.separator);
+        String dirPath = getFolderPath(metadata.getString(CUSTOM_METADATA_TRACK_SOURCE));
         String dirName = UNKOWN;
-        if (fileNameStart > 0) {
-            String dirPath = thisFolder.substring(0, fileNameStart);
+        if (dirPath != null) {
             int dirNameStart = dirPath.lastIndexOf(File.separator) + 1;
             dirName = dirPath.substring(dirNameStart, dirPath.length());
         }
@@ -357,15 +645,6 @@ public class MusicProvider {
         if (song == null) {
             return;
         }
-
-        String oldGenre = song.getMetadata().getString(MediaMetadata.METADATA_KEY_GENRE);
-        String newGenre = metadata.getString(MediaMetadata.METADATA_KEY_GENRE);
-
         song.setMetadata(metadata);
-
-        // if genre has changed, we need to rebuild the list by genre
-        if (!oldGenre.equals(newGenre)) {
-            //            buildListsByGenre();
-        }
     }
 }
@@ -0,0 +1,190 @@
+package com.lrony.mediabrowsedemo.utils;
+
+import android.annotation.SuppressLint;
+import android.media.MediaMetadata;
+import android.util.Log;
+import android.util.LruCache;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Ranked search over the music catalog.
+ * <p>
+ * Title, artist and album of every track are lower-cased once into a flat index the first
+ * time a search runs on a loaded catalog. The ranked matches of recent queries are kept in a
+ * small LRU cache, and a query that extends a cached one (search-as-you-type) only re-ranks
+ * the cached matches instead of scanning the whole library again.
+ */
+@SuppressLint("NewApi")
+class MusicSearcher {
+
+    private static final String TAG = "MusicSearcher";
+
+    // Number of recent queries whose ranked matches are kept around.
+    private static final int MAX_CACHED_QUERIES = 16;
+
+    private static final int SCORE_TITLE_EXACT = 100;
+    private static final int SCORE_TITLE_PREFIX = 80;
+    private static final int SCORE_TITLE_WORD_PREFIX = 60;
+    private static final int SCORE_ARTIST_PREFIX = 50;
+    private static final int SCORE_TITLE_CONTAINS = 40;
+    private static final int SCORE_ALBUM_PREFIX = 30;
+    private static final int SCORE_ARTIST_CONTAINS = 20;
+    private static final int SCORE_ALBUM_CONTAINS = 15;
+
+    private final LruCache<String, int[]> mRecentQueries = new LruCache<>(MAX_CACHED_QUERIES);
+
+    // Catalog index, built lazily from the provider's music list until invalidated.
+    private MediaMetadata[] mTracks;
+    private String[] mTitles;
+    private String[] mArtists;
+    private String[] mAlbums;
+
+    /**
+     * Search the given tracks for a query.
+     *
+     * @param tracks the whole music catalog, in its natural order.
+     * @param query  text typed or spoken by the user.
+     * @return matching tracks, best match first.
+     */
+    synchronized List<MediaMetadata> search(List<MediaMetadata> tracks, String query) {
+        String normalized = normalize(query);
+        if (normalized.isEmpty()) {
+            return Collections.emptyList();
+        }
+        if (mTracks == null) {
+            buildIndex(tracks);
+        }
+
+        int[] matches = mRecentQueries.get(normalized);
+        if (matches == null) {
+            matches = rank(normalized, findCandidates(normalized));
+            mRecentQueries.put(normalized, matches);
+        } else {
+            Log.d(TAG, "search: cache hit for " + normalized);
+        }
+
+        List<MediaMetadata> result = new ArrayList<>(matches.length);
+        for (int index : matches) {
+            result.add(mTracks[index]);
+        }
+        return result;
+    }
+
+    /**
+     * Drop the index and every cached query, e.g. after the catalog was rebuilt.
+     */
+    synchronized void invalidate() {
+        mTracks = null;
+        mTitles = null;
+        mArtists = null;
+        mAlbums = null;
+        mRecentQueries.evictAll();
+    }
+
+    private void buildIndex(List<MediaMetadata> tracks) {
+        int size = tracks.size();
+        Log.d(TAG, "buildIndex: " + size + " tracks");
+        mTracks = tracks.toArray(new MediaMetadata[size]);
+        mTitles = new String[size];
+        mArtists = new String[size];
+        mAlbums = new String[size];
+        for (int i = 0; i < size; i++) {
+            MediaMetadata track = mTracks[i];
+            mTitles[i] = normalize(track.getString(MediaMetadata.METADATA_KEY_TITLE));
+            mArtists[i] = normalize(track.getString(MediaMetadata.METADATA_KEY_ARTIST));
+            mAlbums[i] = normalize(track.getString(MediaMetadata.METADATA_KEY_ALBUM));
+        }
+        mRecentQueries.evictAll();
+    }
+
+    /**
+     * Every match of a query also matches each of its prefixes, so the matches of the longest
+     * cached prefix are a complete candidate set. Returns null when nothing usable is cached.
+     */
+    private int[] findCandidates(String query) {
+        for (int length = query.length() - 1; length > 0; length--) {
+            int[] cached = mRecentQueries.get(query.substring(0, length));
+            if (cached != null) {
+                return cached;
+            }
+        }
+        return null;
+    }
+
+    private int[] rank(String query, int[] candidates) {
+        int count = candidates != null ? candidates.length : mTracks.length;
+        long[] scored = new long[count];
+        int matches = 0;
+        for (int i = 0; i < count; i++) {
+            int index = candidates != null ? candidates[i] : i;
+            int score = score(query, index);
+            if (score > 0) {
+                // Higher score first, then catalog order.
+                scored[matches++] = ((long) (SCORE_TITLE_EXACT - score) << 32) | index;
+            }
+        }
+        Arrays.sort(scored, 0, matches);
+
+        int[] result = new int[matches];
+        for (int i = 0; i < matches; i++) {
+            result[i] = (int) scored[i];
+        }
+        return result;
+    }
+
+    private int score(String query, int index) {
+        String title = mTitles[index];
+        if (title.equals(query)) {
+            return SCORE_TITLE_EXACT;
+        }
+        int score = 0;
+        int titlePos = title.indexOf(query);
+        if (titlePos == 0) {
+            return SCORE_TITLE_PREFIX;
+        } else if (titlePos > 0) {
+            score = isWordStart(title, titlePos) || hasWordPrefix(title, query, titlePos)
+                    ? SCORE_TITLE_WORD_PREFIX : SCORE_TITLE_CONTAINS;
+        }
+        if (score < SCORE_ARTIST_PREFIX) {
+            int artistPos = mArtists[index].indexOf(query);
+            if (artistPos == 0) {
+                score = SCORE_ARTIST_PREFIX;
+            } else if (artistPos > 0) {
+                score = Math.max(score, SCORE_ARTIST_CONTAINS);
+            }
+        }
+        if (score < SCORE_ALBUM_PREFIX) {
+            int albumPos = mAlbums[index].indexOf(query);
+            if (albumPos == 0) {
+                score = SCORE_ALBUM_PREFIX;
+            } else if (albumPos > 0) {
+                score = Math.max(score, SCORE_ALBUM_CONTAINS);
+            }
+        }
+        return score;
+    }
+
+    private static boolean hasWordPrefix(String text, String query, int from) {
+        int pos = text.indexOf(query, from + 1);
+        while (pos > 0) {
+            if (isWordStart(text, pos)) {
+                return true;
+            }
+            pos = text.indexOf(query, pos + 1);
+        }
+        return false;
+    }
+
+    private static boolean isWordStart(String text, int pos) {
+        return !Character.isLetterOrDigit(text.charAt(pos - 1));
+    }
+
+    private static String normalize(String text) {
+        return text == null ? "" : text.trim().toLowerCase(Locale.getDefault());
+    }
+}
@@ -0,0 +1,466 @@
+package com.lrony.mediabrowsedemo.utils;
+
+import android.annotation.SuppressLint;
+import android.media.MediaDescription;
+import android.media.MediaMetadata;
+import android.media.session.MediaSession;
+import android.os.Bundle;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The "now playing" queue, kept as the ids of its tracks plus the browsing hierarchy it was
+ * created from.
+ * <p>
+ * Creating a queue only copies track ids into primitive arrays. The
+ * {@link MediaSession.QueueItem}s the session and the playback work with are created on
+ * demand, for the few positions that are actually needed.
+ * <p>
+ * Items are stored in chunks of at most CHUNK_CAPACITY, so inserting, removing or moving an
+ * item only shifts one chunk, whatever the queue size. Every item keeps its queue id across
+ * edits. Track ids and queue ids are indexed to the chunk holding them rather than to their
+ * position, so an edit only updates the entries of the items it adds, removes or carries to
+ * another chunk. A lookup adds the start of the chunk to the offset found in it.
+ */
+@SuppressLint("NewApi")
+class PlayQueue {
+
+    private static final int CHUNK_CAPACITY = 512;
+
+    // Browsing hierarchy the queue was created from, e.g. {__BY_ALBUM__, album}
+    private final String[] mCategories;
+    private final List<Chunk> mChunks = new ArrayList<>();
+    // Position of the first item of each chunk, valid for the first mChunkStartsValid chunks.
+    private int[] mChunkStarts = new int[1];
+    private int mChunkStartsValid;
+    private int mSize;
+    private long mNextQueueId;
+
+    // Chunks by their id, with the ids of the chunks dropped from the queue free for reuse
+    private final List<Chunk> mChunksById = new ArrayList<>();
+    private int[] mFreeChunkIds = new int[4];
+    private int mFreeChunkIdCount;
+
+    // Id of the chunk holding each queue id, and the first occurrence of each track id
+    private final LongIntHashMap mChunkByQueueId;
+    private final LongIntHashMap mChunkByTrackId;
+    // Occurrences of each track id in the queue
+    private final LongIntHashMap mTrackIdCounts;
+
+    PlayQueue(long[] trackIds, String... categories) {
+        mCategories = categories;
+        mChunkByQueueId = new LongIntHashMap(trackIds.length, -1);
+        mChunkByTrackId = new LongIntHashMap(trackIds.length, -1);
+        mTrackIdCounts = new LongIntHashMap(trackIds.length, 0);
+        insert(0, trackIds);
+    }
+
+    /**
+     * Create a queue of the given tracks.
+     */
+    static PlayQueue fromTracks(Iterable<MediaMetadata> tracks, String... categories) {
+        return new PlayQueue(toTrackIds(tracks), categories);
+    }
+
+    /**
+     * @return the ids of the given tracks, in the same order.
+     */
+    static long[] toTrackIds(Iterable<MediaMetadata> tracks) {
+        long[] trackIds = new long[tracks instanceof List ? ((List) tracks).size() : 16];
+        int size = 0;
+        for (MediaMetadata track : tracks) {
+            if (size == trackIds.length) {
+                trackIds = Arrays.copyOf(trackIds, size * 2);
+            }
+            trackIds[size++] = Long.parseLong(track.getString(MediaMetadata.METADATA_KEY_MEDIA_ID));
+        }
+        return size == trackIds.length ? trackIds : Arrays.copyOf(trackIds, size);
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    /**
+     * @return number of chunks the items are stored in.
+     */
+    int getChunkCount() {
+        return mChunks.size();
+    }
+
+    boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    String[] getCategories() {
+        return mCategories;
+    }
+
+    long getTrackId(int index) {
+        int chunk = findChunk(index);
+        return mChunks.get(chunk).mTrackIds[index - mChunkStarts[chunk]];
+    }
+
+    /**
+     * @return the queue id of the item at index, which stays the same when the queue is edited.
+     */
+    long getQueueId(int index) {
+        int chunk = findChunk(index);
+        return mChunks.get(chunk).mQueueIds[index - mChunkStarts[chunk]];
+    }
+
+    /**
+     * @return the hierarchy-aware media ID of the item at index, so we know what the queue
+     * is about by looking at it.
+     */
+    String getMediaId(int index) {
+        return MediaIDHelper.createMediaID(String.valueOf(getTrackId(index)), mCategories);
+    }
+
+    /**
+     * @return the position of the item with the given queue id, or -1.
+     */
+    int indexOfQueueId(long queueId) {
+        int chunkId = mChunkByQueueId.get(queueId);
+        return chunkId < 0 ? -1 : indexIn(mChunksById.get(chunkId), queueId, true);
+    }
+
+    /**
+     * @return the position of the item with the given hierarchy-aware media ID, or -1.
+     */
+    int indexOfMediaId(String mediaId) {
+        return indexOfTrackId(Long.parseLong(MediaIDHelper.extractMusicIDFromMediaID(mediaId)));
+    }
+
+    /**
+     * @return the position of the first item with the given track id, or -1.
+     */
+    int indexOfTrackId(long trackId) {
+        int chunkId = mChunkByTrackId.get(trackId);
+        return chunkId < 0 ? -1 : indexIn(mChunksById.get(chunkId), trackId, false);
+    }
+
+    /**
+     * Insert tracks, each one with a new queue id.
+     *
+     * @param index    position of the first inserted track, from 0 to size().
+     * @param trackIds tracks to insert, in order.
+     */
+    void insert(int index, long[] trackIds) {
+        long[] queueIds = new long[trackIds.length];
+        for (int i = 0; i < queueIds.length; i++) {
+            queueIds[i] = mNextQueueId++;
+        }
+        insert(index, trackIds, queueIds);
+    }
+
+    /**
+     * Remove the item at index.
+     */
+    void remove(int index) {
+        int chunkIndex = findChunk(index);
+        Chunk chunk = mChunks.get(chunkIndex);
+        int offset = index - mChunkStarts[chunkIndex];
+        long trackId = chunk.mTrackIds[offset];
+        mChunkByQueueId.remove(chunk.mQueueIds[offset]);
+        chunk.remove(offset);
+        if (chunk.mSize == 0) {
+            // The next chunk starts where this one did, mChunkStarts stays valid up to here.
+            mChunks.remove(chunkIndex);
+            freeChunkId(chunk.mId);
+            mChunkStartsValid = Math.min(mChunkStartsValid, chunkIndex);
+        } else {
+            mChunkStartsValid = Math.min(mChunkStartsValid, chunkIndex + 1);
+        }
+        mSize--;
+
+        int count = mTrackIdCounts.get(trackId) - 1;
+        if (count == 0) {
+            mTrackIdCounts.remove(trackId);
+            mChunkByTrackId.remove(trackId);
+        } else {
+            mTrackIdCounts.put(trackId, count);
+            if (mChunkByTrackId.get(trackId) == chunk.mId
+                    && (chunk.mSize == 0 || chunk.indexOf(trackId, false) < 0)) {
+                // The first occurrence was removed, the next one comes later in the queue.
+                // Only a track queued several times gets here.
+                for (int i = chunkIndex; i < mChunks.size(); i++) {
+                    if (mChunks.get(i).indexOf(trackId, false) >= 0) {
+                        mChunkByTrackId.put(trackId, mChunks.get(i).mId);
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Move the item at from so that it ends up at position to, keeping its queue id.
+     */
+    void move(int from, int to) {
+        if (from == to) {
+            return;
+        }
+        long trackId = getTrackId(from);
+        long queueId = getQueueId(from);
+        remove(from);
+        insert(to, new long[]{trackId}, new long[]{queueId});
+    }
+
+    /**
+     * Create the QueueItem at index. Tracks unknown to the provider get an item with just
+     * the media ID.
+     */
+    MediaSession.QueueItem getQueueItem(int index, MusicProvider musicProvider) {
+        long trackId = getTrackId(index);
+        MediaDescription.Builder descriptionBuilder = new MediaDescription.Builder()
+                .setMediaId(MediaIDHelper.createMediaID(String.valueOf(trackId), mCategories));
+        MediaMetadata track = musicProvider.getTrackMetadata(String.valueOf(trackId));
+        if (track != null) {
+            MediaDescription description = track.getDescription();
+            Bundle extras = new Bundle();
+            extras.putLong(MediaMetadata.METADATA_KEY_DURATION,
+                    track.getLong(MediaMetadata.METADATA_KEY_DURATION));
+            descriptionBuilder.setExtras(extras)
+                    .setTitle(description.getTitle())
+                    .setSubtitle(track.getString(MediaMetadata.METADATA_KEY_ARTIST))
+                    .setIconUri(description.getIconUri())
+                    .setMediaUri(description.getMediaUri())
+                    .setDescription(description.getDescription());
+        }
+        return new MediaSession.QueueItem(descriptionBuilder.build(), getQueueId(index));
+    }
+
+    /**
+     * Create the QueueItems from index from (inclusive) to index to (exclusive).
+     */
+    List<MediaSession.QueueItem> getQueueItems(int from, int to, MusicProvider musicProvider) {
+        List<MediaSession.QueueItem> items = new ArrayList<>(to - from);
+        for (int i = from; i < to; i++) {
+            items.add(getQueueItem(i, musicProvider));
+        }
+        return items;
+    }
+
+    private void insert(int index, long[] trackIds, long[] queueIds) {
+        if (index < 0 || index > mSize) {
+            throw new IndexOutOfBoundsException("index " + index + " size " + mSize);
+        }
+        if (trackIds.length == 0) {
+            return;
+        }
+        if (mChunks.isEmpty()) {
+            mChunks.add(newChunk());
+        }
+        int chunkIndex = index == mSize ? mChunks.size() - 1 : findChunk(index);
+        ensureChunkStarts();
+        Chunk chunk = mChunks.get(chunkIndex);
+        int offset = index - mChunkStarts[chunkIndex];
+        if (chunk.mSize + trackIds.length > CHUNK_CAPACITY
+                && trackIds.length <= CHUNK_CAPACITY / 2 && offset < chunk.mSize) {
+            // Halve a full chunk, so that the next small inserts around here fit in place.
+            // Appends fill it up and go on in new chunks instead, so a queue built by
+            // appending keeps full chunks.
+            splitChunk(chunkIndex);
+            if (offset > chunk.mSize) {
+                offset -= chunk.mSize;
+                chunk = mChunks.get(++chunkIndex);
+            }
+        }
+
+        int moved = 0;
+        if (chunk.mSize + trackIds.length <= CHUNK_CAPACITY) {
+            chunk.insert(offset, trackIds, queueIds, 0, trackIds.length);
+        } else {
+            // Split the chunk at offset, then flow the new items followed by its tail into
+            // the room left and into new chunks.
+            Chunk tail = chunk.split(offset);
+            int next = append(chunkIndex + 1, trackIds, queueIds, 0, trackIds.length);
+            append(next, tail.mTrackIds, tail.mQueueIds, 0, tail.mSize);
+            moved = tail.mSize;
+        }
+        mSize += trackIds.length;
+        mChunkStartsValid = Math.min(mChunkStartsValid, chunkIndex + 1);
+
+        // Items of the tail carried to other chunks, before the new items so that the
+        // first occurrence of a track is settled by position
+        int end = index + trackIds.length;
+        for (int position = end; position < end + moved; position++) {
+            Chunk to = mChunks.get(findChunk(position));
+            long trackId = to.mTrackIds[position - mChunkStarts[to.mIndex]];
+            mChunkByQueueId.put(to.mQueueIds[position - mChunkStarts[to.mIndex]], to.mId);
+            if (mChunkByTrackId.get(trackId) == chunk.mId && chunk.indexOf(trackId, false) < 0) {
+                mChunkByTrackId.put(trackId, to.mId);
+            }
+        }
+        for (int position = index; position < end; position++) {
+            Chunk to = mChunks.get(findChunk(position));
+            long trackId = trackIds[position - index];
+            mChunkByQueueId.put(queueIds[position - index], to.mId);
+            int first = mChunkByTrackId.get(trackId);
+            if (first < 0 || mChunksById.get(first).mIndex > to.mIndex) {
+                mChunkByTrackId.put(trackId, to.mId);
+            }
+            mTrackIdCounts.put(trackId, mTrackIdCounts.get(trackId) + 1);
+        }
+    }
+
+    /**
+     * Append items to the chunk before position next of the chunk list, adding chunks from
+     * there when it is full.
+     *
+     * @return the position in the chunk list after the last chunk filled.
+     */
+    private int append(int next, long[] trackIds, long[] queueIds, int from, int to) {
+        Chunk chunk = mChunks.get(next - 1);
+        while (from < to) {
+            if (chunk.mSize == CHUNK_CAPACITY) {
+                chunk = newChunk();
+                mChunks.add(next++, chunk);
+            }
+            int count = Math.min(to - from, CHUNK_CAPACITY - chunk.mSize);
+            chunk.insert(chunk.mSize, trackIds, queueIds, from, count);
+            from += count;
+        }
+        return next;
+    }
+
+    /**
+     * Move the second half of a chunk to a new chunk right after it.
+     */
+    private void splitChunk(int chunkIndex) {
+        Chunk chunk = mChunks.get(chunkIndex);
+        Chunk half = newChunk();
+        int mid = chunk.mSize / 2;
+        half.insert(0, chunk.mTrackIds, chunk.mQueueIds, mid, chunk.mSize - mid);
+        chunk.mSize = mid;
+        mChunks.add(chunkIndex + 1, half);
+        mChunkStartsValid = Math.min(mChunkStartsValid, chunkIndex + 1);
+        for (int i = 0; i < half.mSize; i++) {
+            long trackId = half.mTrackIds[i];
+            mChunkByQueueId.put(half.mQueueIds[i], half.mId);
+            if (mChunkByTrackId.get(trackId) == chunk.mId && chunk.indexOf(trackId, false) < 0) {
+                mChunkByTrackId.put(trackId, half.mId);
+            }
+        }
+        ensureChunkStarts();
+    }
+
+    /**
+     * @return the position of the first item of chunk with the given queue id or track id.
+     */
+    private int indexIn(Chunk chunk, long id, boolean queueId) {
+        ensureChunkStarts();
+        return mChunkStarts[chunk.mIndex] + chunk.indexOf(id, queueId);
+    }
+
+    private Chunk newChunk() {
+        Chunk chunk = new Chunk();
+        if (mFreeChunkIdCount > 0) {
+            chunk.mId = mFreeChunkIds[--mFreeChunkIdCount];
+            mChunksById.set(chunk.mId, chunk);
+        } else {
+            chunk.mId = mChunksById.size();
+            mChunksById.add(chunk);
+        }
+        return chunk;
+    }
+
+    private void freeChunkId(int chunkId) {
+        mChunksById.set(chunkId, null);
+        if (mFreeChunkIdCount == mFreeChunkIds.length) {
+            mFreeChunkIds = Arrays.copyOf(mFreeChunkIds, mFreeChunkIdCount * 2);
+        }
+        mFreeChunkIds[mFreeChunkIdCount++] = chunkId;
+    }
+
+    /**
+     * @return the position in the chunk list of the chunk holding the item at index.
+     */
+    private int findChunk(int index) {
+        if (index < 0 || index >= mSize) {
+            throw new IndexOutOfBoundsException("index " + index + " size " + mSize);
+        }
+        ensureChunkStarts();
+        int low = 0;
+        int high = mChunks.size() - 1;
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            if (mChunkStarts[middle] <= index) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return low;
+    }
+
+    private void ensureChunkStarts() {
+        int count = mChunks.size();
+        if (mChunkStartsValid >= count) {
+            return;
+        }
+        if (mChunkStarts.length < count) {
+            mChunkStarts = Arrays.copyOf(mChunkStarts, Math.max(count, mChunkStarts.length * 2));
+        }
+        int start = mChunkStartsValid == 0 ? 0
+                : mChunkStarts[mChunkStartsValid - 1] + mChunks.get(mChunkStartsValid - 1).mSize;
+        for (int i = mChunkStartsValid; i < count; i++) {
+            Chunk chunk = mChunks.get(i);
+            chunk.mIndex = i;
+            mChunkStarts[i] = start;
+            start += chunk.mSize;
+        }
+        mChunkStartsValid = count;
+    }
+
+    private static class Chunk {
+        final long[] mTrackIds = new long[CHUNK_CAPACITY];
+        final long[] mQueueIds = new long[CHUNK_CAPACITY];
+        int mSize;
+        // Key of the chunk in the indexes, and its position in the chunk list once
+        // ensureChunkStarts has run
+        int mId = -1;
+        int mIndex;
+
+        /**
+         * @return the offset of the first item with the given queue id or track id, or -1.
+         */
+        int indexOf(long id, boolean queueId) {
+            long[] ids = queueId ? mQueueIds : mTrackIds;
+            for (int i = 0; i < mSize; i++) {
+                if (ids[i] == id) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        void insert(int offset, long[] trackIds, long[] queueIds, int from, int count) {
+            System.arraycopy(mTrackIds, offset, mTrackIds, offset + count, mSize - offset);
+            System.arraycopy(mQueueIds, offset, mQueueIds, offset + count, mSize - offset);
+            System.arraycopy(trackIds, from, mTrackIds, offset, count);
+            System.arraycopy(queueIds, from, mQueueIds, offset, count);
+            mSize += count;
+        }
+
+        void remove(int offset) {
+            System.arraycopy(mTrackIds, offset + 1, mTrackIds, offset, mSize - offset - 1);
+            System.arraycopy(mQueueIds, offset + 1, mQueueIds, offset, mSize - offset - 1);
+            mSize--;
+        }
+
+        /**
+         * Move the items from offset on to a new chunk, which is not part of the queue nor
+         * indexed.
+         */
+        Chunk split(int offset) {
+            Chunk tail = new Chunk();
+            tail.insert(0, mTrackIds, mQueueIds, offset, mSize - offset);
+            mSize = offset;
+            return tail;
+        }
+    }
+}
@@ -0,0 +1,210 @@
+package com.lrony.mediabrowsedemo.utils;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+
+/**
+ * Per-track play counters, folded from play events.
+ * <p>
+ * Counters are kept in parallel primitive arrays, one row per track, and rows are found through
+ * a {@link LongIntHashMap}, so folding an event never allocates. Top-k queries go through a
+ * heap of k rows instead of sorting the whole table.
+ */
+class PlayStats {
+
+    static final int EVENT_START = 1;
+    static final int EVENT_COMPLETE = 2;
+    static final int EVENT_SKIP = 3;
+    static final int EVENT_POSITION = 4;
+
+    private final LongIntHashMap mRowByTrackId;
+    private long[] mTrackIds;
+    private int[] mPlays;
+    private int[] mCompletions;
+    private int[] mSkips;
+    private long[] mLastPlayed;
+    // Position reached in the last play, when it was skipped or paused.
+    private int[] mLastPosition;
+    private int mSize;
+
+    PlayStats(int expectedSize) {
+        int capacity = Math.max(16, expectedSize);
+        mRowByTrackId = new LongIntHashMap(capacity, -1);
+        mTrackIds = new long[capacity];
+        mPlays = new int[capacity];
+        mCompletions = new int[capacity];
+        mSkips = new int[capacity];
+        mLastPlayed = new long[capacity];
+        mLastPosition = new int[capacity];
+    }
+
+    /**
+     * Fold an event into the counters of its track.
+     *
+     * @param time     wall clock time of the event.
+     * @param position playback position in the track, for skip and position events.
+     */
+    void apply(int type, long trackId, long time, int position) {
+        int row = getOrAddRow(trackId);
+        switch (type) {
+            case EVENT_START:
+                mPlays[row]++;
+                mLastPlayed[row] = Math.max(mLastPlayed[row], time);
+                break;
+            case EVENT_COMPLETE:
+                mCompletions[row]++;
+                break;
+            case EVENT_SKIP:
+                mSkips[row]++;
+                mLastPosition[row] = position;
+                break;
+            case EVENT_POSITION:
+                mLastPosition[row] = position;
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown event " + type);
+        }
+    }
+
+    /**
+     * @return the number of tracks with counters.
+     */
+    int size() {
+        return mSize;
+    }
+
+    int getPlayCount(long trackId) {
+        int row = mRowByTrackId.get(trackId);
+        return row >= 0 ? mPlays[row] : 0;
+    }
+
+    int getCompletionCount(long trackId) {
+        int row = mRowByTrackId.get(trackId);
+        return row >= 0 ? mCompletions[row] : 0;
+    }
+
+    int getSkipCount(long trackId) {
+        int row = mRowByTrackId.get(trackId);
+        return row >= 0 ? mSkips[row] : 0;
+    }
+
+    /**
+     * @return the time the track last started playing, 0 if it never did.
+     */
+    long getLastPlayedTime(long trackId) {
+        int row = mRowByTrackId.get(trackId);
+        return row >= 0 ? mLastPlayed[row] : 0;
+    }
+
+    int getLastPosition(long trackId) {
+        int row = mRowByTrackId.get(trackId);
+        return row >= 0 ? mLastPosition[row] : 0;
+    }
+
+    /**
+     * @return the ids of the k most played tracks, most played first. Ties go to the track
+     * played last.
+     */
+    long[] getMostPlayed(int k) {
+        return topK(k, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                int result = Integer.compare(mPlays[a], mPlays[b]);
+                return result != 0 ? result : Long.compare(mLastPlayed[a], mLastPlayed[b]);
+            }
+        });
+    }
+
+    /**
+     * @return the ids of the k tracks played last, most recent first.
+     */
+    long[] getRecentlyPlayed(int k) {
+        return topK(k, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return Long.compare(mLastPlayed[a], mLastPlayed[b]);
+            }
+        });
+    }
+
+    /**
+     * @return the track ids of the k greatest rows that were played at least once, greatest
+     * first.
+     */
+    private long[] topK(int k, Comparator<Integer> order) {
+        if (k <= 0) {
+            return new long[0];
+        }
+        // Min-heap of the best k rows so far, its head is the first one to drop.
+        PriorityQueue<Integer> heap = new PriorityQueue<>(Math.min(k, Math.max(mSize, 1)), order);
+        for (int row = 0; row < mSize; row++) {
+            if (mPlays[row] == 0) {
+                continue;
+            }
+            if (heap.size() < k) {
+                heap.add(row);
+            } else if (order.compare(row, heap.peek()) > 0) {
+                heap.poll();
+                heap.add(row);
+            }
+        }
+        long[] trackIds = new long[heap.size()];
+        for (int i = trackIds.length - 1; i >= 0; i--) {
+            trackIds[i] = mTrackIds[heap.poll()];
+        }
+        return trackIds;
+    }
+
+    void write(DataOutputStream out) throws IOException {
+        out.writeInt(mSize);
+        for (int row = 0; row < mSize; row++) {
+            out.writeLong(mTrackIds[row]);
+            out.writeInt(mPlays[row]);
+            out.writeInt(mCompletions[row]);
+            out.writeInt(mSkips[row]);
+            out.writeLong(mLastPlayed[row]);
+            out.writeInt(mLastPosition[row]);
+        }
+    }
+
+    static PlayStats read(DataInputStream in) throws IOException {
+        int size = in.readInt();
+        if (size < 0) {
+            throw new IOException("Invalid size " + size);
+        }
+        PlayStats stats = new PlayStats(size);
+        for (int i = 0; i < size; i++) {
+            int row = stats.getOrAddRow(in.readLong());
+            stats.mPlays[row] = in.readInt();
+            stats.mCompletions[row] = in.readInt();
+            stats.mSkips[row] = in.readInt();
+            stats.mLastPlayed[row] = in.readLong();
+            stats.mLastPosition[row] = in.readInt();
+        }
+        return stats;
+    }
+
+    private int getOrAddRow(long trackId) {
+        int row = mRowByTrackId.get(trackId);
+        if (row >= 0) {
+            return row;
+        }
+        if (mSize == mTrackIds.length) {
+            int capacity = mSize * 2;
+            mTrackIds = Arrays.copyOf(mTrackIds, capacity);
+            mPlays = Arrays.copyOf(mPlays, capacity);
+            mCompletions = Arrays.copyOf(mCompletions, capacity);
+            mSkips = Arrays.copyOf(mSkips, capacity);
+            mLastPlayed = Arrays.copyOf(mLastPlayed, capacity);
+            mLastPosition = Arrays.copyOf(mLastPosition, capacity);
+        }
+        row = mSize++;
+        mTrackIds[row] = trackId;
+        mRowByTrackId.put(trackId, row);
+        return row;
+    }
+}
@@ -0,0 +1,434 @@
+package com.lrony.mediabrowsedemo.utils;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.zip.CRC32;
+
+/**
+ * Play statistics: play, completion and skip counts and the last play time of each track.
+ * <p>
+ * Events are appended to a binary log and folded into {@link PlayStats}, both on a background
+ * thread. The log is compacted into a snapshot of the counters when the store is initialized
+ * and whenever it reaches MAX_LOG_RECORDS, so it stays bounded. Snapshot and log carry a
+ * generation number: a log older than the snapshot was already folded into it, which makes a
+ * compaction interrupted between writing the snapshot and truncating the log harmless.
+ */
+public class PlayStatsStore {
+
+    private static final String TAG = "PlayStatsStore";
+
+    private static final String SNAPSHOT_FILE_NAME = "play_stats.snapshot";
+    private static final String LOG_FILE_NAME = "play_stats.log";
+    private static final int SNAPSHOT_MAGIC = 0x50535353; // "PSSS"
+    private static final int LOG_MAGIC = 0x50534c47; // "PSLG"
+    private static final int VERSION = 1;
+    // Upper bound of a sane snapshot, anything bigger means the file is corrupt.
+    private static final int MAX_SNAPSHOT_SIZE = 16 * 1024 * 1024;
+
+    // Log records: type (byte), track id (long), time (long), position (int).
+    private static final int MAX_LOG_RECORDS = 4096;
+    // Max time an event stays in the log buffer.
+    private static final int FLUSH_DELAY = 1000;
+
+    private static final int MSG_LOAD = 0;
+    private static final int MSG_EVENT = 1;
+    private static final int MSG_FLUSH = 2;
+
+    private static PlayStatsStore sInstance;
+
+    /**
+     * Notified from the background thread when counters change.
+     */
+    public interface Listener {
+        /**
+         * A track started playing, with its new play count and last play time.
+         */
+        void onTrackPlayed(long trackId, int playCount, long lastPlayedTime);
+
+        /**
+         * The counters were loaded, every track may have changed.
+         */
+        void onStatsLoaded();
+    }
+
+    private File mSnapshotFile;
+    private File mLogFile;
+    private Handler mHandler;
+
+    // Counters, replaced on load and updated from the background thread, guarded by this.
+    private PlayStats mStats = new PlayStats(0);
+    private final List<Listener> mListeners = new CopyOnWriteArrayList<>();
+
+    // Only used from the background thread.
+    private DataOutputStream mLog;
+    private int mLogRecords;
+    private long mGeneration;
+
+    private PlayStatsStore() {
+    }
+
+    public static synchronized PlayStatsStore getInstance() {
+        if (sInstance == null) {
+            sInstance = new PlayStatsStore();
+        }
+        return sInstance;
+    }
+
+    public void initialize(Context context) {
+        File dir = context.getFilesDir();
+        mSnapshotFile = new File(dir, SNAPSHOT_FILE_NAME);
+        mLogFile = new File(dir, LOG_FILE_NAME);
+
+        HandlerThread thread =
+                new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        mHandler = new Handler(thread.getLooper()) {
+            @Override
+            public void handleMessage(Message msg) {
+                switch (msg.what) {
+                    case MSG_LOAD:
+                        load();
+                        break;
+                    case MSG_EVENT:
+                        long[] event = (long[]) msg.obj;
+                        append(msg.arg1, event[0], event[1], msg.arg2);
+                        break;
+                    case MSG_FLUSH:
+                        flushLog();
+                        break;
+                    default:
+                        break;
+                }
+            }
+        };
+        mHandler.sendEmptyMessage(MSG_LOAD);
+    }
+
+    public void addListener(Listener listener) {
+        mListeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        mListeners.remove(listener);
+    }
+
+    /**
+     * The track started playing from its beginning.
+     */
+    public void recordStart(long trackId) {
+        record(PlayStats.EVENT_START, trackId, 0);
+    }
+
+    /**
+     * The track played to its end.
+     */
+    public void recordCompletion(long trackId) {
+        record(PlayStats.EVENT_COMPLETE, trackId, 0);
+    }
+
+    /**
+     * The track was left for another one at the given position.
+     */
+    public void recordSkip(long trackId, int position) {
+        record(PlayStats.EVENT_SKIP, trackId, position);
+    }
+
+    /**
+     * Playback of the track stopped or paused at the given position.
+     */
+    public void recordPosition(long trackId, int position) {
+        record(PlayStats.EVENT_POSITION, trackId, position);
+    }
+
+    public synchronized int getPlayCount(long trackId) {
+        return mStats.getPlayCount(trackId);
+    }
+
+    public synchronized int getSkipCount(long trackId) {
+        return mStats.getSkipCount(trackId);
+    }
+
+    /**
+     * @return the skips of the track over its plays, 0 if it was never played.
+     */
+    public synchronized float getSkipRate(long trackId) {
+        int plays = mStats.getPlayCount(trackId);
+        return plays > 0 ? (float) mStats.getSkipCount(trackId) / plays : 0;
+    }
+
+    /**
+     * @return the time the track last started playing, 0 if it never did.
+     */
+    public synchronized long getLastPlayedTime(long trackId) {
+        return mStats.getLastPlayedTime(trackId);
+    }
+
+    /**
+     * @return the ids of the k most played tracks, most played first.
+     */
+    public synchronized long[] getMostPlayed(int k) {
+        return mStats.getMostPlayed(k);
+    }
+
+    /**
+     * @return the ids of the k tracks played last, most recent first.
+     */
+    public synchronized long[] getRecentlyPlayed(int k) {
+        return mStats.getRecentlyPlayed(k);
+    }
+
+    /**
+     * Write the buffered events now, still from the background thread.
+     */
+    public void flush() {
+        if (mHandler != null) {
+            mHandler.removeMessages(MSG_FLUSH);
+            mHandler.sendEmptyMessage(MSG_FLUSH);
+        }
+    }
+
+    private void record(int type, long trackId, int position) {
+        if (mHandler == null) {
+            return;
+        }
+        mHandler.obtainMessage(MSG_EVENT, type, position,
+                new long[]{trackId, System.currentTimeMillis()}).sendToTarget();
+    }
+
+    private void append(int type, long trackId, long time, int position) {
+        int playCount;
+        long lastPlayedTime;
+        synchronized (this) {
+            mStats.apply(type, trackId, time, position);
+            playCount = mStats.getPlayCount(trackId);
+            lastPlayedTime = mStats.getLastPlayedTime(trackId);
+        }
+        if (type == PlayStats.EVENT_START) {
+            for (Listener listener : mListeners) {
+                listener.onTrackPlayed(trackId, playCount, lastPlayedTime);
+            }
+        }
+        if (mLog == null) {
+            return;
+        }
+        try {
+            mLog.writeByte(type);
+            mLog.writeLong(trackId);
+            mLog.writeLong(time);
+            mLog.writeInt(position);
+        } catch (IOException e) {
+            Log.w(TAG, "append: failed to write " + mLogFile, e);
+        }
+        if (++mLogRecords >= MAX_LOG_RECORDS) {
+            compact();
+        } else if (!mHandler.hasMessages(MSG_FLUSH)) {
+            mHandler.sendEmptyMessageDelayed(MSG_FLUSH, FLUSH_DELAY);
+        }
+    }
+
+    private void flushLog() {
+        if (mLog != null) {
+            try {
+                mLog.flush();
+            } catch (IOException e) {
+                Log.w(TAG, "flushLog: failed to write " + mLogFile, e);
+            }
+        }
+    }
+
+    /**
+     * Load the snapshot, replay the log written since, and compact both.
+     */
+    private void load() {
+        PlayStats stats = loadSnapshot();
+        if (stats == null) {
+            stats = new PlayStats(0);
+            mGeneration = 0;
+        }
+        int replayed = replayLog(stats);
+        Log.d(TAG, "load: " + stats.size() + " tracks, generation " + mGeneration
+                + ", replayed " + replayed + " events");
+        synchronized (this) {
+            mStats = stats;
+        }
+        for (Listener listener : mListeners) {
+            listener.onStatsLoaded();
+        }
+        compact();
+    }
+
+    private PlayStats loadSnapshot() {
+        if (!mSnapshotFile.exists()) {
+            return null;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mSnapshotFile)));
+            if (in.readInt() != SNAPSHOT_MAGIC || in.readInt() != VERSION) {
+                return null;
+            }
+            long generation = in.readLong();
+            int length = in.readInt();
+            if (length < 0 || length > MAX_SNAPSHOT_SIZE) {
+                return null;
+            }
+            byte[] payload = new byte[length];
+            in.readFully(payload);
+            CRC32 crc = new CRC32();
+            crc.update(payload);
+            if (in.readLong() != crc.getValue()) {
+                Log.d(TAG, "loadSnapshot: checksum mismatch");
+                return null;
+            }
+            PlayStats stats =
+                    PlayStats.read(new DataInputStream(new ByteArrayInputStream(payload)));
+            mGeneration = generation;
+            return stats;
+        } catch (IOException e) {
+            Log.d(TAG, "loadSnapshot: unreadable " + mSnapshotFile + " " + e);
+            return null;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    /**
+     * Fold the events of the log into stats, if the log belongs to the loaded snapshot.
+     *
+     * @return the number of events replayed.
+     */
+    private int replayLog(PlayStats stats) {
+        if (!mLogFile.exists()) {
+            return 0;
+        }
+        int count = 0;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mLogFile)));
+            if (in.readInt() != LOG_MAGIC || in.readInt() != VERSION
+                    || in.readLong() != mGeneration) {
+                // Already folded into the snapshot, or unreadable
+                return 0;
+            }
+            while (true) {
+                int type = in.readByte();
+                long trackId = in.readLong();
+                long time = in.readLong();
+                int position = in.readInt();
+                if (type < PlayStats.EVENT_START || type > PlayStats.EVENT_POSITION) {
+                    Log.d(TAG, "replayLog: invalid event " + type + " after " + count);
+                    break;
+                }
+                stats.apply(type, trackId, time, position);
+                count++;
+            }
+        } catch (EOFException e) {
+            // End of the log, possibly in the middle of a record written when the process died
+        } catch (IOException e) {
+            Log.d(TAG, "replayLog: unreadable " + mLogFile + " " + e);
+        } finally {
+            closeQuietly(in);
+        }
+        return count;
+    }
+
+    /**
+     * Write the counters to a new snapshot and start an empty log of the next generation.
+     */
+    private void compact() {
+        closeQuietly(mLog);
+        mLog = null;
+        mLogRecords = 0;
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            synchronized (this) {
+                mStats.write(new DataOutputStream(bytes));
+            }
+        } catch (IOException e) {
+            // Cannot happen when writing to memory
+            throw new IllegalStateException(e);
+        }
+        byte[] payload = bytes.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        long generation = mGeneration + 1;
+
+        File tmpFile = new File(mSnapshotFile.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            FileOutputStream fos = new FileOutputStream(tmpFile);
+            out = new DataOutputStream(new BufferedOutputStream(fos));
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(generation);
+            out.writeInt(payload.length);
+            out.write(payload);
+            out.writeLong(crc.getValue());
+            out.flush();
+            fos.getFD().sync();
+        } catch (IOException e) {
+            Log.w(TAG, "compact: failed to write " + tmpFile, e);
+            closeQuietly(out);
+            // Keep appending to the current log
+            openLog(true);
+            return;
+        } finally {
+            closeQuietly(out);
+        }
+        if (!tmpFile.renameTo(mSnapshotFile)) {
+            Log.w(TAG, "compact: failed to rename " + tmpFile);
+            openLog(true);
+            return;
+        }
+        mGeneration = generation;
+        openLog(false);
+        Log.d(TAG, "compact: " + payload.length + " bytes, generation " + mGeneration);
+    }
+
+    private void openLog(boolean append) {
+        try {
+            mLog = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(mLogFile, append)));
+            if (!append) {
+                mLog.writeInt(LOG_MAGIC);
+                mLog.writeInt(VERSION);
+                mLog.writeLong(mGeneration);
+                mLog.flush();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "openLog: failed to open " + mLogFile, e);
+            closeQuietly(mLog);
+            mLog = null;
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+}
@@ -56,6 +56,52 @@ public class Playback implements AudioManager.OnAudioFocusChangeListener, MediaP
     private int mAudioFocus = AUDIO_NO_FOCUS_NO_DUCK;
     private AudioManager mAudioManager;
     private MediaPlayer mMediaPlayer;
+    private boolean mMediaPlayerPrepared;
+
+    // Gapless playback: a second MediaPlayer prepares the next queue item while the current
+    // one plays, and is chained to it with MediaPlayer.setNextMediaPlayer.
+    private final GaplessChain<MediaPlayer> mGaplessChain =
+            new GaplessChain<>(new GaplessChain.Host<MediaPlayer>() {
+                @Override
+                public MediaPlayer createPlayer() {
+                    return createMediaPlayer();
+                }
+
+                @Override
+                public String getSource(String mediaId) {
+                    return Playback.this.getSource(mediaId);
+                }
+
+                @Override
+                public boolean prepareAsync(MediaPlayer player, String source) {
+                    try {
+                        player.reset();
+                        player.setAudioStreamType(AudioManager.STREAM_MUSIC);
+                        player.setDataSource(source);
+                        Log.d(TAG, "prepareNextMediaPlayer source: " + source);
+                        player.prepareAsync();
+                        return true;
+                    } catch (IOException ex) {
+                        Log.d(TAG, ex + "Exception preparing next song");
+                        return false;
+                    }
+                }
+
+                @Override
+                public void setNextPlayer(MediaPlayer player, MediaPlayer next) {
+                    player.setNextMediaPlayer(next);
+                }
+
+                @Override
+                public void reset(MediaPlayer player) {
+                    player.reset();
+                }
+
+                @Override
+                public void release(MediaPlayer player) {
+                    player.release();
+                }
+            });
 
     private IntentFilter mAudioNoisyIntentFilter =
             new IntentFilter(AudioManager.ACTION_AUDIO_BECOMING_NOISY);
@@ -134,27 +180,44 @@ public class Playback implements AudioManager.OnAudioFocusChangeListener, MediaP
             mCurrentMediaId = mediaId;
         }
 
-        if (mState == PlaybackState.STATE_PAUSED && !mediaHasChanged && mMediaPlayer != null) {
+        if (mediaHasChanged && mMediaPlayer != null && mGaplessChain.isPrepared(mediaId)) {
+            // Fast path, e.g. skipping to next: the item is already prepared on the next
+            // MediaPlayer, so there is no need to reset and prepare again.
+            Log.d(TAG, "play: reusing the prepared next MediaPlayer for " + mediaId);
+            relaxResources(false);
+            swapToNextMediaPlayer();
+            mService.getLatencyStats().finish(PlaybackLatencyStats.SKIP);
+            configMediaPlayerState();
+        } else if (mState == PlaybackState.STATE_PAUSED && !mediaHasChanged && mMediaPlayer != null) {
+            // Nothing to prepare, e.g. a skip burst that ended where it started
+            mService.getLatencyStats().cancel(PlaybackLatencyStats.SKIP);
             configMediaPlayerState();
         } else {
             mState = PlaybackState.STATE_STOPPED;
             relaxResources(false); // release everything except MediaPlayer
-            MediaMetadata track =
-                    mMusicProvider
-                            .getMusicById(Long.parseLong(MediaIDHelper.extractMusicIDFromMediaID(
-                                    item.getDescription().getMediaId())))
-                            .getMetadata();
-
-            @SuppressLint("WrongConstant") String source = track.getString(MusicProvider.CUSTOM_METADATA_TRACK_SOURCE);
+            // The next item is prepared again once the new current item is prepared
+            mGaplessChain.release(getPreparedMediaPlayer(), false);
+            String source = getSource(mediaId);
+            if (source == null) {
+                // Neither in the catalog nor in the persisted queue snapshot
+                Log.d(TAG, "play: unknown source for " + mediaId);
+                mCurrentMediaId = null;
+                mService.getLatencyStats().cancel(PlaybackLatencyStats.SKIP);
+                if (mCallback != null) {
+                    mCallback.onError("Unknown track " + mediaId);
+                }
+                return;
+            }
 
             try {
-                if (mediaId.equals(SharedPreferencesUtil.getInstance().getMediaBrowseId())) {
-                    mStartSeekPos = SharedPreferencesUtil.getInstance().getMusicPosition();
+                if (mediaId.equals(PlaybackStateStore.getInstance().getMediaId())) {
+                    mStartSeekPos = PlaybackStateStore.getInstance().getPosition();
                 } else {
                     mStartSeekPos = 0;
                 }
 
                 createMediaPlayerIfNeeded();
+                mMediaPlayerPrepared = false;
 
                 mState = PlaybackState.STATE_BUFFERING;
 
@@ -163,8 +226,7 @@ public class Playback implements AudioManager.OnAudioFocusChangeListener, MediaP
 
                 Log.d(TAG, "play source: " + source);
                 Log.d(TAG, "play mediaId: " + mediaId);
-                SharedPreferencesUtil.getInstance().putMusicData(source);
-                SharedPreferencesUtil.getInstance().putMediaBrowseId(mediaId);
+                PlaybackStateStore.getInstance().setTrack(mediaId, source);
 
                 // Starts preparing the media player in the background. When
                 // it's done, it will call our OnPreparedListener (that is,
@@ -184,6 +246,7 @@ public class Playback implements AudioManager.OnAudioFocusChangeListener, MediaP
 
             } catch (IOException ex) {
                 Log.d(TAG, ex + "Exception playing song");
+                mService.getLatencyStats().cancel(PlaybackLatencyStats.SKIP);
                 if (mCallback != null) {
                     mCallback.onError(ex.getMessage());
                 }
@@ -191,6 +254,20 @@ public class Playback implements AudioManager.OnAudioFocusChangeListener, MediaP
         }
     }
 
+    /**
+     * Cancel the preparation of the current item, if it is still in progress. Used when the
+     * item is about to be replaced anyway, e.g. during a burst of skips.
+     */
+    public void cancelPreparing() {
+        if (mMediaPlayer != null && !mMediaPlayerPrepared
+                && mState == PlaybackState.STATE_BUFFERING) {
+            Log.d(TAG, "cancelPreparing: " + mCurrentMediaId);
+            mMediaPlayer.reset();
+            // Make sure the item is prepared again when play is requested.
+            mCurrentMediaId = null;
+        }
+    }
+
     public void pause() {
         if (mState == PlaybackState.STATE_PLAYING) {
             // Pause media player and cancel the 'foreground service' state.
@@ -219,6 +296,7 @@ public class Playback implements AudioManager.OnAudioFocusChangeListener, MediaP
             if (mMediaPlayer.isPlaying()) {
                 mState = PlaybackState.STATE_BUFFERING;
             }
+            mService.getLatencyStats().start(PlaybackLatencyStats.SEEK);
             mMediaPlayer.seekTo(position);
             if (mCallback != null) {
                 mCallback.onPlaybackStatusChanged(mState);
@@ -226,6 +304,50 @@ public class Playback implements AudioManager.OnAudioFocusChangeListener, MediaP
         }
     }
 
+    /**
+     * Set the item to play gaplessly after the current one, or null if playback should stop
+     * when the current item completes. The item is prepared on a second MediaPlayer as soon as
+     * the current one is prepared.
+     */
+    public void setNextQueueItem(MediaSession.QueueItem item) {
+        String mediaId = item != null ? item.getDescription().getMediaId() : null;
+        Log.d(TAG, "setNextQueueItem: " + mediaId);
+        mGaplessChain.setNextItem(mediaId, getPreparedMediaPlayer());
+    }
+
+    /**
+     * @return the current MediaPlayer if it is prepared, null otherwise.
+     */
+    private MediaPlayer getPreparedMediaPlayer() {
+        return mMediaPlayerPrepared ? mMediaPlayer : null;
+    }
+
+    /**
+     * Make the prepared next MediaPlayer the current one, either because the current one
+     * completed and the chained next one took over, or because the next item was requested.
+     */
+    private void swapToNextMediaPlayer() {
+        String mediaId = mGaplessChain.getNextMediaId();
+        mMediaPlayer = mGaplessChain.swap(mMediaPlayer);
+        mMediaPlayerPrepared = true;
+
+        mCurrentMediaId = mediaId;
+        mCurrentPosition = 0;
+        mStartSeekPos = 0;
+        mMediaPlayer.setVolume(mAudioFocus == AUDIO_NO_FOCUS_CAN_DUCK ? VOLUME_DUCK : VOLUME_NORMAL,
+                mAudioFocus == AUDIO_NO_FOCUS_CAN_DUCK ? VOLUME_DUCK : VOLUME_NORMAL);
+        mService.getLatencyStats().finish(PlaybackLatencyStats.TRACK_GAP);
+
+        PlaybackStateStore.getInstance().setTrack(mediaId, getSource(mediaId));
+    }
+
+    @SuppressLint("WrongConstant")
+    private String getSource(String mediaId) {
+        MediaMetadata track = mMusicProvider.getTrackMetadata(
+                MediaIDHelper.extractMusicIDFromMediaID(mediaId));
+        return track != null ? track.getString(MusicProvider.CUSTOM_METADATA_TRACK_SOURCE) : null;
+    }
+
     /**
      * Try to get the system audio focus.
      */
@@ -290,6 +412,7 @@ public class Playback implements AudioManager.OnAudioFocusChangeListener, MediaP
                         }
                         mMediaPlayer.start();
                         mState = PlaybackState.STATE_PLAYING;
+                        mService.getLatencyStats().finish(PlaybackLatencyStats.TRACK_GAP);
                     } else {
                         mMediaPlayer.seekTo(mCurrentPosition);
                         mState = PlaybackState.STATE_BUFFERING;
@@ -343,6 +466,18 @@ public class Playback implements AudioManager.OnAudioFocusChangeListener, MediaP
     @Override
     public void onCompletion(MediaPlayer mp) {
         Log.d(TAG, "onCompletion from MediaPlayer");
+        if (mp != mMediaPlayer) {
+            return;
+        }
+        mService.getLatencyStats().start(PlaybackLatencyStats.TRACK_GAP);
+        if (mGaplessChain.isChained()) {
+            // The next MediaPlayer already started playing where this one ended.
+            swapToNextMediaPlayer();
+            if (mCallback != null) {
+                mCallback.onNextStarted();
+            }
+            return;
+        }
         // The media player finished playing the current song, so we go ahead
         // and start the next.
         if (mCallback != null) {
@@ -360,6 +495,10 @@ public class Playback implements AudioManager.OnAudioFocusChangeListener, MediaP
     @Override
     public boolean onError(MediaPlayer mp, int what, int extra) {
         Log.d(TAG, "Media player error: what=" + what + ", extra=" + extra);
+        if (mGaplessChain.onError(mp, getPreparedMediaPlayer())) {
+            // Only the pre-prepared next item failed, it will be retried on completion.
+            return true;
+        }
         if (mCallback != null) {
             mCallback.onError("MediaPlayer error " + what + " (" + extra + ")");
         }
@@ -374,9 +513,16 @@ public class Playback implements AudioManager.OnAudioFocusChangeListener, MediaP
     @Override
     public void onPrepared(MediaPlayer mp) {
         Log.d(TAG, "onPrepared from MediaPlayer");
+        if (mGaplessChain.onPrepared(mp, getPreparedMediaPlayer())) {
+            return;
+        }
+        mMediaPlayerPrepared = true;
+        mService.getLatencyStats().finish(PlaybackLatencyStats.SKIP);
         // The media player is done preparing. That means we can start playing if we
         // have audio focus.
         configMediaPlayerState();
+        // Now that the current item is ready, get the next one ready as well.
+        mGaplessChain.onCurrentPrepared(getPreparedMediaPlayer());
     }
 
     /**
@@ -387,6 +533,10 @@ public class Playback implements AudioManager.OnAudioFocusChangeListener, MediaP
     @Override
     public void onSeekComplete(MediaPlayer mp) {
         Log.d(TAG, "onSeekComplete from MediaPlayer:" + mp.getCurrentPosition());
+        if (mp != mMediaPlayer) {
+            return;
+        }
+        mService.getLatencyStats().finish(PlaybackLatencyStats.SEEK);
         mCurrentPosition = mp.getCurrentPosition();
         if (mState == PlaybackState.STATE_BUFFERING) {
             mMediaPlayer.start();
@@ -405,25 +555,30 @@ public class Playback implements AudioManager.OnAudioFocusChangeListener, MediaP
     private void createMediaPlayerIfNeeded() {
         Log.d(TAG, "createMediaPlayerIfNeeded. needed? " + (mMediaPlayer == null));
         if (mMediaPlayer == null) {
-            mMediaPlayer = new MediaPlayer();
-
-            // Make sure the media player will acquire a wake-lock while
-            // playing. If we don't do that, the CPU might go to sleep while the
-            // song is playing, causing playback to stop.
-            mMediaPlayer.setWakeMode(
-                    mService.getApplicationContext(), PowerManager.PARTIAL_WAKE_LOCK);
-
-            // we want the media player to notify us when it's ready preparing,
-            // and when it's done playing:
-            mMediaPlayer.setOnPreparedListener(this);
-            mMediaPlayer.setOnCompletionListener(this);
-            mMediaPlayer.setOnErrorListener(this);
-            mMediaPlayer.setOnSeekCompleteListener(this);
+            mMediaPlayer = createMediaPlayer();
         } else {
             mMediaPlayer.reset();
         }
     }
 
+    private MediaPlayer createMediaPlayer() {
+        MediaPlayer mediaPlayer = new MediaPlayer();
+
+        // Make sure the media player will acquire a wake-lock while
+        // playing. If we don't do that, the CPU might go to sleep while the
+        // song is playing, causing playback to stop.
+        mediaPlayer.setWakeMode(
+                mService.getApplicationContext(), PowerManager.PARTIAL_WAKE_LOCK);
+
+        // we want the media player to notify us when it's ready preparing,
+        // and when it's done playing:
+        mediaPlayer.setOnPreparedListener(this);
+        mediaPlayer.setOnCompletionListener(this);
+        mediaPlayer.setOnErrorListener(this);
+        mediaPlayer.setOnSeekCompleteListener(this);
+        return mediaPlayer;
+    }
+
     /**
      * Releases resources used by the service for playback. This includes the
      * "foreground service" status, the wake locks and possibly the MediaPlayer.
@@ -438,9 +593,11 @@ public class Playback implements AudioManager.OnAudioFocusChangeListener, MediaP
 
         // stop and release the Media Player, if it's available
         if (releaseMediaPlayer && mMediaPlayer != null) {
+            mGaplessChain.release(getPreparedMediaPlayer(), true);
             mMediaPlayer.reset();
             mMediaPlayer.release();
             mMediaPlayer = null;
+            mMediaPlayerPrepared = false;
         }
 
         // we can also release the Wifi lock, if we're holding it
@@ -473,6 +630,12 @@ public class Playback implements AudioManager.OnAudioFocusChangeListener, MediaP
          */
         void onCompletion();
 
+        /**
+         * On current music completed and the item set with {@link #setNextQueueItem}
+         * started playing without a gap.
+         */
+        void onNextStarted();
+
         /**
          * on Playback status changed
          * Implementations can use this callback to update
@@ -0,0 +1,145 @@
+package com.lrony.mediabrowsedemo.utils;
+
+import android.os.Bundle;
+import android.os.SystemClock;
+
+import java.io.PrintWriter;
+
+/**
+ * Latency of playback operations, from the command to its effect, aggregated into fixed-bucket
+ * histograms. Marking the start and the end of an operation only touches primitive fields, so
+ * it is cheap enough to be called from the playback code paths. All methods are expected to
+ * be called from the main thread.
+ */
+class PlaybackLatencyStats {
+
+    // onPlayFromMediaId to STATE_PLAYING
+    static final int PLAY_FROM_MEDIA_ID = 0;
+    // skip command to onPrepared of the new item
+    static final int SKIP = 1;
+    // seekTo to onSeekComplete
+    static final int SEEK = 2;
+    // first request for the cold catalog to the first sendResult, or to the catalog being ready
+    static final int CATALOG_LOAD = 3;
+    // completion of a track to the start of the next one, about 0 when the hand-off is gapless
+    static final int TRACK_GAP = 4;
+
+    private static final String[] NAMES =
+            {"play_from_media_id", "skip", "seek", "catalog_load", "track_gap"};
+
+    // Upper bounds of the buckets in milliseconds, the last bucket holds everything above.
+    private static final long[] BUCKET_BOUNDS =
+            {10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000};
+
+    static final String KEY_BUCKET_BOUNDS = "bucket_bounds";
+    static final String KEY_COUNTS = "counts";
+    static final String KEY_TOTAL_COUNT = "total_count";
+    static final String KEY_TOTAL_MS = "total_ms";
+    static final String KEY_MAX_MS = "max_ms";
+
+    private final Histogram[] mHistograms = new Histogram[NAMES.length];
+    // Start time of the operation in flight for each kind, 0 if none.
+    private final long[] mStartTimes = new long[NAMES.length];
+
+    PlaybackLatencyStats() {
+        for (int i = 0; i < mHistograms.length; i++) {
+            mHistograms[i] = new Histogram();
+        }
+    }
+
+    /**
+     * Mark the start of an operation. A start that is already pending is kept, so a burst of
+     * commands is measured from the first one.
+     */
+    void start(int kind) {
+        if (mStartTimes[kind] == 0) {
+            mStartTimes[kind] = SystemClock.elapsedRealtime();
+        }
+    }
+
+    /**
+     * Mark the end of an operation and record its latency, if it was started.
+     */
+    void finish(int kind) {
+        long start = mStartTimes[kind];
+        if (start != 0) {
+            mHistograms[kind].record(SystemClock.elapsedRealtime() - start);
+            mStartTimes[kind] = 0;
+        }
+    }
+
+    /**
+     * Forget about a started operation which will not complete, e.g. on stop.
+     */
+    void cancel(int kind) {
+        mStartTimes[kind] = 0;
+    }
+
+    /**
+     * @return the histograms keyed by operation name, each as a Bundle with the bucket bounds,
+     * the count per bucket, and the total count, total and max latency.
+     */
+    Bundle toBundle() {
+        Bundle bundle = new Bundle();
+        for (int i = 0; i < mHistograms.length; i++) {
+            bundle.putBundle(NAMES[i], mHistograms[i].toBundle());
+        }
+        return bundle;
+    }
+
+    void dump(PrintWriter writer) {
+        writer.println("Playback latency (ms):");
+        for (int i = 0; i < mHistograms.length; i++) {
+            writer.print("  ");
+            writer.print(NAMES[i]);
+            writer.print(": ");
+            mHistograms[i].dump(writer);
+        }
+    }
+
+    private static class Histogram {
+        private final long[] mCounts = new long[BUCKET_BOUNDS.length + 1];
+        private long mTotalCount;
+        private long mTotalMs;
+        private long mMaxMs;
+
+        void record(long ms) {
+            int bucket = 0;
+            while (bucket < BUCKET_BOUNDS.length && ms > BUCKET_BOUNDS[bucket]) {
+                bucket++;
+            }
+            mCounts[bucket]++;
+            mTotalCount++;
+            mTotalMs += ms;
+            if (ms > mMaxMs) {
+                mMaxMs = ms;
+            }
+        }
+
+        Bundle toBundle() {
+            Bundle bundle = new Bundle();
+            bundle.putLongArray(KEY_BUCKET_BOUNDS, BUCKET_BOUNDS.clone());
+            bundle.putLongArray(KEY_COUNTS, mCounts.clone());
+            bundle.putLong(KEY_TOTAL_COUNT, mTotalCount);
+            bundle.putLong(KEY_TOTAL_MS, mTotalMs);
+            bundle.putLong(KEY_MAX_MS, mMaxMs);
+            return bundle;
+        }
+
+        void dump(PrintWriter writer) {
+            writer.print("count=" + mTotalCount);
+            if (mTotalCount > 0) {
+                writer.print(" avg=" + mTotalMs / mTotalCount + " max=" + mMaxMs);
+            }
+            for (int i = 0; i < mCounts.length; i++) {
+                if (mCounts[i] == 0) {
+                    continue;
+                }
+                writer.print(i < BUCKET_BOUNDS.length ? " <=" + BUCKET_BOUNDS[i] : " >"
+                        + BUCKET_BOUNDS[BUCKET_BOUNDS.length - 1]);
+                writer.print(":" + mCounts[i]);
+            }
+            writer.println();
+        }
+    }
+}
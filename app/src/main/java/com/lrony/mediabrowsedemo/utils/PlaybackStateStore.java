@@ -0,0 +1,547 @@
+package com.lrony.mediabrowsedemo.utils;
+
+import android.annotation.SuppressLint;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.media.MediaMetadata;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Message;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Write-behind store of the playback state (current track and position).
+ * <p>
+ * Next to it a snapshot of the queue around the current track is kept, with just enough
+ * metadata to resume playback before the music catalog has been loaded, and the shuffle order
+ * of the queue, if any.
+ * <p>
+ * Reads and updates only touch the in-memory state. Changes are written from a background
+ * thread, coalesced over WRITE_DELAY, and {@link #flush()} schedules an immediate write, e.g.
+ * on pause or stop. The state is written alternately to two files, each one stamped with a
+ * sequence number and a checksum, so an interrupted write never loses the previous state.
+ * <p>
+ * The saved state is loaded on the same background thread, so it reads as empty until
+ * {@link #isLoaded()}; use {@link #runWhenLoaded} to wait for it. Changes made before that win
+ * over the loaded state.
+ */
+@SuppressLint("NewApi")
+public class PlaybackStateStore {
+
+    private static final String TAG = "PlaybackStateStore";
+
+    private static final String[] FILE_NAMES = {"playback_state.0", "playback_state.1"};
+    private static final int MAGIC = 0x50425354; // "PBST"
+    private static final int VERSION = 3;
+    // Older versions, still accepted when loading: without the queue snapshot, and without
+    // the shuffle order.
+    private static final int VERSION_NO_SNAPSHOT = 1;
+    private static final int VERSION_NO_SHUFFLE = 2;
+    // Upper bound of a sane payload, anything bigger means the file is corrupt.
+    private static final int MAX_PAYLOAD_SIZE = 1024 * 1024;
+
+    // Max time a change stays in memory only.
+    private static final int WRITE_DELAY = 3000;
+
+    private static final int MSG_WRITE = 0;
+    private static final int MSG_LOAD = 1;
+
+    // SharedPreferences used before this store, migrated on first use.
+    private static final String LEGACY_SP_NAME = "UsbMediaCfg";
+    private static final String LEGACY_K_MEDIA_BROWSE_ID = "K_MEDIA_BROWSE_ID";
+    private static final String LEGACY_K_MUSIC_DATA = "K_MUSIC_DATA";
+    private static final String LEGACY_K_MUSIC_POSITION = "K_MUSIC_POSITION";
+
+    private static PlaybackStateStore sInstance;
+
+    private File[] mFiles;
+    private Handler mWriteHandler;
+    private Handler mMainHandler;
+
+    // In-memory state, guarded by this.
+    private String mMediaId = "";
+    private String mSource = "";
+    private long mPosition;
+    // Queue snapshot, tracks around the current one and the index of the current one.
+    private List<MediaMetadata> mSnapshot = Collections.emptyList();
+    private int mSnapshotIndex = -1;
+    // Shuffle order of the queue: size of the queue, shuffle history, and the slot of the
+    // current track in it. An empty history means no shuffle.
+    private int mShuffleQueueSize;
+    private int[] mShuffleHistory = new int[0];
+    private int mShuffleSlot = -1;
+    private boolean mDirty;
+    // Sequence number of the last written state, and index of the file it went to.
+    private long mSequence;
+    private int mLastFile = 1;
+    private boolean mLoaded;
+    private final List<Runnable> mLoadedCallbacks = new ArrayList<>();
+
+    private PlaybackStateStore() {
+    }
+
+    public static synchronized PlaybackStateStore getInstance() {
+        if (sInstance == null) {
+            sInstance = new PlaybackStateStore();
+        }
+        return sInstance;
+    }
+
+    /**
+     * Start loading the saved state in the background, see {@link #runWhenLoaded}.
+     */
+    public void initialize(Context context) {
+        File dir = context.getFilesDir();
+        mFiles = new File[]{new File(dir, FILE_NAMES[0]), new File(dir, FILE_NAMES[1])};
+        mMainHandler = new Handler(Looper.getMainLooper());
+
+        HandlerThread thread =
+                new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        mWriteHandler = new Handler(thread.getLooper()) {
+            @Override
+            public void handleMessage(Message msg) {
+                switch (msg.what) {
+                    case MSG_WRITE:
+                        write();
+                        break;
+                    case MSG_LOAD:
+                        load((Context) msg.obj);
+                        break;
+                    default:
+                        break;
+                }
+            }
+        };
+        // Ahead of any write, the handler runs them in order
+        mWriteHandler.obtainMessage(MSG_LOAD, context.getApplicationContext()).sendToTarget();
+    }
+
+    /**
+     * @return whether the saved state has been loaded.
+     */
+    public synchronized boolean isLoaded() {
+        return mLoaded;
+    }
+
+    /**
+     * Run the callback on the main thread once the saved state is loaded, right away if it
+     * already is.
+     */
+    public void runWhenLoaded(Runnable callback) {
+        synchronized (this) {
+            if (!mLoaded) {
+                if (!mLoadedCallbacks.contains(callback)) {
+                    mLoadedCallbacks.add(callback);
+                }
+                return;
+            }
+        }
+        callback.run();
+    }
+
+    /**
+     * Drop a callback passed to {@link #runWhenLoaded} that has not run yet.
+     */
+    public synchronized void removeWhenLoaded(Runnable callback) {
+        mLoadedCallbacks.remove(callback);
+    }
+
+    public synchronized String getMediaId() {
+        return mMediaId;
+    }
+
+    public synchronized String getSource() {
+        return mSource;
+    }
+
+    public synchronized long getPosition() {
+        return mPosition;
+    }
+
+    /**
+     * Set the current track. The position is reset when the track changes.
+     */
+    public synchronized void setTrack(String mediaId, String source) {
+        Log.d(TAG, "setTrack: " + mediaId + " source: " + source);
+        if (!mediaId.equals(mMediaId)) {
+            mPosition = 0;
+        }
+        mMediaId = mediaId;
+        mSource = source;
+        markDirty();
+    }
+
+    public synchronized void setPosition(long position) {
+        if (position != mPosition) {
+            mPosition = position;
+            markDirty();
+        }
+    }
+
+    /**
+     * @return the tracks of the queue snapshot, holding only the media id, title, artist,
+     * album, duration and source of each track.
+     */
+    public synchronized List<MediaMetadata> getQueueSnapshot() {
+        return mSnapshot;
+    }
+
+    /**
+     * @return the index of the current track in the queue snapshot, -1 if there is none.
+     */
+    public synchronized int getQueueSnapshotIndex() {
+        return mSnapshotIndex;
+    }
+
+    /**
+     * @return the snapshot metadata of the given track, or null if it is not in the snapshot.
+     */
+    public synchronized MediaMetadata getSnapshotTrack(String musicId) {
+        for (MediaMetadata track : mSnapshot) {
+            if (musicId.equals(track.getString(MediaMetadata.METADATA_KEY_MEDIA_ID))) {
+                return track;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Set the queue snapshot.
+     *
+     * @param tracks tracks around the current one, in queue order.
+     * @param index  index of the current track in tracks.
+     */
+    public synchronized void setQueueSnapshot(List<MediaMetadata> tracks, int index) {
+        List<MediaMetadata> snapshot = new ArrayList<>(tracks.size());
+        for (MediaMetadata track : tracks) {
+            snapshot.add(toSnapshotTrack(
+                    track.getString(MediaMetadata.METADATA_KEY_MEDIA_ID),
+                    track.getString(MediaMetadata.METADATA_KEY_TITLE),
+                    track.getString(MediaMetadata.METADATA_KEY_ARTIST),
+                    track.getString(MediaMetadata.METADATA_KEY_ALBUM),
+                    track.getLong(MediaMetadata.METADATA_KEY_DURATION),
+                    track.getString(MusicProvider.CUSTOM_METADATA_TRACK_SOURCE)));
+        }
+        mSnapshot = Collections.unmodifiableList(snapshot);
+        mSnapshotIndex = index;
+        markDirty();
+    }
+
+    public synchronized int getShuffleQueueSize() {
+        return mShuffleQueueSize;
+    }
+
+    public synchronized int[] getShuffleHistory() {
+        return mShuffleHistory;
+    }
+
+    public synchronized int getShuffleSlot() {
+        return mShuffleSlot;
+    }
+
+    /**
+     * Set the shuffle order of the queue.
+     *
+     * @param queueSize size of the shuffled queue.
+     * @param history   queue positions in shuffled order, as far as they were generated; empty
+     *                  when shuffle is off.
+     * @param slot      index of the current track in history.
+     */
+    public synchronized void setShuffleOrder(int queueSize, int[] history, int slot) {
+        mShuffleQueueSize = queueSize;
+        mShuffleHistory = history;
+        mShuffleSlot = slot;
+        markDirty();
+    }
+
+    /**
+     * Set the slot of the current track in the shuffle history set last.
+     */
+    public synchronized void setShuffleSlot(int slot) {
+        if (slot != mShuffleSlot) {
+            mShuffleSlot = slot;
+            markDirty();
+        }
+    }
+
+    /**
+     * Write pending changes now, still from the background thread.
+     */
+    public void flush() {
+        if (mWriteHandler != null) {
+            mWriteHandler.removeMessages(MSG_WRITE);
+            mWriteHandler.sendEmptyMessage(MSG_WRITE);
+        }
+    }
+
+    private void markDirty() {
+        if (!mDirty) {
+            mDirty = true;
+            if (mWriteHandler != null) {
+                mWriteHandler.sendEmptyMessageDelayed(MSG_WRITE, WRITE_DELAY);
+            }
+        }
+    }
+
+    private void write() {
+        byte[] payload;
+        long sequence;
+        int file;
+        synchronized (this) {
+            if (!mDirty) {
+                return;
+            }
+            mDirty = false;
+            payload = encode();
+            sequence = ++mSequence;
+            // The other file keeps the last good copy until this one is synced
+            file = 1 - mLastFile;
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        DataOutputStream out = null;
+        try {
+            FileOutputStream fos = new FileOutputStream(mFiles[file]);
+            out = new DataOutputStream(new BufferedOutputStream(fos));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(sequence);
+            out.writeInt(payload.length);
+            out.write(payload);
+            out.writeLong(crc.getValue());
+            out.flush();
+            fos.getFD().sync();
+            synchronized (this) {
+                mLastFile = file;
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "write: failed to write " + mFiles[file], e);
+            // Try again later, into the same file
+            synchronized (this) {
+                markDirty();
+            }
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+    private void load(Context context) {
+        boolean loaded = false;
+        for (int i = 0; i < mFiles.length; i++) {
+            if (mFiles[i].exists() && load(i)) {
+                loaded = true;
+            }
+        }
+        if (!loaded) {
+            migrateLegacyPreferences(context);
+        }
+        synchronized (this) {
+            Log.d(TAG, "load: " + loaded + " mediaId=" + mMediaId + " position=" + mPosition);
+            mLoaded = true;
+            if (mDirty) {
+                flush();
+            }
+        }
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                List<Runnable> callbacks;
+                synchronized (PlaybackStateStore.this) {
+                    callbacks = new ArrayList<>(mLoadedCallbacks);
+                    mLoadedCallbacks.clear();
+                }
+                for (Runnable callback : callbacks) {
+                    callback.run();
+                }
+            }
+        });
+    }
+
+    /**
+     * Load the given file, if it is valid and newer than what was loaded so far.
+     */
+    private boolean load(int file) {
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new FileInputStream(mFiles[file]));
+            if (in.readInt() != MAGIC) {
+                return false;
+            }
+            int version = in.readInt();
+            if (version != VERSION && version != VERSION_NO_SNAPSHOT
+                    && version != VERSION_NO_SHUFFLE) {
+                return false;
+            }
+            long sequence = in.readLong();
+            int length = in.readInt();
+            if (length < 0 || length > MAX_PAYLOAD_SIZE) {
+                return false;
+            }
+            byte[] payload = new byte[length];
+            in.readFully(payload);
+            CRC32 crc = new CRC32();
+            crc.update(payload);
+            if (in.readLong() != crc.getValue()) {
+                Log.d(TAG, "load: checksum mismatch in " + mFiles[file]);
+                return false;
+            }
+            synchronized (this) {
+                if (sequence <= mSequence) {
+                    return false;
+                }
+                if (mDirty) {
+                    // Changed before the load finished, only the sequence is taken over
+                    Log.d(TAG, "load: keeping the state changed meanwhile");
+                } else {
+                    decode(payload, version);
+                }
+                mSequence = sequence;
+                mLastFile = file;
+            }
+            return true;
+        } catch (IOException e) {
+            Log.d(TAG, "load: unreadable " + mFiles[file] + " " + e);
+            return false;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    private byte[] encode() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeUTF(mMediaId);
+            out.writeUTF(mSource);
+            out.writeLong(mPosition);
+            out.writeInt(mSnapshotIndex);
+            out.writeInt(mSnapshot.size());
+            for (MediaMetadata track : mSnapshot) {
+                out.writeUTF(track.getString(MediaMetadata.METADATA_KEY_MEDIA_ID));
+                out.writeUTF(track.getString(MediaMetadata.METADATA_KEY_TITLE));
+                out.writeUTF(track.getString(MediaMetadata.METADATA_KEY_ARTIST));
+                out.writeUTF(track.getString(MediaMetadata.METADATA_KEY_ALBUM));
+                out.writeLong(track.getLong(MediaMetadata.METADATA_KEY_DURATION));
+                out.writeUTF(track.getString(MusicProvider.CUSTOM_METADATA_TRACK_SOURCE));
+            }
+            out.writeInt(mShuffleQueueSize);
+            out.writeInt(mShuffleSlot);
+            out.writeInt(mShuffleHistory.length);
+            for (int position : mShuffleHistory) {
+                out.writeInt(position);
+            }
+        } catch (IOException e) {
+            // Cannot happen when writing to memory
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private void decode(byte[] payload, int version) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        mMediaId = in.readUTF();
+        mSource = in.readUTF();
+        mPosition = in.readLong();
+        if (version == VERSION_NO_SNAPSHOT) {
+            mSnapshot = Collections.emptyList();
+            mSnapshotIndex = -1;
+            return;
+        }
+        int index = in.readInt();
+        int size = in.readInt();
+        if (size < 0 || index >= size) {
+            throw new IOException("Invalid queue snapshot, index " + index + " size " + size);
+        }
+        List<MediaMetadata> snapshot = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            snapshot.add(toSnapshotTrack(in.readUTF(), in.readUTF(), in.readUTF(), in.readUTF(),
+                    in.readLong(), in.readUTF()));
+        }
+        mSnapshot = Collections.unmodifiableList(snapshot);
+        mSnapshotIndex = index;
+        if (version == VERSION_NO_SHUFFLE) {
+            return;
+        }
+
+        int queueSize = in.readInt();
+        int slot = in.readInt();
+        int length = in.readInt();
+        if (length < 0 || length > queueSize || slot >= length) {
+            throw new IOException("Invalid shuffle order, slot " + slot + " length " + length
+                    + " queue size " + queueSize);
+        }
+        int[] history = new int[length];
+        for (int i = 0; i < length; i++) {
+            history[i] = in.readInt();
+            if (history[i] < 0 || history[i] >= queueSize) {
+                throw new IOException("Invalid shuffle position " + history[i]);
+            }
+        }
+        mShuffleQueueSize = queueSize;
+        mShuffleSlot = slot;
+        mShuffleHistory = history;
+    }
+
+    private static MediaMetadata toSnapshotTrack(String musicId, String title, String artist,
+                                                 String album, long duration, String source) {
+        return new MediaMetadata.Builder()
+                .putString(MediaMetadata.METADATA_KEY_MEDIA_ID, nonNull(musicId))
+                .putString(MediaMetadata.METADATA_KEY_TITLE, nonNull(title))
+                .putString(MediaMetadata.METADATA_KEY_ARTIST, nonNull(artist))
+                .putString(MediaMetadata.METADATA_KEY_ALBUM, nonNull(album))
+                .putLong(MediaMetadata.METADATA_KEY_DURATION, duration)
+                .putString(MusicProvider.CUSTOM_METADATA_TRACK_SOURCE, nonNull(source))
+                .build();
+    }
+
+    private static String nonNull(String value) {
+        return value != null ? value : "";
+    }
+
+    private void migrateLegacyPreferences(Context context) {
+        SharedPreferences preferences =
+                context.getSharedPreferences(LEGACY_SP_NAME, Context.MODE_PRIVATE);
+        if (!preferences.contains(LEGACY_K_MEDIA_BROWSE_ID)) {
+            return;
+        }
+        Log.d(TAG, "migrateLegacyPreferences");
+        synchronized (this) {
+            if (!mDirty) {
+                mMediaId = preferences.getString(LEGACY_K_MEDIA_BROWSE_ID, "");
+                mSource = preferences.getString(LEGACY_K_MUSIC_DATA, "");
+                mPosition = preferences.getLong(LEGACY_K_MUSIC_POSITION, 0);
+                mDirty = true;
+            }
+        }
+        preferences.edit().clear().apply();
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+}
@@ -0,0 +1,221 @@
+package com.lrony.mediabrowsedemo.utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Streaming parser of M3U, extended M3U and PLS playlists.
+ * <p>
+ * Entries are read one line at a time and resolved against an index of the library built
+ * during the scan, keyed by {@link #normalizePath(String)}, so each entry costs one hash
+ * lookup whatever the size of the library. Relative entries are resolved against the folder
+ * of the playlist, and Windows paths with a drive letter or from the root against the root of
+ * the volume the playlist is on, as written by desktop players on a USB drive.
+ */
+class PlaylistParser {
+
+    private static final String FILE_SCHEME = "file:";
+    private static final String PLS_FILE_KEY = "file";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    // Plain M3U and PLS files are written in the codepage of the desktop player
+    private static final Charset LEGACY_CHARSET = Charset.isSupported("windows-1252")
+            ? Charset.forName("windows-1252") : Charset.forName("ISO-8859-1");
+
+    private PlaylistParser() {
+    }
+
+    /**
+     * @return whether the file name is one of a supported playlist format.
+     */
+    static boolean isPlaylist(String fileName) {
+        String name = fileName.toLowerCase(Locale.ROOT);
+        return name.endsWith(".m3u") || name.endsWith(".m3u8") || name.endsWith(".pls");
+    }
+
+    /**
+     * Open a playlist in the charset of its format: UTF-8 for M3U8 and for files starting with
+     * a UTF-8 byte order mark, the Windows codepage otherwise.
+     */
+    static BufferedReader openReader(String playlistPath) throws IOException {
+        BufferedInputStream in = new BufferedInputStream(new FileInputStream(playlistPath));
+        Charset charset = UTF_8;
+        if (!playlistPath.toLowerCase(Locale.ROOT).endsWith(".m3u8")) {
+            byte[] bom = new byte[3];
+            int read;
+            try {
+                in.mark(bom.length);
+                read = in.read(bom);
+                in.reset();
+            } catch (IOException e) {
+                in.close();
+                throw e;
+            }
+            boolean utf8Bom = read == bom.length
+                    && bom[0] == (byte) 0xEF && bom[1] == (byte) 0xBB && bom[2] == (byte) 0xBF;
+            charset = utf8Bom ? UTF_8 : LEGACY_CHARSET;
+        }
+        return new BufferedReader(new InputStreamReader(in, charset));
+    }
+
+    /**
+     * Parse a playlist.
+     *
+     * @param reader         content of the playlist.
+     * @param playlistPath   path of the playlist file, to resolve relative entries.
+     * @param trackIdByPath  track ids of the library by normalized path.
+     * @return the ids of the entries found in the library, in playlist order.
+     */
+    static long[] parse(BufferedReader reader, String playlistPath,
+                        Map<String, Long> trackIdByPath) throws IOException {
+        boolean pls = playlistPath.toLowerCase(Locale.ROOT).endsWith(".pls");
+        String folder = getParent(playlistPath.replace('\\', '/'));
+        String volumeRoot = getVolumeRoot(folder);
+        String volumePrefix = volumeRoot + "/";
+        long[] trackIds = new long[64];
+        int count = 0;
+        String line;
+        boolean first = true;
+        while ((line = reader.readLine()) != null) {
+            if (first && !line.isEmpty() && line.charAt(0) == '\uFEFF') {
+                line = line.substring(1);
+            }
+            first = false;
+            String entry = pls ? getPlsEntry(line) : getM3uEntry(line);
+            if (entry == null) {
+                continue;
+            }
+            String path = resolve(entry, folder);
+            Long trackId = path != null ? trackIdByPath.get(normalizePath(path)) : null;
+            if (trackId == null && path != null && path.startsWith("/")
+                    && !path.startsWith(volumePrefix)) {
+                // "\Music\song.mp3", from the root of the volume the playlist is on
+                trackId = trackIdByPath.get(normalizePath(volumeRoot + path));
+            }
+            if (trackId == null) {
+                continue;
+            }
+            if (count == trackIds.length) {
+                trackIds = Arrays.copyOf(trackIds, count * 2);
+            }
+            trackIds[count++] = trackId;
+        }
+        return Arrays.copyOf(trackIds, count);
+    }
+
+    /**
+     * @return the key of a path in the library index: '/' separators, no "." or ".." segments,
+     * lower case since FAT file names are case-insensitive.
+     */
+    static String normalizePath(String path) {
+        String[] segments = path.replace('\\', '/').split("/");
+        List<String> parts = new ArrayList<>(segments.length);
+        for (String segment : segments) {
+            if (segment.isEmpty() || segment.equals(".")) {
+                continue;
+            }
+            if (segment.equals("..")) {
+                if (!parts.isEmpty()) {
+                    parts.remove(parts.size() - 1);
+                }
+            } else {
+                parts.add(segment);
+            }
+        }
+        StringBuilder sb = new StringBuilder(path.length());
+        for (String part : parts) {
+            sb.append('/').append(part);
+        }
+        return sb.toString().toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * @return the path of an M3U line, null for comments, extended M3U tags and blank lines.
+     */
+    private static String getM3uEntry(String line) {
+        String entry = line.trim();
+        return entry.isEmpty() || entry.charAt(0) == '#' ? null : entry;
+    }
+
+    /**
+     * @return the path of a "FileN=path" PLS line, null for any other line.
+     */
+    private static String getPlsEntry(String line) {
+        int equals = line.indexOf('=');
+        if (equals <= PLS_FILE_KEY.length()
+                || !line.regionMatches(true, 0, PLS_FILE_KEY, 0, PLS_FILE_KEY.length())) {
+            return null;
+        }
+        for (int i = PLS_FILE_KEY.length(); i < equals; i++) {
+            if (!Character.isDigit(line.charAt(i))) {
+                return null;
+            }
+        }
+        String entry = line.substring(equals + 1).trim();
+        return entry.isEmpty() ? null : entry;
+    }
+
+    /**
+     * @return the absolute path of an entry, or null if it is not a local file, e.g. a
+     * stream URL.
+     */
+    private static String resolve(String entry, String folder) {
+        if (entry.regionMatches(true, 0, FILE_SCHEME, 0, FILE_SCHEME.length())) {
+            try {
+                entry = new URI(entry).getPath();
+            } catch (URISyntaxException e) {
+                // Unescaped characters, take the path as it is
+                entry = entry.substring(FILE_SCHEME.length()).replaceFirst("^//", "");
+            }
+            if (entry == null) {
+                return null;
+            }
+            if (entry.length() >= 3 && entry.charAt(0) == '/' && entry.charAt(2) == ':') {
+                // file:///D:/Music/song.mp3
+                entry = entry.substring(1);
+            }
+        } else if (entry.indexOf("://") > 0) {
+            return null;
+        }
+        entry = entry.replace('\\', '/');
+        if (entry.length() >= 2 && entry.charAt(1) == ':' && Character.isLetter(entry.charAt(0))) {
+            // "D:/Music/song.mp3", relative to the root of the volume
+            return getVolumeRoot(folder) + "/" + entry.substring(2);
+        }
+        if (entry.startsWith("/")) {
+            return entry;
+        }
+        return folder + "/" + entry;
+    }
+
+    private static String getParent(String path) {
+        int slash = path.lastIndexOf('/');
+        return slash > 0 ? path.substring(0, slash) : "";
+    }
+
+    /**
+     * @return the mount point of a path, e.g. /storage/1234-5678, /mnt/media_rw/1234-5678 or
+     * /storage/emulated/0.
+     */
+    private static String getVolumeRoot(String path) {
+        String[] segments = path.split("/");
+        int depth = segments.length > 2
+                && (segments[2].equals("media_rw") || segments[2].equals("emulated")) ? 4 : 3;
+        StringBuilder sb = new StringBuilder();
+        for (int i = 1; i < depth && i < segments.length; i++) {
+            sb.append('/').append(segments[i]);
+        }
+        return sb.toString();
+    }
+}
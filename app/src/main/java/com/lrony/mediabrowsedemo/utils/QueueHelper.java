@@ -17,23 +17,18 @@
 package com.lrony.mediabrowsedemo.utils;
 
 import android.annotation.SuppressLint;
-import android.media.MediaDescription;
 import android.media.MediaMetadata;
-import android.media.session.MediaSession;
-import android.os.Build;
-import android.os.Bundle;
-import android.support.annotation.RequiresApi;
 import android.util.Log;
 
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Iterator;
 import java.util.List;
+import java.util.Random;
 
 import static com.lrony.mediabrowsedemo.utils.MediaIDHelper.MEDIA_ID_MUSICS_BY_ALBUM;
 import static com.lrony.mediabrowsedemo.utils.MediaIDHelper.MEDIA_ID_MUSICS_BY_ARTIST;
 import static com.lrony.mediabrowsedemo.utils.MediaIDHelper.MEDIA_ID_MUSICS_BY_FOLDER;
+import static com.lrony.mediabrowsedemo.utils.MediaIDHelper.MEDIA_ID_MUSICS_BY_PLAYLIST;
 import static com.lrony.mediabrowsedemo.utils.MediaIDHelper.MEDIA_ID_MUSICS_BY_SEARCH;
+import static com.lrony.mediabrowsedemo.utils.MediaIDHelper.MEDIA_ID_MUSICS_BY_SMART;
 import static com.lrony.mediabrowsedemo.utils.MediaIDHelper.MEDIA_ID_MUSICS_BY_SONG;
 
 /**
@@ -44,8 +39,7 @@ class QueueHelper {
 
     private static final String TAG = "QueueHelper";
 
-    static List<MediaSession.QueueItem> getPlayingQueue(
-            String mediaId, MusicProvider musicProvider) {
+    static PlayQueue getPlayingQueue(String mediaId, MusicProvider musicProvider) {
         // extract the browsing hierarchy from the media ID:
         String[] hierarchy = MediaIDHelper.getHierarchy(mediaId);
 
@@ -70,6 +64,15 @@ class QueueHelper {
             case MEDIA_ID_MUSICS_BY_FOLDER:
                 tracks = musicProvider.getMusicsByFolder(categoryValue);
                 break;
+            case MEDIA_ID_MUSICS_BY_PLAYLIST:
+                tracks = musicProvider.getMusicsByPlaylist(categoryValue);
+                break;
+            case MEDIA_ID_MUSICS_BY_SEARCH:
+                tracks = musicProvider.searchMusic(categoryValue);
+                break;
+            case MEDIA_ID_MUSICS_BY_SMART:
+                tracks = musicProvider.getMusicsBySmartPlaylist(categoryValue);
+                break;
             case MEDIA_ID_MUSICS_BY_ARTIST:
                 Log.d(TAG, "Not supported");
                 break;
@@ -83,93 +86,47 @@ class QueueHelper {
             return null;
         }
 
-        return convertToQueue(tracks, hierarchy[0], hierarchy[1]);
+        return PlayQueue.fromTracks(tracks, hierarchy[0], hierarchy[1]);
     }
 
-    static List<MediaSession.QueueItem> getPlayingQueueFromSearch(
-            String query, MusicProvider musicProvider) {
+    static PlayQueue getPlayingQueueFromSearch(String query, MusicProvider musicProvider) {
         Log.d(TAG, "Creating playing queue for musics from search " + query);
 
-        return convertToQueue(musicProvider.searchMusic(query), MEDIA_ID_MUSICS_BY_SEARCH, query);
-    }
-
-    static int getMusicIndexOnQueue(Iterable<MediaSession.QueueItem> queue, String mediaId) {
-        int index = 0;
-        for (MediaSession.QueueItem item : queue) {
-            if (mediaId.equals(item.getDescription().getMediaId())) {
-                return index;
-            }
-            index++;
-        }
-        return -1;
-    }
-
-    static int getMusicIndexOnQueue(Iterable<MediaSession.QueueItem> queue, long queueId) {
-        int index = 0;
-        for (MediaSession.QueueItem item : queue) {
-            if (queueId == item.getQueueId()) {
-                return index;
-            }
-            index++;
-        }
-        return -1;
+        return PlayQueue.fromTracks(
+                musicProvider.searchMusic(query), MEDIA_ID_MUSICS_BY_SEARCH, query);
     }
 
-    @RequiresApi(api = Build.VERSION_CODES.M)
-    private static List<MediaSession.QueueItem> convertToQueue(
-            Iterable<MediaMetadata> tracks, String... categories) {
-        List<MediaSession.QueueItem> queue = new ArrayList<>();
-        int count = 0;
-        for (MediaMetadata track : tracks) {
-            // We create a hierarchy-aware mediaID, so we know what the queue is about by looking
-            // at the QueueItem media IDs.
-            String hierarchyAwareMediaID =
-                    MediaIDHelper.createMediaID(track.getDescription().getMediaId(), categories);
-            long duration = track.getLong(MediaMetadata.METADATA_KEY_DURATION);
-            MediaDescription.Builder descriptionBuilder = new MediaDescription.Builder();
-            MediaDescription description = track.getDescription();
-            Bundle extras = description.getExtras();
-            if (extras == null) {
-                extras = new Bundle();
-            }
-            extras.putLong(MediaMetadata.METADATA_KEY_DURATION, duration);
-            descriptionBuilder.setExtras(extras)
-                    .setMediaId(hierarchyAwareMediaID)
-                    .setTitle(description.getTitle())
-                    .setSubtitle(track.getString(MediaMetadata.METADATA_KEY_ARTIST))
-                    .setIconBitmap(description.getIconBitmap())
-                    .setIconUri(description.getIconUri())
-                    .setMediaUri(description.getMediaUri())
-                    .setDescription(description.getDescription());
-
-            // We don't expect queues to change after created, so we use the item index as the
-            // queueId. Any other number unique in the queue would work.
-            MediaSession.QueueItem item =
-                    new MediaSession.QueueItem(descriptionBuilder.build(), count++);
-            queue.add(item);
-        }
-        return queue;
+    /**
+     * Create a queue from the persisted queue snapshot, in the same browsing hierarchy as the
+     * given hierarchy-aware media ID, so it can be reconciled with the full queue later on.
+     */
+    static PlayQueue getPlayingQueueFromSnapshot(List<MediaMetadata> tracks, String mediaId) {
+        String[] hierarchy = MediaIDHelper.getHierarchy(mediaId);
+        Log.d(TAG, "Creating playing queue from a snapshot of " + tracks.size() + " musics");
+        return PlayQueue.fromTracks(tracks, hierarchy);
     }
 
     /**
-     * Create a random queue. For simplicity sake, instead of a random queue, we create a
-     * queue using the first genre.
+     * Create a random queue: every track of the catalog, in random order.
      *
      * @param musicProvider the provider used for fetching music.
-     * @return list containing {@link MediaSession.QueueItem}'s
+     * @return the queue, empty if there is no music.
      */
-    static List<MediaSession.QueueItem> getRandomQueue(MusicProvider musicProvider) {
-        Iterator<String> genres = musicProvider.getArtists().iterator();
-        if (!genres.hasNext()) {
-            return Collections.emptyList();
+    static PlayQueue getRandomQueue(MusicProvider musicProvider) {
+        long[] trackIds = PlayQueue.toTrackIds(musicProvider.getMusicList());
+        Random random = new Random();
+        // Fisher-Yates
+        for (int i = trackIds.length - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            long trackId = trackIds[i];
+            trackIds[i] = trackIds[j];
+            trackIds[j] = trackId;
         }
-        String genre = genres.next();
-        Iterable<MediaMetadata> tracks = musicProvider.getMusicsByAlbum(genre);
-
-        return convertToQueue(tracks, MEDIA_ID_MUSICS_BY_ARTIST, genre);
+        Log.d(TAG, "Creating random queue of " + trackIds.length + " musics");
+        return new PlayQueue(trackIds, MEDIA_ID_MUSICS_BY_SONG, MEDIA_ID_MUSICS_BY_SONG);
     }
 
-    static boolean isIndexPlayable(int index, List<MediaSession.QueueItem> queue) {
+    static boolean isIndexPlayable(int index, PlayQueue queue) {
         return (queue != null && index >= 0 && index < queue.size());
     }
 }
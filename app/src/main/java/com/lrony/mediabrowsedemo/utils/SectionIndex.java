@@ -0,0 +1,185 @@
+package com.lrony.mediabrowsedemo.utils;
+
+import android.os.Bundle;
+
+import java.text.CollationKey;
+import java.text.Collator;
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Alphabetical sections of a sorted list, as the offset of the first item of each section.
+ * The service sorts each browsable dimension once with {@link #sort} and ships the index to
+ * clients as a {@link Bundle}, so they can jump to the page holding a section without loading
+ * the items before it.
+ */
+public final class SectionIndex {
+
+    // Titles starting with a digit or a symbol
+    public static final String LABEL_OTHER = "#";
+    // Titles in scripts without a small alphabet, CJK for instance
+    public static final String LABEL_OTHER_SCRIPTS = "\u2026";
+
+    private static final String KEY_LABELS = "section_labels";
+    private static final String KEY_OFFSETS = "section_offsets";
+    private static final String KEY_COUNT = "section_item_count";
+
+    // Letters below this code point (Latin, Greek, Cyrillic) get a section of their own
+    private static final int MAX_ALPHABET_CODE_POINT = 0x052F;
+
+    static final SectionIndex EMPTY = new SectionIndex(new String[0], new int[0], 0);
+
+    interface TitleGetter<T> {
+        String getTitle(T item);
+    }
+
+    private final String[] mLabels;
+    private final int[] mOffsets;
+    private final int mCount;
+
+    private SectionIndex(String[] labels, int[] offsets, int count) {
+        mLabels = labels;
+        mOffsets = offsets;
+        mCount = count;
+    }
+
+    /**
+     * Sort the items in place by collated title and index the result. Collation keys are
+     * computed once per item, and items with equal titles keep their order.
+     */
+    static <T> SectionIndex sort(List<T> items, TitleGetter<T> getter) {
+        Collator collator = Collator.getInstance();
+        collator.setStrength(Collator.PRIMARY);
+        int count = items.size();
+        Entry[] entries = new Entry[count];
+        for (int i = 0; i < count; i++) {
+            T item = items.get(i);
+            String title = getter.getTitle(item);
+            entries[i] = new Entry(collator.getCollationKey(title != null ? title : ""), item);
+        }
+        Arrays.sort(entries);
+
+        List<String> labels = new ArrayList<>();
+        int[] offsets = new int[16];
+        String lastLabel = null;
+        for (int i = 0; i < count; i++) {
+            @SuppressWarnings("unchecked")
+            T item = (T) entries[i].mItem;
+            items.set(i, item);
+            String label = labelOf(entries[i].mKey.getSourceString());
+            // A label met again after another one keeps its first offset
+            if (label.equals(lastLabel) || labels.contains(label)) {
+                continue;
+            }
+            if (labels.size() == offsets.length) {
+                offsets = Arrays.copyOf(offsets, offsets.length * 2);
+            }
+            offsets[labels.size()] = i;
+            labels.add(label);
+            lastLabel = label;
+        }
+        return new SectionIndex(labels.toArray(new String[labels.size()]),
+                Arrays.copyOf(offsets, labels.size()), count);
+    }
+
+    /**
+     * @return the section label of a title: its first letter without accents in upper case.
+     */
+    static String labelOf(String title) {
+        String trimmed = title.trim();
+        if (trimmed.isEmpty()) {
+            return LABEL_OTHER;
+        }
+        int first = trimmed.codePointAt(0);
+        if (!Character.isLetter(first)) {
+            return LABEL_OTHER;
+        }
+        if (first > MAX_ALPHABET_CODE_POINT) {
+            return LABEL_OTHER_SCRIPTS;
+        }
+        String decomposed = Normalizer.normalize(
+                trimmed.substring(0, Character.charCount(first)), Normalizer.Form.NFD);
+        return decomposed.substring(0, 1).toUpperCase(Locale.ROOT);
+    }
+
+    public static SectionIndex fromBundle(Bundle bundle) {
+        String[] labels = bundle != null ? bundle.getStringArray(KEY_LABELS) : null;
+        int[] offsets = bundle != null ? bundle.getIntArray(KEY_OFFSETS) : null;
+        if (labels == null || offsets == null || labels.length != offsets.length) {
+            return EMPTY;
+        }
+        return new SectionIndex(labels, offsets, bundle.getInt(KEY_COUNT));
+    }
+
+    public Bundle toBundle() {
+        Bundle bundle = new Bundle();
+        bundle.putStringArray(KEY_LABELS, mLabels);
+        bundle.putIntArray(KEY_OFFSETS, mOffsets);
+        bundle.putInt(KEY_COUNT, mCount);
+        return bundle;
+    }
+
+    public int getSectionCount() {
+        return mLabels.length;
+    }
+
+    public String getLabel(int section) {
+        return mLabels[section];
+    }
+
+    /**
+     * @return the position of the first item of a section in the sorted list.
+     */
+    public int getPositionForSection(int section) {
+        return mOffsets[section];
+    }
+
+    /**
+     * @return the section holding the item at a position, -1 if there is none.
+     */
+    public int getSectionForPosition(int position) {
+        int section = Arrays.binarySearch(mOffsets, position);
+        return section >= 0 ? section : -section - 2;
+    }
+
+    /**
+     * @return the page to load with EXTRA_PAGE to reach the first item of a section.
+     */
+    public int getPageForSection(int section, int pageSize) {
+        return mOffsets[section] / pageSize;
+    }
+
+    /**
+     * @return number of items in the indexed list.
+     */
+    public int getItemCount() {
+        return mCount;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("SectionIndex{count=").append(mCount);
+        for (int i = 0; i < mLabels.length; i++) {
+            builder.append(", ").append(mLabels[i]).append('=').append(mOffsets[i]);
+        }
+        return builder.append('}').toString();
+    }
+
+    private static final class Entry implements Comparable<Entry> {
+        final CollationKey mKey;
+        final Object mItem;
+
+        Entry(CollationKey key, Object item) {
+            mKey = key;
+            mItem = item;
+        }
+
+        @Override
+        public int compareTo(Entry other) {
+            return mKey.compareTo(other.mKey);
+        }
+    }
+}
@@ -0,0 +1,259 @@
+package com.lrony.mediabrowsedemo.utils;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Shuffled play order over the positions of a queue.
+ * <p>
+ * The permutation is generated one step of Fisher-Yates at a time, when the next item is
+ * needed, over a sparse array: only the slots that were swapped are stored, every other slot
+ * holds its own position. Starting a shuffle is O(1) whatever the queue size, and every step
+ * is O(1). The generated prefix of the permutation is the history, so stepping back replays it.
+ * <p>
+ * Queue edits are applied to the history as position deltas, in O(history) whatever the
+ * queue size; the items still to be drawn need no order, so they are not kept across edits.
+ */
+class ShuffleOrder {
+
+    private final Random mRandom = new Random();
+    private int mSize;
+    // Shuffled order: queue position at each slot, and slot of each queue position.
+    // Absent entries are the identity.
+    private final LongIntHashMap mPositionAtSlot = new LongIntHashMap(16, -1);
+    private final LongIntHashMap mSlotOfPosition = new LongIntHashMap(16, -1);
+    // Slots [0, mGenerated) are final, the others are still to be drawn.
+    private int mGenerated;
+    // Slot of the current item, -1 before the first one.
+    private int mCurrent = -1;
+    // Incremented whenever the size or the history changes, to know when to persist them
+    private int mChangeCount;
+
+    ShuffleOrder(int size) {
+        mSize = size;
+    }
+
+    /**
+     * Recreate a shuffle order saved with {@link #getHistory()} and {@link #getCurrentSlot()}.
+     */
+    static ShuffleOrder restore(int size, int[] history, int currentSlot) {
+        ShuffleOrder order = new ShuffleOrder(size);
+        order.rebuild(size, history, currentSlot);
+        return order;
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    /**
+     * @return the slot of the current item in the shuffled order, -1 if there is none.
+     */
+    int getCurrentSlot() {
+        return mCurrent;
+    }
+
+    int getChangeCount() {
+        return mChangeCount;
+    }
+
+    /**
+     * @return the queue positions of the generated part of the order, which includes the
+     * items played so far.
+     */
+    int[] getHistory() {
+        int[] history = new int[mGenerated];
+        for (int slot = 0; slot < mGenerated; slot++) {
+            history[slot] = getPosition(slot);
+        }
+        return history;
+    }
+
+    /**
+     * Let the queue grow, the new positions are shuffled into the items not played yet.
+     */
+    void setSize(int size) {
+        if (size < mGenerated) {
+            throw new IllegalArgumentException("Cannot shrink below the history, size " + size);
+        }
+        mSize = size;
+        mChangeCount++;
+    }
+
+    /**
+     * Insert count queue positions at position, the positions from there on move up. The new
+     * positions join the items not played yet.
+     */
+    void insert(int position, int count) {
+        if (position >= mSize) {
+            setSize(mSize + count);
+            return;
+        }
+        int[] history = getHistory();
+        for (int i = 0; i < history.length; i++) {
+            if (history[i] >= position) {
+                history[i] += count;
+            }
+        }
+        rebuild(mSize + count, history, mCurrent);
+    }
+
+    /**
+     * Remove a queue position, the positions after it move down. When it was drawn already,
+     * the items after it in the history move back by one slot, the current one included.
+     */
+    void remove(int position) {
+        int[] history = getHistory();
+        int count = 0;
+        int current = mCurrent;
+        for (int i = 0; i < history.length; i++) {
+            if (history[i] == position) {
+                if (i <= mCurrent) {
+                    current--;
+                }
+                continue;
+            }
+            history[count++] = history[i] > position ? history[i] - 1 : history[i];
+        }
+        rebuild(mSize - 1, Arrays.copyOf(history, count), current);
+    }
+
+    /**
+     * Move the item at queue position from to position to, it keeps its slot in the history.
+     */
+    void move(int from, int to) {
+        int[] history = getHistory();
+        for (int i = 0; i < history.length; i++) {
+            int position = history[i];
+            if (position == from) {
+                history[i] = to;
+            } else if (from < to && position > from && position <= to) {
+                history[i] = position - 1;
+            } else if (to < from && position >= to && position < from) {
+                history[i] = position + 1;
+            }
+        }
+        rebuild(mSize, history, mCurrent);
+    }
+
+    /**
+     * @param wrap whether to start over from the first item after the last one.
+     * @return the queue position of the item after the current one, or -1 at the end.
+     */
+    int peekNext(boolean wrap) {
+        int slot = nextSlot(wrap);
+        return slot >= 0 ? getPosition(slot) : -1;
+    }
+
+    /**
+     * Move to the next item.
+     *
+     * @param wrap whether to start over from the first item after the last one.
+     * @return the queue position of the new current item, or -1 at the end.
+     */
+    int moveToNext(boolean wrap) {
+        int slot = nextSlot(wrap);
+        if (slot < 0) {
+            return -1;
+        }
+        mCurrent = slot;
+        return getPosition(slot);
+    }
+
+    /**
+     * Move back to the previous item, staying on the first one.
+     *
+     * @return the queue position of the new current item, or -1 if there is none.
+     */
+    int moveToPrevious() {
+        if (mCurrent < 0) {
+            return -1;
+        }
+        if (mCurrent > 0) {
+            mCurrent--;
+        }
+        return getPosition(mCurrent);
+    }
+
+    /**
+     * Make the given queue position the current item, e.g. when it is picked by the user.
+     * A position that was not drawn yet is played next in the shuffled order.
+     */
+    void moveTo(int position) {
+        int slot = getSlot(position);
+        mCurrent = slot >= mGenerated ? playNext(position) : slot;
+    }
+
+    /**
+     * Play a queue position that was not drawn yet right after the current item.
+     *
+     * @return the slot the position was moved to, or its slot if it was already drawn.
+     */
+    int playNext(int position) {
+        int slot = getSlot(position);
+        if (slot < mGenerated) {
+            return slot;
+        }
+        int target = mCurrent + 1;
+        // Keep the items already drawn after the current one: push them back by one slot.
+        for (int i = mGenerated; i > target; i--) {
+            swap(i, i - 1);
+        }
+        swap(target, getSlot(position));
+        mGenerated++;
+        mChangeCount++;
+        return target;
+    }
+
+    private int nextSlot(boolean wrap) {
+        int slot = mCurrent + 1;
+        if (slot >= mSize) {
+            return wrap && mSize > 0 ? 0 : -1;
+        }
+        if (slot == mGenerated) {
+            // One step of Fisher-Yates: draw the item for this slot among the remaining ones.
+            swap(slot, slot + mRandom.nextInt(mSize - slot));
+            mGenerated++;
+            mChangeCount++;
+        }
+        return slot;
+    }
+
+    /**
+     * Start over from a history over a queue of the given size.
+     */
+    private void rebuild(int size, int[] history, int currentSlot) {
+        mPositionAtSlot.clear();
+        mSlotOfPosition.clear();
+        mSize = size;
+        mGenerated = 0;
+        for (int position : history) {
+            swap(mGenerated, getSlot(position));
+            mGenerated++;
+        }
+        mCurrent = currentSlot;
+        mChangeCount++;
+    }
+
+    private int getPosition(int slot) {
+        int position = mPositionAtSlot.get(slot);
+        return position >= 0 ? position : slot;
+    }
+
+    private int getSlot(int position) {
+        int slot = mSlotOfPosition.get(position);
+        return slot >= 0 ? slot : position;
+    }
+
+    private void swap(int slotA, int slotB) {
+        if (slotA == slotB) {
+            return;
+        }
+        int positionA = getPosition(slotA);
+        int positionB = getPosition(slotB);
+        mPositionAtSlot.put(slotA, positionB);
+        mSlotOfPosition.put(positionB, slotA);
+        mPositionAtSlot.put(slotB, positionA);
+        mSlotOfPosition.put(positionA, slotB);
+    }
+}
@@ -0,0 +1,83 @@
+package com.lrony.mediabrowsedemo.utils;
+
+/**
+ * Coalesces bursts of skip commands. The first skip plays its target right away, so a lone
+ * skip costs no delay. Skips following it within the window only publish their target, and
+ * the last target of the burst is played once a whole window passes without another skip, so
+ * the items skipped over are never prepared.
+ */
+class SkipCoalescer {
+
+    interface Callback {
+        /**
+         * Prepare and play the current skip target.
+         */
+        void play();
+
+        /**
+         * Publish the current skip target without preparing it, it may change again.
+         */
+        void preview();
+
+        /**
+         * Call {@link #onWindowElapsed} after delayMs, replacing the pending call if any.
+         */
+        void schedule(long delayMs);
+    }
+
+    private final long mWindowMs;
+    private final Callback mCallback;
+    // Time of the last skip, 0 if the last burst was cancelled.
+    private long mLastSkipTime;
+    private boolean mPending;
+    private int mBurstCount;
+
+    SkipCoalescer(long windowMs, Callback callback) {
+        mWindowMs = windowMs;
+        mCallback = callback;
+    }
+
+    void onSkip(long now) {
+        boolean inBurst = mLastSkipTime != 0 && now - mLastSkipTime < mWindowMs;
+        mLastSkipTime = now;
+        if (!inBurst) {
+            mBurstCount = 1;
+            mPending = false;
+            mCallback.play();
+            return;
+        }
+        mBurstCount++;
+        mPending = true;
+        mCallback.preview();
+        mCallback.schedule(mWindowMs);
+    }
+
+    /**
+     * Play the last target of the burst, if it is still pending.
+     */
+    void onWindowElapsed() {
+        if (mPending) {
+            mPending = false;
+            mCallback.play();
+        }
+    }
+
+    /**
+     * Drop the pending target, e.g. on pause or stop. The next skip plays right away.
+     */
+    void cancel() {
+        mPending = false;
+        mLastSkipTime = 0;
+    }
+
+    boolean isPending() {
+        return mPending;
+    }
+
+    /**
+     * @return number of skips in the current or last burst.
+     */
+    int getBurstCount() {
+        return mBurstCount;
+    }
+}
@@ -0,0 +1,186 @@
+package com.lrony.mediabrowsedemo.utils;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.TreeSet;
+
+/**
+ * Rule-based playlists: tracks added lately, most played tracks, and tracks not played lately.
+ * <p>
+ * Every rule is backed by a ranking of the tracks that is kept sorted as tracks are added to
+ * the catalog and as plays are recorded, so reading a playlist only walks its first entries,
+ * whatever the size of the library.
+ */
+class SmartPlaylists implements PlayStatsStore.Listener {
+
+    static final String RECENTLY_ADDED = "recently_added";
+    static final String MOST_PLAYED = "most_played";
+    static final String NOT_PLAYED = "not_played";
+
+    private static final int RECENTLY_ADDED_DAYS = 30;
+    private static final int NOT_PLAYED_DAYS = 182;
+    private static final int SECONDS_PER_DAY = 24 * 60 * 60;
+    // Max number of tracks in a smart playlist
+    private static final int MAX_SIZE = 200;
+
+    private final PlayStatsStore mStats;
+    // Every track of the catalog by date added, in seconds.
+    private final TrackRanking mByDateAdded = new TrackRanking();
+    // Tracks played at least once by play count.
+    private final TrackRanking mByPlayCount = new TrackRanking();
+    // Every track of the catalog by the time it was last played, in seconds, 0 if never.
+    private final TrackRanking mByLastPlayed = new TrackRanking();
+
+    SmartPlaylists(PlayStatsStore stats) {
+        mStats = stats;
+    }
+
+    /**
+     * Add a track of the catalog.
+     *
+     * @param dateAdded time the track was added to the library, in seconds.
+     */
+    synchronized void addTrack(long trackId, long dateAdded) {
+        mByDateAdded.put(trackId, (int) dateAdded);
+        updatePlays(trackId, mStats.getPlayCount(trackId), mStats.getLastPlayedTime(trackId));
+    }
+
+    synchronized void clear() {
+        mByDateAdded.clear();
+        mByPlayCount.clear();
+        mByLastPlayed.clear();
+    }
+
+    /**
+     * @return the ids of the tracks of the given smart playlist, null if there is no such
+     * playlist.
+     */
+    synchronized long[] getTracks(String name) {
+        int now = (int) (System.currentTimeMillis() / 1000);
+        switch (name) {
+            case RECENTLY_ADDED:
+                int addedSince = now - RECENTLY_ADDED_DAYS * SECONDS_PER_DAY;
+                return mByDateAdded.getHighest(addedSince, MAX_SIZE);
+            case MOST_PLAYED:
+                return mByPlayCount.getHighest(1, MAX_SIZE);
+            case NOT_PLAYED:
+                int playedBefore = now - NOT_PLAYED_DAYS * SECONDS_PER_DAY;
+                return mByLastPlayed.getLowest(playedBefore, MAX_SIZE);
+            default:
+                return null;
+        }
+    }
+
+    @Override
+    public synchronized void onTrackPlayed(long trackId, int playCount, long lastPlayedTime) {
+        if (mByDateAdded.contains(trackId)) {
+            updatePlays(trackId, playCount, lastPlayedTime);
+        }
+    }
+
+    @Override
+    public synchronized void onStatsLoaded() {
+        for (long trackId : mByDateAdded.getTrackIds()) {
+            updatePlays(trackId, mStats.getPlayCount(trackId), mStats.getLastPlayedTime(trackId));
+        }
+    }
+
+    private void updatePlays(long trackId, int playCount, long lastPlayedTime) {
+        if (playCount > 0) {
+            mByPlayCount.put(trackId, playCount);
+        } else {
+            mByPlayCount.remove(trackId);
+        }
+        mByLastPlayed.put(trackId, (int) (lastPlayedTime / 1000));
+    }
+
+    /**
+     * Tracks sorted by an int key, e.g. a play count or a time in seconds.
+     */
+    static class TrackRanking {
+
+        private static final int NO_KEY = Integer.MIN_VALUE;
+
+        private final TreeSet<Entry> mEntries = new TreeSet<>();
+        // Current key of each track, NO_KEY once removed.
+        private final LongIntHashMap mKeys = new LongIntHashMap(16, NO_KEY);
+
+        boolean contains(long trackId) {
+            return mKeys.get(trackId) != NO_KEY;
+        }
+
+        void put(long trackId, int key) {
+            int oldKey = mKeys.get(trackId);
+            if (oldKey == key) {
+                return;
+            }
+            if (oldKey != NO_KEY) {
+                mEntries.remove(new Entry(oldKey, trackId));
+            }
+            mEntries.add(new Entry(key, trackId));
+            mKeys.put(trackId, key);
+        }
+
+        void remove(long trackId) {
+            int key = mKeys.get(trackId);
+            if (key != NO_KEY) {
+                mEntries.remove(new Entry(key, trackId));
+                mKeys.put(trackId, NO_KEY);
+            }
+        }
+
+        void clear() {
+            mEntries.clear();
+            mKeys.clear();
+        }
+
+        long[] getTrackIds() {
+            return collect(mEntries.iterator(), mEntries.size());
+        }
+
+        /**
+         * @return up to limit tracks with a key of at least min, highest key first.
+         */
+        long[] getHighest(int min, int limit) {
+            return collect(
+                    mEntries.tailSet(new Entry(min, Long.MIN_VALUE), true).descendingIterator(),
+                    limit);
+        }
+
+        /**
+         * @return up to limit tracks with a key below max, lowest key first.
+         */
+        long[] getLowest(int max, int limit) {
+            return collect(mEntries.headSet(new Entry(max, Long.MIN_VALUE), false).iterator(),
+                    limit);
+        }
+
+        private static long[] collect(Iterator<Entry> entries, int limit) {
+            long[] trackIds = new long[Math.min(limit, 16)];
+            int count = 0;
+            while (count < limit && entries.hasNext()) {
+                if (count == trackIds.length) {
+                    trackIds = Arrays.copyOf(trackIds, Math.min(limit, count * 2));
+                }
+                trackIds[count++] = entries.next().mTrackId;
+            }
+            return count == trackIds.length ? trackIds : Arrays.copyOf(trackIds, count);
+        }
+
+        private static class Entry implements Comparable<Entry> {
+            final int mKey;
+            final long mTrackId;
+
+            Entry(int key, long trackId) {
+                mKey = key;
+                mTrackId = trackId;
+            }
+
+            @Override
+            public int compareTo(Entry other) {
+                int result = Integer.compare(mKey, other.mKey);
+                return result != 0 ? result : Long.compare(mTrackId, other.mTrackId);
+            }
+        }
+    }
+}
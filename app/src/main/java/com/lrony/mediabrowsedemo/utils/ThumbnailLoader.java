@@ -0,0 +1,227 @@
+package com.lrony.mediabrowsedemo.utils;
+
+import android.annotation.SuppressLint;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.media.MediaDescription;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+import android.util.LruCache;
+import android.widget.ImageView;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loads the art of browse list rows, from the icon bitmap or icon uri of their description,
+ * scaled to the row icon size.
+ * <p>
+ * Rows bound last are loaded first, and the load of a row is cancelled and taken out of the
+ * queue as soon as its view is recycled or rebound, so a fling leaves no backlog of stale
+ * decodes behind it. Prefetches of the rows ahead of the scroll come after the visible rows
+ * and only the last MAX_PREFETCHES of them are kept. Used from the main thread.
+ */
+@SuppressLint("NewApi")
+public class ThumbnailLoader {
+
+    private static final String TAG = "ThumbnailLoader";
+
+    private static final int THREAD_COUNT = 2;
+    private static final int KEEP_ALIVE_SECONDS = 10;
+    private static final int MAX_CACHE_SIZE = 8 * 1024 * 1024; // 8 MB
+    private static final int MAX_PREFETCHES = 8;
+
+    private final Context mContext;
+    private final int mSize;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final ThreadPoolExecutor mExecutor;
+    private final LruCache<String, Bitmap> mCache;
+
+    // Load of each view, to cancel it when the view shows something else
+    private final Map<ImageView, Request> mRequests = new WeakHashMap<>();
+    // Loads in flight by media id, shared by a view and a prefetch of the same row
+    private final Map<String, Request> mPending = new HashMap<>();
+    private final ArrayDeque<Request> mPrefetches = new ArrayDeque<>();
+
+    /**
+     * @param size width and height of the thumbnails, in pixels.
+     */
+    public ThumbnailLoader(Context context, int size) {
+        mContext = context.getApplicationContext();
+        mSize = size;
+        int maxSize = (int) Math.min(MAX_CACHE_SIZE, Runtime.getRuntime().maxMemory() / 8);
+        mCache = new LruCache<String, Bitmap>(maxSize) {
+            @Override
+            protected int sizeOf(String key, Bitmap value) {
+                return value.getByteCount();
+            }
+        };
+        mExecutor = new ThreadPoolExecutor(THREAD_COUNT, THREAD_COUNT, KEEP_ALIVE_SECONDS,
+                TimeUnit.SECONDS, new LifoBlockingDeque(), new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                return new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }
+                }, TAG);
+            }
+        });
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Show the art of a row in a view, the placeholder until it is loaded or if there is none.
+     */
+    public void load(ImageView view, MediaDescription description, int placeholderResId) {
+        cancel(view);
+        String key = description.getMediaId();
+        Bitmap bitmap = key != null ? mCache.get(key) : null;
+        if (bitmap != null) {
+            view.setImageBitmap(bitmap);
+            return;
+        }
+        view.setImageResource(placeholderResId);
+        if (key == null || !hasArt(description)) {
+            return;
+        }
+        Request request = mPending.get(key);
+        if (request == null) {
+            request = new Request(key, description);
+            mPending.put(key, request);
+            mExecutor.execute(request);
+        } else if (request.mPrefetch) {
+            // Needed now: ahead of the other prefetches
+            mPrefetches.remove(request);
+            request.mPrefetch = false;
+            if (mExecutor.remove(request)) {
+                mExecutor.execute(request);
+            }
+        }
+        request.mViewCount++;
+        mRequests.put(view, request);
+    }
+
+    /**
+     * Forget the load of a view, cancelling it if nothing else waits for it.
+     */
+    public void cancel(ImageView view) {
+        Request request = mRequests.remove(view);
+        if (request != null && --request.mViewCount == 0 && !request.mPrefetch) {
+            cancel(request);
+        }
+    }
+
+    /**
+     * Load the art of a row about to be shown into the cache.
+     */
+    public void prefetch(MediaDescription description) {
+        String key = description.getMediaId();
+        if (key == null || !hasArt(description) || mCache.get(key) != null
+                || mPending.containsKey(key)) {
+            return;
+        }
+        if (mPrefetches.size() == MAX_PREFETCHES) {
+            // Scrolled past it already
+            cancel(mPrefetches.removeFirst());
+        }
+        Request request = new Request(key, description);
+        request.mPrefetch = true;
+        mPending.put(key, request);
+        mPrefetches.addLast(request);
+        // Behind the rows on screen
+        ((LifoBlockingDeque) mExecutor.getQueue()).offerLast(request);
+        mExecutor.prestartCoreThread();
+    }
+
+    private void cancel(Request request) {
+        request.mCancelled = true;
+        mPending.remove(request.mKey);
+        mPrefetches.remove(request);
+        mExecutor.remove(request);
+    }
+
+    private static boolean hasArt(MediaDescription description) {
+        return description.getIconBitmap() != null || description.getIconUri() != null;
+    }
+
+    private void onLoaded(Request request, Bitmap bitmap) {
+        if (mPending.get(request.mKey) == request) {
+            mPending.remove(request.mKey);
+        }
+        mPrefetches.remove(request);
+        if (request.mCancelled || bitmap == null) {
+            return;
+        }
+        mCache.put(request.mKey, bitmap);
+        for (Map.Entry<ImageView, Request> entry : mRequests.entrySet()) {
+            if (entry.getValue() == request) {
+                entry.getKey().setImageBitmap(bitmap);
+            }
+        }
+    }
+
+    private class Request implements Runnable {
+
+        private final String mKey;
+        private final MediaDescription mDescription;
+        // Main thread only
+        private int mViewCount;
+        private boolean mPrefetch;
+        private volatile boolean mCancelled;
+
+        Request(String key, MediaDescription description) {
+            mKey = key;
+            mDescription = description;
+        }
+
+        @Override
+        public void run() {
+            if (mCancelled) {
+                return;
+            }
+            Bitmap bitmap = null;
+            try {
+                Bitmap icon = mDescription.getIconBitmap();
+                if (icon != null) {
+                    bitmap = icon.getWidth() > mSize || icon.getHeight() > mSize
+                            ? BitmapHelper.scaleBitmap(icon, mSize, mSize) : icon;
+                } else {
+                    bitmap = BitmapHelper.decodeBitmap(
+                            mContext, mDescription.getIconUri().toString(), mSize, mSize);
+                }
+            } catch (IOException | RuntimeException e) {
+                Log.d(TAG, "run: failed to load the art of " + mKey + " " + e);
+            }
+            final Bitmap result = bitmap;
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    onLoaded(Request.this, result);
+                }
+            });
+        }
+    }
+
+    /**
+     * Queue handing out the newest task first, so the rows bound last load first.
+     */
+    private static class LifoBlockingDeque extends LinkedBlockingDeque<Runnable> {
+
+        @Override
+        public boolean offer(Runnable runnable) {
+            return offerFirst(runnable);
+        }
+    }
+}
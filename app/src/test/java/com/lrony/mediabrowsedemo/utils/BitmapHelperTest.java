@@ -0,0 +1,63 @@
+package com.lrony.mediabrowsedemo.utils;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Sample sizes chosen by {@link BitmapHelper} for the art decode.
+ */
+public class BitmapHelperTest {
+
+    @Test
+    public void calculateInSampleSize_keepsAtLeastTheFitSize() {
+        // Smaller than the box, never 0
+        assertEquals(1, BitmapHelper.calculateInSampleSize(100, 100, 800, 480));
+        assertEquals(1, BitmapHelper.calculateInSampleSize(1, 1, 128, 128));
+        // Square art in a landscape box fits its height
+        assertEquals(4, BitmapHelper.calculateInSampleSize(3000, 3000, 800, 480));
+        assertEquals(2, BitmapHelper.calculateInSampleSize(1000, 1000, 800, 480));
+        // Powers of two only
+        assertEquals(8, BitmapHelper.calculateInSampleSize(1500, 1500, 128, 128));
+        assertEquals(16, BitmapHelper.calculateInSampleSize(4096, 4096, 256, 256));
+        assertEquals(0, Integer.bitCount(
+                BitmapHelper.calculateInSampleSize(2999, 1777, 123, 77)) - 1);
+    }
+
+    @Test
+    public void getFitSize_keepsTheAspectRatio() {
+        assertEquals(480, BitmapHelper.getFitWidth(3000, 3000, 800, 480));
+        assertEquals(480, BitmapHelper.getFitHeight(3000, 3000, 800, 480));
+        assertEquals(800, BitmapHelper.getFitWidth(1920, 1080, 800, 480));
+        assertEquals(450, BitmapHelper.getFitHeight(1920, 1080, 800, 480));
+    }
+
+    @Test
+    public void getScaleDensity_scalesTheSampledImageToTheFitSize() {
+        // {width, height, inSampleSize, inDensity, decoded width} into the big art box
+        int[][] decodes = {
+                {100, 100, 1, 0, 100},
+                {500, 500, 1, 500, 480},
+                {1000, 1000, 2, 500, 480},
+                {3000, 3000, 4, 750, 480},
+                {4000, 4000, 8, 500, 480},
+                {1920, 1080, 2, 960, 800},
+        };
+        for (int[] decode : decodes) {
+            int width = decode[0];
+            int height = decode[1];
+            String image = width + "x" + height;
+            int sampleSize = BitmapHelper.calculateInSampleSize(width, height, 800, 480);
+            assertEquals(image, decode[2], sampleSize);
+            int density = BitmapHelper.getScaleDensity(width, height, 800, 480);
+            assertEquals(image, decode[3], density);
+            // The decoder scales the sampled image by inTargetDensity / inDensity
+            int decodedWidth = width / sampleSize;
+            if (density > 0) {
+                int targetDensity = BitmapHelper.getFitWidth(width, height, 800, 480);
+                decodedWidth = Math.round((float) decodedWidth * targetDensity / density);
+            }
+            assertEquals(image, decode[4], decodedWidth);
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package com.lrony.mediabrowsedemo.utils;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Covers found by {@link FolderCoverResolver}.
+ */
+public class FolderCoverResolverTest {
+
+    private static File createFolder(String... fileNames) throws IOException {
+        File folder = File.createTempFile("album", "");
+        assertTrue(folder.delete() && folder.mkdir());
+        folder.deleteOnExit();
+        for (String fileName : fileNames) {
+            File file = new File(folder, fileName);
+            assertTrue(file.createNewFile());
+            file.deleteOnExit();
+        }
+        return folder;
+    }
+
+    @Test
+    public void getCover_prefersConventionalNames() throws IOException {
+        File folder = createFolder("01 Intro.mp3", "Folder.JPG", "cover.png", "back.jpg");
+        FolderCoverResolver resolver = new FolderCoverResolver();
+        assertEquals(new File(folder, "cover.png").getPath(),
+                resolver.getCover(folder.getPath()));
+
+        File noCover = createFolder("01 Intro.mp3", "covers.jpg", "scan.jpg");
+        assertNull(resolver.getCover(noCover.getPath()));
+        assertNull(resolver.getCover(new File(noCover, "missing").getPath()));
+    }
+
+    @Test
+    public void getCover_listsEachFolderOnce() throws IOException {
+        File folder = createFolder("01.flac", "02.flac", "front.jpeg");
+        File noCover = createFolder("01.flac");
+        FolderCoverResolver resolver = new FolderCoverResolver();
+        for (int i = 0; i < 20; i++) {
+            assertNotNull(resolver.getCover(folder.getPath()));
+            assertNull(resolver.getCover(noCover.getPath()));
+        }
+        assertEquals(2, resolver.getListCount());
+    }
+}
@@ -0,0 +1,210 @@
+package com.lrony.mediabrowsedemo.utils;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Hand-off between the current and the next player of {@link GaplessChain}.
+ */
+public class GaplessChainTest {
+
+    private static class Player {
+        String mSource;
+        Player mNext;
+        int mPrepareCount;
+        boolean mReleased;
+    }
+
+    private static class Host implements GaplessChain.Host<Player> {
+        final List<Player> mCreated = new ArrayList<>();
+        final List<String> mPrepared = new ArrayList<>();
+        boolean mFailPrepare;
+
+        @Override
+        public Player createPlayer() {
+            Player player = new Player();
+            mCreated.add(player);
+            return player;
+        }
+
+        @Override
+        public String getSource(String mediaId) {
+            return mediaId.startsWith("unknown") ? null : "/music/" + mediaId + ".mp3";
+        }
+
+        @Override
+        public boolean prepareAsync(Player player, String source) {
+            if (mFailPrepare) {
+                return false;
+            }
+            player.mSource = source;
+            player.mPrepareCount++;
+            mPrepared.add(source);
+            return true;
+        }
+
+        @Override
+        public void setNextPlayer(Player player, Player next) {
+            player.mNext = next;
+        }
+
+        @Override
+        public void reset(Player player) {
+            player.mSource = null;
+            player.mNext = null;
+        }
+
+        @Override
+        public void release(Player player) {
+            player.mReleased = true;
+        }
+    }
+
+    @Test
+    public void completion_swapsToTheChainedPlayerWithoutPreparingAgain() {
+        Host host = new Host();
+        GaplessChain<Player> chain = new GaplessChain<>(host);
+        Player current = playing("a");
+
+        chain.setNextItem("b", current);
+        assertEquals(1, host.mCreated.size());
+        Player next = host.mCreated.get(0);
+        assertEquals("/music/b.mp3", next.mSource);
+        assertFalse(chain.isChained());
+
+        assertTrue(chain.onPrepared(next, current));
+        assertTrue(chain.isChained());
+        assertSame(next, current.mNext);
+
+        // The current player completes, the chained one already plays "b"
+        assertSame(next, chain.swap(current));
+        assertEquals(1, next.mPrepareCount);
+        assertEquals("/music/b.mp3", next.mSource);
+        assertNull(current.mSource);
+        assertFalse(chain.isChained());
+
+        // The finished player prepares the item after that, no third player is created
+        chain.setNextItem("c", next);
+        assertEquals(1, host.mCreated.size());
+        assertEquals("/music/c.mp3", current.mSource);
+        assertTrue(chain.onPrepared(current, next));
+        assertSame(current, next.mNext);
+    }
+
+    @Test
+    public void skipToPreparedItem_swapsWithoutPreparingAgain() {
+        Host host = new Host();
+        GaplessChain<Player> chain = new GaplessChain<>(host);
+        Player current = playing("a");
+        chain.setNextItem("b", current);
+        Player next = host.mCreated.get(0);
+        chain.onPrepared(next, current);
+
+        assertFalse(chain.isPrepared("c"));
+        assertTrue(chain.isPrepared("b"));
+        assertEquals("b", chain.getNextMediaId());
+        assertSame(next, chain.swap(current));
+        assertEquals(1, host.mPrepared.size());
+    }
+
+    @Test
+    public void setNextItem_keepsOrReplacesThePreparedItem() {
+        Host host = new Host();
+        GaplessChain<Player> chain = new GaplessChain<>(host);
+        Player current = playing("a");
+        chain.setNextItem("b", current);
+        Player next = host.mCreated.get(0);
+        chain.onPrepared(next, current);
+
+        // Same item, e.g. the queue was edited after it
+        chain.setNextItem("b", current);
+        assertEquals(1, next.mPrepareCount);
+        assertTrue(chain.isChained());
+
+        // Another item is unchained and prepared on the same player
+        chain.setNextItem("c", current);
+        assertNull(current.mNext);
+        assertFalse(chain.isChained());
+        assertEquals(2, next.mPrepareCount);
+        assertEquals("/music/c.mp3", next.mSource);
+
+        // No next item, the current one stops on completion
+        chain.onPrepared(next, current);
+        chain.setNextItem(null, current);
+        assertNull(current.mNext);
+        assertFalse(chain.isPrepared("c"));
+        assertFalse(next.mReleased);
+    }
+
+    @Test
+    public void nextItem_waitsForTheCurrentOneToBePrepared() {
+        Host host = new Host();
+        GaplessChain<Player> chain = new GaplessChain<>(host);
+        Player current = new Player();
+
+        chain.setNextItem("b", null);
+        assertTrue(host.mCreated.isEmpty());
+
+        chain.onCurrentPrepared(current);
+        Player next = host.mCreated.get(0);
+        assertEquals("/music/b.mp3", next.mSource);
+        chain.onPrepared(next, current);
+        assertSame(next, current.mNext);
+    }
+
+    @Test
+    public void unknownOrFailingNextItem_fallsBackToCompletion() {
+        Host host = new Host();
+        GaplessChain<Player> chain = new GaplessChain<>(host);
+        Player current = playing("a");
+
+        // Source not known until the catalog is loaded
+        chain.setNextItem("unknown", current);
+        assertTrue(host.mCreated.isEmpty());
+        assertFalse(chain.isChained());
+
+        host.mFailPrepare = true;
+        chain.setNextItem("b", current);
+        assertFalse(chain.isPrepared("b"));
+        assertNull(chain.getNextMediaId());
+
+        host.mFailPrepare = false;
+        chain.setNextItem("c", current);
+        Player next = host.mCreated.get(0);
+        assertFalse(chain.onError(current, current));
+        assertTrue(chain.onError(next, current));
+        assertFalse(chain.isChained());
+        assertNull(chain.getNextMediaId());
+        // A late onPrepared of the current player is not taken for the next one
+        assertFalse(chain.onPrepared(current, current));
+    }
+
+    @Test
+    public void release_detachesAndReleasesTheNextPlayer() {
+        Host host = new Host();
+        GaplessChain<Player> chain = new GaplessChain<>(host);
+        Player current = playing("a");
+        chain.setNextItem("b", current);
+        Player next = host.mCreated.get(0);
+        chain.onPrepared(next, current);
+
+        chain.release(current, true);
+        assertNull(current.mNext);
+        assertTrue(next.mReleased);
+        assertFalse(chain.isChained());
+
+        // A new next player is created for the next item
+        chain.setNextItem("c", current);
+        assertEquals(2, host.mCreated.size());
+    }
+
+    private static Player playing(String mediaId) {
+        Player player = new Player();
+        player.mSource = "/music/" + mediaId + ".mp3";
+        return player;
+    }
+}
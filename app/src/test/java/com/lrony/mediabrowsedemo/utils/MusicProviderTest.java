@@ -0,0 +1,56 @@
+package com.lrony.mediabrowsedemo.utils;
+
+import android.graphics.Bitmap;
+import android.media.MediaMetadata;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import static org.junit.Assert.*;
+
+/**
+ * Catalog updates of {@link MusicProvider}.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class MusicProviderTest {
+
+    @Test
+    public void updateMusic_storesTheFetchedFolderCover() {
+        MusicProvider provider = new MusicProvider(RuntimeEnvironment.application);
+        try {
+            // As retrieveMedia builds a track without embedded art, with no genre either
+            MediaMetadata track = new MediaMetadata.Builder()
+                    .putString(MediaMetadata.METADATA_KEY_MEDIA_ID, "7")
+                    .putString(MusicProvider.CUSTOM_METADATA_TRACK_SOURCE,
+                            "/storage/usb/Music/Album/01 Track.mp3")
+                    .putString(MediaMetadata.METADATA_KEY_TITLE, "Track")
+                    .putString(MediaMetadata.METADATA_KEY_ALBUM, "Album")
+                    .putString(MediaMetadata.METADATA_KEY_ARTIST, "Artist")
+                    .putString(MediaMetadata.METADATA_KEY_ALBUM_ART_URI,
+                            "file:///storage/usb/Music/Album/cover.jpg")
+                    .build();
+            provider.addMusic(7, track);
+
+            // As MediaPlaybackService.updateMetadata stores the cover once it is fetched
+            Bitmap art = Bitmap.createBitmap(64, 64, Bitmap.Config.ARGB_8888);
+            Bitmap icon = Bitmap.createBitmap(16, 16, Bitmap.Config.ARGB_8888);
+            provider.updateMusic(7, new MediaMetadata.Builder(track)
+                    .putBitmap(MediaMetadata.METADATA_KEY_ALBUM_ART, art)
+                    .putBitmap(MediaMetadata.METADATA_KEY_DISPLAY_ICON, icon)
+                    .build());
+
+            MediaMetadata updated = provider.getMusicById(7).getMetadata();
+            assertSame(art, updated.getBitmap(MediaMetadata.METADATA_KEY_ALBUM_ART));
+            assertSame(icon, updated.getBitmap(MediaMetadata.METADATA_KEY_DISPLAY_ICON));
+            assertEquals("Track", updated.getString(MediaMetadata.METADATA_KEY_TITLE));
+
+            // Unknown tracks are ignored
+            provider.updateMusic(8, updated);
+            assertNull(provider.getMusicById(8));
+        } finally {
+            provider.release();
+        }
+    }
+}
@@ -0,0 +1,207 @@
+package com.lrony.mediabrowsedemo.utils;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Position lookups of {@link PlayQueue}, before and after edits.
+ */
+public class PlayQueueIndexTest {
+
+    private static final int QUEUE_SIZE = 50000;
+
+    private static long[] createTrackIds(int size) {
+        long[] trackIds = new long[size];
+        for (int i = 0; i < size; i++) {
+            // MediaStore ids are sparse and not in queue order
+            trackIds[i] = (i * 7919L) % 1000003L + 100000L;
+        }
+        return trackIds;
+    }
+
+    @Test
+    public void indexOfTrackId_findsEveryPosition() {
+        long[] trackIds = createTrackIds(QUEUE_SIZE);
+        PlayQueue queue = new PlayQueue(trackIds);
+        for (int i = 0; i < QUEUE_SIZE; i++) {
+            assertEquals(i, queue.indexOfTrackId(trackIds[i]));
+        }
+        assertEquals(-1, queue.indexOfTrackId(1L));
+        assertEquals(-1, queue.indexOfTrackId(-5L));
+    }
+
+    @Test
+    public void indexOfTrackId_returnsFirstOccurrence() {
+        PlayQueue queue = new PlayQueue(new long[]{3, 5, 3, 7});
+        assertEquals(0, queue.indexOfTrackId(3));
+        assertEquals(1, queue.indexOfTrackId(5));
+        assertEquals(3, queue.indexOfTrackId(7));
+    }
+
+    @Test
+    public void indexOfQueueId_findsEveryPosition() {
+        PlayQueue queue = new PlayQueue(createTrackIds(QUEUE_SIZE));
+        for (int i = 0; i < QUEUE_SIZE; i++) {
+            assertEquals(i, queue.indexOfQueueId(queue.getQueueId(i)));
+        }
+        assertEquals(-1, queue.indexOfQueueId(QUEUE_SIZE));
+        assertEquals(-1, queue.indexOfQueueId(-1));
+    }
+
+    @Test
+    public void edits_keepPositionsAndQueueIds() {
+        long[] trackIds = createTrackIds(QUEUE_SIZE);
+        PlayQueue queue = new PlayQueue(trackIds);
+        long[] expectedTrackIds = trackIds.clone();
+        long[] expectedQueueIds = new long[QUEUE_SIZE];
+        for (int i = 0; i < QUEUE_SIZE; i++) {
+            expectedQueueIds[i] = queue.getQueueId(i);
+        }
+
+        List<long[]> expected = new ArrayList<>();
+        for (int i = 0; i < QUEUE_SIZE; i++) {
+            expected.add(new long[]{expectedTrackIds[i], expectedQueueIds[i]});
+        }
+        queue.insert(1000, new long[]{1, 2, 3});
+        for (int i = 0; i < 3; i++) {
+            expected.add(1000 + i, new long[]{i + 1, queue.getQueueId(1000 + i)});
+        }
+        queue.remove(QUEUE_SIZE);
+        expected.remove(QUEUE_SIZE);
+        queue.move(0, 20000);
+        expected.add(20000, expected.remove(0));
+        queue.insert(queue.size(), new long[]{4});
+        expected.add(new long[]{4, queue.getQueueId(queue.size() - 1)});
+
+        assertEquals(expected.size(), queue.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i)[0], queue.getTrackId(i));
+            assertEquals(expected.get(i)[1], queue.getQueueId(i));
+            assertEquals(i, queue.indexOfQueueId(expected.get(i)[1]));
+            assertEquals(i, queue.indexOfTrackId(expected.get(i)[0]));
+        }
+        assertEquals(-1, queue.indexOfQueueId(expectedQueueIds[QUEUE_SIZE - 3]));
+    }
+
+    @Test
+    public void lookupAfterInsertAtFront_seesShiftedPositions() {
+        long[] trackIds = createTrackIds(QUEUE_SIZE);
+        PlayQueue queue = new PlayQueue(trackIds);
+        long lastQueueId = queue.getQueueId(QUEUE_SIZE - 1);
+
+        // Play next at the front, then play from media id near the end
+        queue.insert(0, new long[]{1});
+        assertEquals(QUEUE_SIZE, queue.indexOfTrackId(trackIds[QUEUE_SIZE - 1]));
+        assertEquals(QUEUE_SIZE, queue.indexOfQueueId(lastQueueId));
+        assertEquals(0, queue.indexOfTrackId(1));
+        assertEquals(QUEUE_SIZE / 2 + 1, queue.indexOfTrackId(trackIds[QUEUE_SIZE / 2]));
+    }
+
+    @Test
+    public void insertAtFront_keepsLookupsInStepAtLibraryScale() {
+        long[] trackIds = createTrackIds(QUEUE_SIZE);
+        PlayQueue queue = new PlayQueue(trackIds);
+        int inserts = 2000;
+        for (int i = 0; i < inserts; i++) {
+            // Ids below the range of createTrackIds
+            queue.insert(0, new long[]{i});
+            assertEquals(QUEUE_SIZE + i, queue.indexOfTrackId(trackIds[QUEUE_SIZE - 1]));
+            int probe = (int) ((i * 104729L) % QUEUE_SIZE);
+            assertEquals(probe + i + 1, queue.indexOfTrackId(trackIds[probe]));
+        }
+        assertEquals(QUEUE_SIZE + inserts, queue.size());
+        for (int i = 0; i < inserts; i++) {
+            assertEquals(inserts - 1 - i, queue.indexOfTrackId(i));
+        }
+    }
+
+    @Test
+    public void appends_fillWholeChunks() {
+        PlayQueue queue = new PlayQueue(new long[0]);
+        for (int i = 0; i < 5000; i++) {
+            queue.insert(queue.size(), new long[]{i});
+        }
+        // 512 items per chunk
+        assertEquals(10, queue.getChunkCount());
+        for (int i = 0; i < 5000; i += 7) {
+            assertEquals(i, queue.indexOfTrackId(i));
+            assertEquals(i, queue.getTrackId(i));
+        }
+
+        // A batch appended to a full chunk goes on in new chunks as well
+        queue.insert(queue.size(), createTrackIds(1000));
+        assertEquals(12, queue.getChunkCount());
+        assertEquals(5999, queue.indexOfTrackId(createTrackIds(1000)[999]));
+    }
+
+    @Test
+    public void randomEdits_matchListModel() {
+        Random random = new Random(42);
+        long[] trackIds = new long[3000];
+        for (int i = 0; i < trackIds.length; i++) {
+            // Few distinct tracks, so many are queued more than once
+            trackIds[i] = random.nextInt(400);
+        }
+        PlayQueue queue = new PlayQueue(trackIds);
+        List<long[]> expected = new ArrayList<>();
+        for (int i = 0; i < trackIds.length; i++) {
+            expected.add(new long[]{trackIds[i], queue.getQueueId(i)});
+        }
+        List<Long> removedQueueIds = new ArrayList<>();
+
+        for (int edit = 0; edit < 2000; edit++) {
+            int op = random.nextInt(3);
+            if (op == 0 || expected.isEmpty()) {
+                int index = random.nextInt(expected.size() + 1);
+                long[] inserted = new long[1 + random.nextInt(random.nextInt(20) == 0 ? 600 : 3)];
+                for (int i = 0; i < inserted.length; i++) {
+                    inserted[i] = random.nextInt(400);
+                }
+                queue.insert(index, inserted);
+                for (int i = 0; i < inserted.length; i++) {
+                    expected.add(index + i, new long[]{inserted[i], queue.getQueueId(index + i)});
+                }
+            } else if (op == 1) {
+                int index = random.nextInt(expected.size());
+                queue.remove(index);
+                removedQueueIds.add(expected.remove(index)[1]);
+            } else {
+                int from = random.nextInt(expected.size());
+                int to = random.nextInt(expected.size());
+                queue.move(from, to);
+                expected.add(to, expected.remove(from));
+            }
+            // Lookups right after the edit
+            int probe = random.nextInt(expected.size());
+            assertEquals(probe, queue.indexOfQueueId(expected.get(probe)[1]));
+            assertEquals(firstIndexOf(expected, expected.get(probe)[0]),
+                    queue.indexOfTrackId(expected.get(probe)[0]));
+        }
+
+        assertEquals(expected.size(), queue.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i)[0], queue.getTrackId(i));
+            assertEquals(i, queue.indexOfQueueId(expected.get(i)[1]));
+        }
+        for (long trackId = 0; trackId < 400; trackId++) {
+            assertEquals(firstIndexOf(expected, trackId), queue.indexOfTrackId(trackId));
+        }
+        for (long queueId : removedQueueIds) {
+            assertEquals(-1, queue.indexOfQueueId(queueId));
+        }
+    }
+
+    private static int firstIndexOf(List<long[]> items, long trackId) {
+        for (int i = 0; i < items.size(); i++) {
+            if (items.get(i)[0] == trackId) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
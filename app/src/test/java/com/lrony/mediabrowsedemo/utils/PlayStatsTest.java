@@ -0,0 +1,99 @@
+package com.lrony.mediabrowsedemo.utils;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Counters and top-k queries of {@link PlayStats}.
+ */
+public class PlayStatsTest {
+
+    private static final int TRACKS = 20000;
+
+    private static PlayStats createStats() {
+        PlayStats stats = new PlayStats(0);
+        Random random = new Random(42);
+        for (int i = 0; i < 100000; i++) {
+            long trackId = 1000 + random.nextInt(TRACKS);
+            stats.apply(PlayStats.EVENT_START, trackId, i, 0);
+            if (random.nextInt(4) == 0) {
+                stats.apply(PlayStats.EVENT_SKIP, trackId, i, random.nextInt(60000));
+            } else {
+                stats.apply(PlayStats.EVENT_COMPLETE, trackId, i, 0);
+            }
+        }
+        return stats;
+    }
+
+    @Test
+    public void apply_countsEvents() {
+        PlayStats stats = new PlayStats(0);
+        stats.apply(PlayStats.EVENT_START, 7, 100, 0);
+        stats.apply(PlayStats.EVENT_SKIP, 7, 100, 1500);
+        stats.apply(PlayStats.EVENT_START, 7, 200, 0);
+        stats.apply(PlayStats.EVENT_COMPLETE, 7, 200, 0);
+        assertEquals(2, stats.getPlayCount(7));
+        assertEquals(1, stats.getSkipCount(7));
+        assertEquals(1, stats.getCompletionCount(7));
+        assertEquals(200, stats.getLastPlayedTime(7));
+        assertEquals(1500, stats.getLastPosition(7));
+        assertEquals(0, stats.getPlayCount(8));
+    }
+
+    @Test
+    public void getMostPlayed_isOrderedByPlayCount() {
+        PlayStats stats = createStats();
+        long[] top = stats.getMostPlayed(50);
+        assertEquals(50, top.length);
+        int max = 0;
+        for (long trackId = 1000; trackId < 1000 + TRACKS; trackId++) {
+            max = Math.max(max, stats.getPlayCount(trackId));
+        }
+        assertEquals(max, stats.getPlayCount(top[0]));
+        for (int i = 1; i < top.length; i++) {
+            assertTrue(stats.getPlayCount(top[i - 1]) >= stats.getPlayCount(top[i]));
+        }
+        // Nothing outside the top plays more than its last entry
+        int last = stats.getPlayCount(top[top.length - 1]);
+        int above = 0;
+        for (long trackId = 1000; trackId < 1000 + TRACKS; trackId++) {
+            if (stats.getPlayCount(trackId) > last) {
+                above++;
+            }
+        }
+        assertTrue(above < top.length);
+    }
+
+    @Test
+    public void getRecentlyPlayed_isMostRecentFirst() {
+        PlayStats stats = new PlayStats(0);
+        for (int i = 0; i < 10; i++) {
+            stats.apply(PlayStats.EVENT_START, i, 1000 - i, 0);
+        }
+        assertArrayEquals(new long[]{0, 1, 2}, stats.getRecentlyPlayed(3));
+        assertEquals(10, stats.getRecentlyPlayed(100).length);
+    }
+
+    @Test
+    public void writeRead_keepsCounters() throws Exception {
+        PlayStats stats = createStats();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        stats.write(new DataOutputStream(bytes));
+        PlayStats read = PlayStats.read(
+                new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+        assertEquals(stats.size(), read.size());
+        for (long trackId = 1000; trackId < 1000 + TRACKS; trackId++) {
+            assertEquals(stats.getPlayCount(trackId), read.getPlayCount(trackId));
+            assertEquals(stats.getSkipCount(trackId), read.getSkipCount(trackId));
+            assertEquals(stats.getLastPlayedTime(trackId), read.getLastPlayedTime(trackId));
+        }
+        assertArrayEquals(stats.getMostPlayed(20), read.getMostPlayed(20));
+    }
+}
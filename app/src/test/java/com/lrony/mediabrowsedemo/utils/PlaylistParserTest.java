@@ -0,0 +1,130 @@
+package com.lrony.mediabrowsedemo.utils;
+
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Entries resolved by {@link PlaylistParser}.
+ */
+public class PlaylistParserTest {
+
+    private static final String VOLUME = "/storage/1234-5678";
+
+    private static Map<String, Long> createIndex(int size) {
+        Map<String, Long> trackIdByPath = new HashMap<>(size * 2);
+        for (int i = 0; i < size; i++) {
+            trackIdByPath.put(PlaylistParser.normalizePath(
+                    VOLUME + "/Music/Artist " + (i / 10) + "/Track " + i + ".mp3"), (long) i);
+        }
+        return trackIdByPath;
+    }
+
+    private static long[] parse(String playlist, String path, Map<String, Long> index)
+            throws Exception {
+        return PlaylistParser.parse(new BufferedReader(new StringReader(playlist)), path, index);
+    }
+
+    @Test
+    public void parse_resolvesM3uEntries() throws Exception {
+        String playlist = "\uFEFF#EXTM3U\n"
+                + "#EXTINF:215,Artist 0 - Track 1\n"
+                + "Artist 0/Track 1.mp3\n"
+                + "\n"
+                + "../Music/ARTIST 0/track 2.MP3\n"
+                + VOLUME + "/Music/Artist 1/Track 10.mp3\n"
+                + "D:\\Music\\Artist 1\\Track 11.mp3\n"
+                + "file:///storage/1234-5678/Music/Artist%201/Track%2012.mp3\n"
+                + "http://example.com/stream.mp3\n"
+                + "Artist 0/Missing.mp3\n";
+        assertArrayEquals(new long[]{1, 2, 10, 11, 12},
+                parse(playlist, VOLUME + "/Music/Favorites.m3u", createIndex(100)));
+    }
+
+    @Test
+    public void parse_resolvesPlsEntries() throws Exception {
+        String playlist = "[playlist]\n"
+                + "File1=Artist 0/Track 3.mp3\n"
+                + "Title1=Track 3\n"
+                + "Length1=200\n"
+                + "file2=Artist 2/Track 25.mp3\n"
+                + "NumberOfEntries=2\n"
+                + "Version=2\n";
+        assertArrayEquals(new long[]{3, 25},
+                parse(playlist, VOLUME + "/Music/Mix.PLS", createIndex(100)));
+    }
+
+    @Test
+    public void parse_resolvesRootRelativeWindowsEntries() throws Exception {
+        String playlist = "\\Music\\Artist 0\\Track 4.mp3\r\n"
+                + "/Music/Artist 1/Track 15.mp3\r\n"
+                + VOLUME + "/Music/Artist 2/Track 20.mp3\r\n";
+        assertArrayEquals(new long[]{4, 15, 20},
+                parse(playlist, VOLUME + "/Playlists/Windows.m3u", createIndex(100)));
+    }
+
+    @Test
+    public void openReader_decodesByFormat() throws Exception {
+        File folder = File.createTempFile("playlists", "");
+        assertTrue(folder.delete() && folder.mkdir());
+        folder.deleteOnExit();
+        String cafe = "Caf\u00e9.mp3";
+        Map<String, Long> index = new HashMap<>();
+        index.put(PlaylistParser.normalizePath(folder.getPath() + "/" + cafe), 1L);
+
+        File m3u = write(folder, "legacy.m3u", cafe.getBytes("windows-1252"));
+        File m3u8 = write(folder, "unicode.m3u8", cafe.getBytes("UTF-8"));
+        byte[] bom = {(byte) 0xEF, (byte) 0xBB, (byte) 0xBF};
+        byte[] utf8 = cafe.getBytes("UTF-8");
+        byte[] withBom = Arrays.copyOf(bom, bom.length + utf8.length);
+        System.arraycopy(utf8, 0, withBom, bom.length, utf8.length);
+        File bomM3u = write(folder, "bom.m3u", withBom);
+
+        for (File file : new File[]{m3u, m3u8, bomM3u}) {
+            BufferedReader reader = PlaylistParser.openReader(file.getPath());
+            try {
+                assertArrayEquals(new long[]{1},
+                        PlaylistParser.parse(reader, file.getPath(), index));
+            } finally {
+                reader.close();
+            }
+        }
+    }
+
+    @Test
+    public void parse_resolvesLargePlaylist() throws Exception {
+        int librarySize = 50000;
+        int entries = 5000;
+        Map<String, Long> index = createIndex(librarySize);
+        StringBuilder playlist = new StringBuilder("#EXTM3U\n");
+        long[] expected = new long[entries];
+        for (int i = 0; i < entries; i++) {
+            int track = (i * 7919) % librarySize;
+            expected[i] = track;
+            playlist.append("#EXTINF:180,Track ").append(track).append('\n')
+                    .append("Artist ").append(track / 10).append("/Track ").append(track)
+                    .append(".mp3\n");
+        }
+        assertArrayEquals(expected, parse(playlist.toString(), VOLUME + "/Music/Big.m3u8", index));
+    }
+
+    private static File write(File folder, String name, byte[] content) throws Exception {
+        File file = new File(folder, name);
+        file.deleteOnExit();
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+}
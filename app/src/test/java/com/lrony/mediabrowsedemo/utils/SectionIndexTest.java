@@ -0,0 +1,60 @@
+package com.lrony.mediabrowsedemo.utils;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Sorting and sections of {@link SectionIndex}.
+ */
+public class SectionIndexTest {
+
+    private static final SectionIndex.TitleGetter<String> NAME =
+            new SectionIndex.TitleGetter<String>() {
+                @Override
+                public String getTitle(String name) {
+                    return name;
+                }
+            };
+
+    @Test
+    public void sort_collatesTitlesIntoContiguousSections() {
+        String cjk = "\u5468\u6770\u4f26";
+        List<String> names = new ArrayList<>(Arrays.asList(
+                "beta", "Zulu", "\u00c9cho", "alpha", "42nd Street", "echo", "Bravo", "apple",
+                cjk));
+        SectionIndex sections = SectionIndex.sort(names, NAME);
+
+        // Case and accents are ignored, equal titles keep their order
+        assertEquals(Arrays.asList("42nd Street", "alpha", "apple", "beta", "Bravo",
+                "\u00c9cho", "echo", "Zulu", cjk), names);
+        assertEquals(names.size(), sections.getItemCount());
+        assertArrayEquals(new String[]{"#", "A", "B", "E", "Z",
+                SectionIndex.LABEL_OTHER_SCRIPTS}, labels(sections));
+        assertEquals(5, sections.getPositionForSection(3));
+    }
+
+    @Test
+    public void getSectionForPosition_findsEnclosingSection() {
+        List<String> names = new ArrayList<>(Arrays.asList("Ant", "Ape", "Bee", "Cat", "Cow"));
+        SectionIndex sections = SectionIndex.sort(names, NAME);
+
+        assertArrayEquals(new String[]{"A", "B", "C"}, labels(sections));
+        assertEquals(0, sections.getSectionForPosition(1));
+        assertEquals(1, sections.getSectionForPosition(2));
+        assertEquals(2, sections.getSectionForPosition(4));
+        assertEquals(1, sections.getPageForSection(2, 2));
+    }
+
+    private static String[] labels(SectionIndex sections) {
+        String[] labels = new String[sections.getSectionCount()];
+        for (int i = 0; i < labels.length; i++) {
+            labels[i] = sections.getLabel(i);
+        }
+        return labels;
+    }
+}
@@ -0,0 +1,153 @@
+package com.lrony.mediabrowsedemo.utils;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Play order generated by {@link ShuffleOrder}.
+ */
+public class ShuffleOrderTest {
+
+    @Test
+    public void moveToNext_visitsEveryPositionOnce() {
+        int size = 1000;
+        ShuffleOrder order = new ShuffleOrder(size);
+        boolean[] seen = new boolean[size];
+        for (int i = 0; i < size; i++) {
+            int position = order.moveToNext(false);
+            assertFalse("position " + position + " played twice", seen[position]);
+            seen[position] = true;
+        }
+        assertEquals(-1, order.peekNext(false));
+        assertEquals(-1, order.moveToNext(false));
+    }
+
+    @Test
+    public void moveToNext_wrapsToTheSameOrder() {
+        ShuffleOrder order = new ShuffleOrder(10);
+        int first = order.moveToNext(true);
+        for (int i = 1; i < 10; i++) {
+            order.moveToNext(true);
+        }
+        assertEquals(first, order.peekNext(true));
+        assertEquals(first, order.moveToNext(true));
+    }
+
+    @Test
+    public void moveToPrevious_stepsBackThroughHistory() {
+        ShuffleOrder order = new ShuffleOrder(100);
+        int[] played = new int[5];
+        for (int i = 0; i < played.length; i++) {
+            played[i] = order.moveToNext(false);
+        }
+        for (int i = played.length - 2; i >= 0; i--) {
+            assertEquals(played[i], order.moveToPrevious());
+        }
+        // Stays on the first item
+        assertEquals(played[0], order.moveToPrevious());
+        // and plays the same items forward again
+        assertEquals(played[1], order.moveToNext(false));
+    }
+
+    @Test
+    public void moveTo_startsFromThePickedPosition() {
+        ShuffleOrder order = new ShuffleOrder(100000);
+        order.moveTo(42);
+        assertEquals(0, order.getCurrentSlot());
+        int next = order.peekNext(false);
+        assertTrue(next != 42);
+        assertEquals(next, order.moveToNext(false));
+        assertEquals(42, order.moveToPrevious());
+    }
+
+    @Test
+    public void playNext_keepsTheHistory() {
+        ShuffleOrder order = new ShuffleOrder(100);
+        int[] played = new int[5];
+        for (int i = 0; i < played.length; i++) {
+            played[i] = order.moveToNext(false);
+        }
+        order.moveToPrevious();
+        order.moveToPrevious();
+        int next = order.peekNext(false);
+        while (contains(played, next)) {
+            next = (next + 1) % 100;
+        }
+        order.playNext(next);
+        assertEquals(next, order.peekNext(false));
+        assertEquals(next, order.moveToNext(false));
+        assertEquals(played[3], order.moveToNext(false));
+        assertEquals(played[4], order.moveToNext(false));
+    }
+
+    @Test
+    public void restore_continuesTheSavedOrder() {
+        ShuffleOrder order = new ShuffleOrder(50);
+        for (int i = 0; i < 20; i++) {
+            order.moveToNext(false);
+        }
+        order.moveToPrevious();
+        int[] history = order.getHistory();
+
+        ShuffleOrder restored = ShuffleOrder.restore(50, history, order.getCurrentSlot());
+        assertArrayEquals(history, restored.getHistory());
+        assertEquals(order.getCurrentSlot(), restored.getCurrentSlot());
+        assertEquals(order.peekNext(false), restored.peekNext(false));
+
+        // The rest of the positions are still played exactly once
+        boolean[] seen = new boolean[50];
+        for (int i = 0; i <= restored.getCurrentSlot(); i++) {
+            seen[history[i]] = true;
+        }
+        int position;
+        while ((position = restored.moveToNext(false)) >= 0) {
+            assertFalse(seen[position]);
+            seen[position] = true;
+        }
+        for (boolean played : seen) {
+            assertTrue(played);
+        }
+    }
+
+    @Test
+    public void edits_shiftTheHistory() {
+        ShuffleOrder order = ShuffleOrder.restore(10, new int[]{7, 2, 5, 0}, 2);
+        int changes = order.getChangeCount();
+
+        order.insert(3, 2);
+        assertArrayEquals(new int[]{9, 2, 7, 0}, order.getHistory());
+        assertEquals(12, order.size());
+        order.remove(2);
+        assertArrayEquals(new int[]{8, 6, 0}, order.getHistory());
+        assertEquals(1, order.getCurrentSlot());
+        order.move(8, 1);
+        assertArrayEquals(new int[]{1, 7, 0}, order.getHistory());
+        assertEquals(11, order.size());
+        assertTrue(order.getChangeCount() > changes);
+
+        // The items not drawn yet are still played exactly once
+        boolean[] seen = new boolean[11];
+        for (int position : order.getHistory()) {
+            seen[position] = true;
+        }
+        order.moveToNext(false);
+        int position;
+        while ((position = order.moveToNext(false)) >= 0) {
+            assertFalse(seen[position]);
+            seen[position] = true;
+        }
+        for (boolean played : seen) {
+            assertTrue(played);
+        }
+    }
+
+    private static boolean contains(int[] positions, int position) {
+        for (int p : positions) {
+            if (p == position) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,121 @@
+package com.lrony.mediabrowsedemo.utils;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Prepares triggered by bursts of skips through {@link SkipCoalescer}.
+ */
+public class SkipCoalescerTest {
+
+    private static final long WINDOW = 300;
+
+    private static class Callback implements SkipCoalescer.Callback {
+        // Queue index the service would skip to
+        int mTarget;
+        final List<Integer> mPlayed = new ArrayList<>();
+        final List<Integer> mPreviewed = new ArrayList<>();
+        // Time the pending onWindowElapsed is due, 0 if none
+        long mDueTime;
+        long mNow;
+
+        @Override
+        public void play() {
+            mPlayed.add(mTarget);
+        }
+
+        @Override
+        public void preview() {
+            mPreviewed.add(mTarget);
+        }
+
+        @Override
+        public void schedule(long delayMs) {
+            mDueTime = mNow + delayMs;
+        }
+
+        void skip(SkipCoalescer coalescer, long now, int target) {
+            advance(coalescer, now);
+            mTarget = target;
+            coalescer.onSkip(now);
+        }
+
+        void advance(SkipCoalescer coalescer, long now) {
+            mNow = now;
+            if (mDueTime != 0 && mDueTime <= now) {
+                mDueTime = 0;
+                coalescer.onWindowElapsed();
+            }
+        }
+    }
+
+    @Test
+    public void singleSkip_playsRightAway() {
+        Callback callback = new Callback();
+        SkipCoalescer coalescer = new SkipCoalescer(WINDOW, callback);
+
+        callback.skip(coalescer, 10000, 1);
+        assertEquals(Arrays.asList(1), callback.mPlayed);
+        assertEquals(0, callback.mDueTime);
+        assertFalse(coalescer.isPending());
+
+        // Far enough apart, every skip plays right away
+        callback.skip(coalescer, 10000 + WINDOW, 2);
+        callback.skip(coalescer, 20000, 3);
+        assertEquals(Arrays.asList(1, 2, 3), callback.mPlayed);
+        assertTrue(callback.mPreviewed.isEmpty());
+    }
+
+    @Test
+    public void burst_preparesOnlyTheFinalTargetAfterTheFirst() {
+        Callback callback = new Callback();
+        SkipCoalescer coalescer = new SkipCoalescer(WINDOW, callback);
+
+        // Ten skips 100ms apart, longer than a window from first to last
+        for (int i = 1; i <= 10; i++) {
+            callback.skip(coalescer, 10000 + i * 100, i);
+        }
+        assertEquals(Arrays.asList(1), callback.mPlayed);
+        assertEquals(Arrays.asList(2, 3, 4, 5, 6, 7, 8, 9, 10), callback.mPreviewed);
+        assertTrue(coalescer.isPending());
+        assertEquals(10, coalescer.getBurstCount());
+
+        // Nothing more until a whole window passed after the last skip
+        callback.advance(coalescer, 11000 + WINDOW - 1);
+        assertEquals(Arrays.asList(1), callback.mPlayed);
+        callback.advance(coalescer, 11000 + WINDOW);
+        assertEquals(Arrays.asList(1, 10), callback.mPlayed);
+        assertFalse(coalescer.isPending());
+
+        // A late duplicate of the timer plays nothing
+        coalescer.onWindowElapsed();
+        assertEquals(Arrays.asList(1, 10), callback.mPlayed);
+
+        // The next skip starts a new burst
+        callback.skip(coalescer, 12000, 11);
+        assertEquals(Arrays.asList(1, 10, 11), callback.mPlayed);
+    }
+
+    @Test
+    public void cancel_dropsThePendingTarget() {
+        Callback callback = new Callback();
+        SkipCoalescer coalescer = new SkipCoalescer(WINDOW, callback);
+        callback.skip(coalescer, 10000, 1);
+        callback.skip(coalescer, 10100, 2);
+
+        // Paused before the burst settled, the next skip plays right away even within the
+        // window of the cancelled burst
+        coalescer.cancel();
+        callback.skip(coalescer, 10150, 3);
+        assertEquals(Arrays.asList(1, 3), callback.mPlayed);
+
+        // The timer of the cancelled burst plays nothing
+        callback.advance(coalescer, 10100 + WINDOW);
+        assertEquals(Arrays.asList(1, 3), callback.mPlayed);
+    }
+}
@@ -0,0 +1,48 @@
+package com.lrony.mediabrowsedemo.utils;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Ordering kept by {@link SmartPlaylists.TrackRanking} as keys change.
+ */
+public class TrackRankingTest {
+
+    @Test
+    public void put_movesTrackToItsNewKey() {
+        SmartPlaylists.TrackRanking ranking = new SmartPlaylists.TrackRanking();
+        ranking.put(1, 5);
+        ranking.put(2, 3);
+        ranking.put(3, 8);
+        assertArrayEquals(new long[]{3, 1, 2}, ranking.getHighest(0, 10));
+
+        ranking.put(2, 9);
+        assertArrayEquals(new long[]{2, 3, 1}, ranking.getHighest(0, 10));
+        assertArrayEquals(new long[]{2, 3}, ranking.getHighest(6, 10));
+        assertArrayEquals(new long[]{2}, ranking.getHighest(0, 1));
+    }
+
+    @Test
+    public void getLowest_stopsAtTheBound() {
+        SmartPlaylists.TrackRanking ranking = new SmartPlaylists.TrackRanking();
+        for (int i = 0; i < 1000; i++) {
+            ranking.put(i, 1000 - i);
+        }
+        assertArrayEquals(new long[]{999, 998, 997}, ranking.getLowest(4, 10));
+        assertEquals(10, ranking.getLowest(500, 10).length);
+    }
+
+    @Test
+    public void remove_dropsTheTrack() {
+        SmartPlaylists.TrackRanking ranking = new SmartPlaylists.TrackRanking();
+        ranking.put(1, 5);
+        ranking.put(2, 5);
+        ranking.remove(1);
+        assertFalse(ranking.contains(1));
+        assertTrue(ranking.contains(2));
+        assertArrayEquals(new long[]{2}, ranking.getHighest(0, 10));
+        ranking.put(1, 4);
+        assertArrayEquals(new long[]{2, 1}, ranking.getHighest(0, 10));
+    }
+}